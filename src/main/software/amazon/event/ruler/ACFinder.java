@@ -1,11 +1,14 @@
 package software.amazon.event.ruler;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-
-import static software.amazon.event.ruler.SetOperations.intersection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Matches rules to events as does Finder, but in an array-consistent fashion, thus the AC prefix on the class name.
@@ -23,54 +26,222 @@ class ACFinder {
      * @param event the Event structure containing the flattened event information
      * @param machine the compiled state machine
      * @param subRuleContextGenerator the sub-rule context generator
+     * @param context the working storage for the match
      * @return list of rule names that match. The list may be empty but never null.
      */
     static List<Object> matchRules(final Event event, final GenericMachine<?> machine,
-                                   final SubRuleContext.Generator subRuleContextGenerator) {
-        return find(new ACTask(event, machine), subRuleContextGenerator);
+                                   final SubRuleContext.Generator subRuleContextGenerator,
+                                   final MatchContext context) {
+        final List<Object> matchingRules = new ArrayList<>();
+        matchRules(event, machine, subRuleContextGenerator, context, matchingRules::add);
+        return matchingRules;
+    }
+
+    /**
+     * As matchRules above, but passing each rule that matches to a Consumer as it is found, rather than collecting
+     *  them. Each rule is passed once, however many of its sub-rules match.
+     *
+     * @param event the Event structure containing the flattened event information
+     * @param machine the compiled state machine
+     * @param subRuleContextGenerator the sub-rule context generator
+     * @param context the working storage for the match
+     * @param matchingRules where to pass the names of the rules that match
+     */
+    static void matchRules(final Event event, final GenericMachine<?> machine,
+                           final SubRuleContext.Generator subRuleContextGenerator,
+                           final MatchContext context, final Consumer<Object> matchingRules) {
+        matchRules(event, machine, subRuleContextGenerator, context, matchingRules, Integer.MAX_VALUE,
+                MatchLimits.NONE, 0);
+    }
+
+    /**
+     * Find whether any rule matches the fields in the event, stopping as soon as one is found.
+     *
+     * @param event the Event structure containing the flattened event information
+     * @param machine the compiled state machine
+     * @param subRuleContextGenerator the sub-rule context generator
+     * @param context the working storage for the match
+     * @return true if any rule matches
+     */
+    static boolean matchesAny(final Event event, final GenericMachine<?> machine,
+                              final SubRuleContext.Generator subRuleContextGenerator, final MatchContext context) {
+        return matchRules(event, machine, subRuleContextGenerator, context, rule -> { }, 1, MatchLimits.NONE, 0)
+                == MatchResult.StopReason.MAX_RESULTS;
+    }
+
+    /**
+     * As matchRules above, but stopping once the given number of rules have been found, or any of the step, transition
+     *  and time limits is reached; the limit on results in the MatchLimits is left to the caller.
+     *
+     * @param maxRules the most rules to find
+     * @param limits the other limits on the work to do
+     * @param startNanos the System.nanoTime() from which the time limit is counted
+     * @return why matching stopped
+     */
+    static MatchResult.StopReason matchRules(final Event event, final GenericMachine<?> machine,
+                                             final SubRuleContext.Generator subRuleContextGenerator,
+                                             final MatchContext context, final Consumer<Object> matchingRules,
+                                             final int maxRules, final MatchLimits limits, final long startNanos) {
+        final ForkJoinPool pool = machine.getParallelMatchPool();
+        if (pool != null && event.fields.size() >= machine.getParallelMatchMinFields()) {
+            return findInParallel(event, machine, subRuleContextGenerator, context, matchingRules, maxRules, limits,
+                    startNanos, pool);
+        }
+        final ACTask task = context.acTask;
+        task.start(event, machine, matchingRules, maxRules, limits, startNanos);
+        find(task, subRuleContextGenerator);
+        return task.stopReason();
     }
 
-    private static List<Object> find(final ACTask task, final SubRuleContext.Generator subRuleContextGenerator) {
+    /*
+     * The steps out of the start state, one for each field of the event, lead to independent searches, so these are
+     *  shared out between the calling thread and the pool's threads. Each thread has its own task, and takes the next
+     *  field in turn, following every step that leads on from it before taking another; as the searches from the early
+     *  fields are the biggest, handing them out in turn keeps the threads evenly loaded. A rule may be found by more
+     *  than one thread, so each collects what it finds, and the lists are merged once all are finished. The step and
+     *  transition limits are shared by the threads' tasks, which claim them a few at a time as they go, so that between
+     *  them they take no more than the limits allow.
+     */
+    private static MatchResult.StopReason findInParallel(final Event event, final GenericMachine<?> machine,
+                                                         final SubRuleContext.Generator subRuleContextGenerator,
+                                                         final MatchContext context,
+                                                         final Consumer<Object> matchingRules, final int maxRules,
+                                                         final MatchLimits limits, final long startNanos,
+                                                         final ForkJoinPool pool) {
+        final NameState startState = machine.getStartState();
+        if (startState == null) {
+            return MatchResult.StopReason.COMPLETED;
+        }
+
+        final int taskCount = pool.getParallelism() + 1;
+        final ACTask[] tasks = context.parallelTasks(taskCount);
+        final List<List<Object>> found = new ArrayList<>(taskCount);
+        final AtomicLong sharedSteps = limits.getMaxSteps() == Long.MAX_VALUE ? null
+                : new AtomicLong(limits.getMaxSteps());
+        final AtomicLong sharedTransitions = limits.getMaxTransitions() == Long.MAX_VALUE ? null
+                : new AtomicLong(limits.getMaxTransitions());
+        for (int i = 0; i < taskCount; i++) {
+            final List<Object> rules = new ArrayList<>();
+            found.add(rules);
+            tasks[i].start(event, machine, rules::add, maxRules, limits, startNanos, sharedSteps, sharedTransitions);
+        }
+
+        // the threads share the event's fields, whose forms for numeric and IP matching are worked out on first use,
+        //  so work them all out here; submitting to the pool then publishes them to its threads
+        for (Field field : event.fields) {
+            field.comparableNumber();
+            field.ip();
+        }
+
+        final AtomicInteger nextField = new AtomicInteger();
+        final List<ForkJoinTask<?>> forks = new ArrayList<>(taskCount - 1);
+        for (int i = 1; i < taskCount; i++) {
+            final ACTask task = tasks[i];
+            forks.add(pool.submit(() -> findFromStartFields(task, startState, nextField, subRuleContextGenerator)));
+        }
+
+        // the absence transitions out of the start state aren't tied to any field, so the calling thread takes them
+        final ACTask task = tasks[0];
+        tryMustNotExistMatch(null, 0, startState, task, 0, ArrayMembership.EMPTY, subRuleContextGenerator);
+        while (task.stepsRemain()) {
+            tryStep(task, subRuleContextGenerator);
+        }
+        findFromStartFields(task, startState, nextField, subRuleContextGenerator);
+        for (ForkJoinTask<?> fork : forks) {
+            fork.join();
+        }
+
+        final Set<Object> merged = new HashSet<>();
+        for (int i = 0; i < taskCount && merged.size() < maxRules; i++) {
+            final List<Object> rules = found.get(i);
+            for (int j = 0; j < rules.size() && merged.size() < maxRules; j++) {
+                if (merged.add(rules.get(j))) {
+                    matchingRules.accept(rules.get(j));
+                }
+            }
+        }
+        if (merged.size() >= maxRules) {
+            return MatchResult.StopReason.MAX_RESULTS;
+        }
+        for (int i = 0; i < taskCount; i++) {
+            if (tasks[i].stopReason() != MatchResult.StopReason.COMPLETED) {
+                return tasks[i].stopReason();
+            }
+        }
+        return MatchResult.StopReason.COMPLETED;
+    }
+
+    private static void findFromStartFields(final ACTask task, final NameState startState,
+                                            final AtomicInteger nextField,
+                                            final SubRuleContext.Generator subRuleContextGenerator) {
+        for (int fieldIndex = nextField.getAndIncrement(); fieldIndex < task.fieldCount && !task.isDone();
+             fieldIndex = nextField.getAndIncrement()) {
+            task.addStep(fieldIndex, startState, null, 0, ArrayMembership.EMPTY);
+            while (task.stepsRemain()) {
+                tryStep(task, subRuleContextGenerator);
+            }
+        }
+        task.releaseClaims();
+    }
+
+    private static void find(final ACTask task, final SubRuleContext.Generator subRuleContextGenerator) {
 
         // bootstrap the machine: Start state, first field
         NameState startState = task.startState();
         if (startState == null) {
-            return Collections.emptyList();
+            return;
         }
-        moveFrom(null, startState, 0, task, new ArrayMembership(), subRuleContextGenerator);
+        moveFrom(null, 0, 0, startState, 0, task, ArrayMembership.EMPTY, subRuleContextGenerator);
 
         // each iteration removes a Step and adds zero or more new ones
         while (task.stepsRemain()) {
             tryStep(task, subRuleContextGenerator);
         }
-
-        return task.getMatchedRules();
     }
 
-    // remove a step from the work queue and see if there's a transition
+    // remove a step from the work stack and see if there's a transition
     private static void tryStep(final ACTask task, final SubRuleContext.Generator subRuleContextGenerator) {
-        final ACStep step = task.nextStep();
-        final Field field = task.event.fields.get(step.fieldIndex);
+        task.nextStep();
+        final int fieldIndex = task.fieldIndex;
+        final int[] candidateSubRuleIds = task.candidateSubRuleIds;
+        final int candidateCount = task.candidateCount;
+        final Field field = task.event.fields.get(fieldIndex);
 
         // if we can step from where we are to the new field without violating array consistency
-        final ArrayMembership newMembership = ArrayMembership.checkArrayConsistency(step.membershipSoFar, field.arrayMembership);
+        final ArrayMembership newMembership = ArrayMembership.checkArrayConsistency(task.membershipSoFar, field.arrayMembership);
         if (newMembership != null) {
 
             // if there are some possible value pattern matches for this key
-            final ByteMachine valueMatcher = step.nameState.getTransitionOn(field.name);
+            final ByteMachine valueMatcher = task.nameState.getTransitionOn(field.nameId, field.name);
             if (valueMatcher != null) {
 
-                // loop through the value pattern matches, if any
-                final int nextFieldIndex = step.fieldIndex + 1;
-                for (NameStateWithPattern nextNameStateWithPattern : valueMatcher.transitionOn(field.val)) {
+                // another route may already have brought us to this ByteMachine with this field; if not, the
+                //  transitions are found into the list reused by every step, and kept in the memo
+                final TransitionMemo memo = task.transitionMemo;
+                int memoEntry = memo.find(valueMatcher, fieldIndex);
+                if (memoEntry == 0) {
+                    final List<NameStateWithPattern> transitions = task.valueTransitions;
+                    transitions.clear();
+                    task.countTransition();
+                    valueMatcher.transitionOn(field, transitions);
+                    memoEntry = memo.add(valueMatcher, fieldIndex, transitions);
+                }
+
+                // loop through the value pattern matches, if any; nothing below adds to the memo
+                final int nextFieldIndex = fieldIndex + 1;
+                final NameStateWithPattern[] transitions = memo.transitions();
+                final int end = memo.end(memoEntry);
+                for (int i = memo.start(memoEntry); i < end && !task.isDone(); i++) {
+                    final NameStateWithPattern nextNameStateWithPattern = transitions[i];
 
                     // we have moved to a new NameState
                     // this NameState might imply a rule match
-                    task.collectRules(step.candidateSubRuleIds, nextNameStateWithPattern.getNameState(),
+                    task.collectRules(candidateSubRuleIds, candidateCount, nextNameStateWithPattern.getNameState(),
                             nextNameStateWithPattern.getPattern(), subRuleContextGenerator);
 
                     // set up for attempting to move on from the new state
-                    moveFromWithPriorCandidates(step.candidateSubRuleIds, nextNameStateWithPattern.getNameState(),
+                    moveFromWithPriorCandidates(candidateSubRuleIds, candidateCount,
+                            nextNameStateWithPattern.getNameState(),
                             nextNameStateWithPattern.getPattern(), nextFieldIndex, task, newMembership,
                             subRuleContextGenerator);
                 }
@@ -78,24 +249,32 @@ class ACFinder {
         }
     }
 
-    private static void tryMustNotExistMatch(final Set<SubRuleContext> candidateSubRuleIds, final NameState nameState,
-                                             final ACTask task, int nextKeyIndex, final ArrayMembership arrayMembership,
+    private static void tryMustNotExistMatch(final int[] candidateSubRuleIds, final int candidateCount,
+                                             final NameState nameState, final ACTask task, int nextKeyIndex,
+                                             final ArrayMembership arrayMembership,
                                              final SubRuleContext.Generator subRuleContextGenerator) {
         if (!nameState.hasKeyTransitions()) {
             return;
         }
 
-        for (NameState nextNameState : nameState.getNameTransitions(task.event, arrayMembership)) {
-            if (nextNameState != null) {
-                addNameState(candidateSubRuleIds, nextNameState, ABSENCE_PATTERN, task, nextKeyIndex, arrayMembership,
-                        subRuleContextGenerator);
-            }
+        // the next states are added to the end of the shared list, and taken off again when we're done with them,
+        //  as addNameState can lead back here
+        final List<NameState> nextNameStates = task.absenceTransitions;
+        final int start = nextNameStates.size();
+        nameState.getNameTransitions(task.event, arrayMembership, nextNameStates);
+        for (int i = start; i < nextNameStates.size() && !task.isDone(); i++) {
+            addNameState(candidateSubRuleIds, candidateCount, nextNameStates.get(i), ABSENCE_PATTERN, task,
+                    nextKeyIndex, arrayMembership, subRuleContextGenerator);
+        }
+        while (nextNameStates.size() > start) {
+            nextNameStates.remove(nextNameStates.size() - 1);
         }
     }
 
-    // Move from a state. Give all the remaining event fields a chance to transition from it.
-    private static void moveFrom(final Set<SubRuleContext> candidateSubRuleIdsForNextStep, final NameState nameState,
-                                 int fieldIndex, final ACTask task, final ArrayMembership arrayMembership,
+    // Move from a state. Give the remaining event fields whose keys it transitions on a chance to transition from it.
+    private static void moveFrom(final int[] candidateSubRuleIdsForNextStep, final int candidateCountForNextStep,
+                                 final int candidateSetForNextStep, final NameState nameState, int fieldIndex,
+                                 final ACTask task, final ArrayMembership arrayMembership,
                                  final SubRuleContext.Generator subRuleContextGenerator) {
         /*
          * The Name Matchers look for an [ { exists: false } ] match. They
@@ -112,73 +291,69 @@ class ACFinder {
          * the final state can still be evaluated to true if the particular event
          * does not have the key configured for [ { exists: false } ].
          */
-        tryMustNotExistMatch(candidateSubRuleIdsForNextStep, nameState, task, fieldIndex, arrayMembership,
-                subRuleContextGenerator);
-
-        while (fieldIndex < task.fieldCount) {
-            task.addStep(fieldIndex++, nameState, candidateSubRuleIdsForNextStep, arrayMembership);
+        // If we have already moved from this state with the same candidates and membership, starting at this field or
+        //  an earlier one, then everything that follows has been done; otherwise only the fields before that need steps.
+        final int doneFromFieldIndex = task.addingStepsFrom(fieldIndex, nameState, candidateSetForNextStep,
+                arrayMembership);
+        if (doneFromFieldIndex <= fieldIndex) {
+            return;
         }
+
+        tryMustNotExistMatch(candidateSubRuleIdsForNextStep, candidateCountForNextStep, nameState, task, fieldIndex,
+                arrayMembership, subRuleContextGenerator);
+
+        task.addSteps(fieldIndex, doneFromFieldIndex, nameState, candidateSubRuleIdsForNextStep,
+                candidateCountForNextStep, arrayMembership);
     }
 
-    private static void moveFromWithPriorCandidates(final Set<SubRuleContext> candidateSubRuleIds,
+    private static void moveFromWithPriorCandidates(final int[] candidateSubRuleIds, final int candidateCount,
                                                     final NameState fromState, final Patterns fromPattern,
                                                     final int fieldIndex, final ACTask task,
                                                     final ArrayMembership arrayMembership,
                                                     final SubRuleContext.Generator subRuleContextGenerator) {
-        Set<SubRuleContext> candidateSubRuleIdsForNextStep = calculateCandidateSubRuleIdsForNextStep(candidateSubRuleIds,
-                fromState, fromPattern);
-
-        // If there are no more candidate sub-rules, there is no need to proceed further.
-        if (candidateSubRuleIdsForNextStep != null && !candidateSubRuleIdsForNextStep.isEmpty()) {
-            moveFrom(candidateSubRuleIdsForNextStep, fromState, fieldIndex, task, arrayMembership,
-                    subRuleContextGenerator);
-        }
-    }
-
-    /**
-     * Calculate the candidate sub-rule IDs for the next step.
-     *
-     * @param currentCandidateSubRuleIds The candidate sub-rule IDs for the current step. Use null to indicate that we
-     *                                   are on first step and so there are not yet any candidate sub-rules.
-     * @param fromState The NameState we are transitioning from.
-     * @param fromPattern The pattern we used to transition from fromState.
-     * @return The set of candidate sub-rule IDs for the next step. Null means there are no candidates and thus, there
-     *         is no point to evaluating subsequent steps.
-     */
-    private static Set<SubRuleContext> calculateCandidateSubRuleIdsForNextStep(final Set<SubRuleContext> currentCandidateSubRuleIds,
-                                                                       final NameState fromState,
-                                                                       final Patterns fromPattern) {
         // These are all the sub-rules that use the matched pattern to transition to the next NameState. Note that they
         // are not all candidates as they may have required different values for previously evaluated fields.
-        Set<SubRuleContext> subRuleIds = fromState.getNonTerminalSubRuleIdsForPattern(fromPattern);
+        SubRuleIds subRuleIds = fromState.getSortedNonTerminalSubRuleIdsForPattern(fromPattern);
 
         // If no sub-rules used the matched pattern to transition to the next NameState, then there are no matches to be
         // found by going further.
         if (subRuleIds == null) {
-            return null;
+            return;
         }
 
         // If there are no candidate sub-rules, this means we are on the first NameState and must initialize the
         // candidate sub-rules to those that used the matched pattern to transition to the next NameState.
-        if (currentCandidateSubRuleIds == null || currentCandidateSubRuleIds.isEmpty()) {
-            return subRuleIds;
+        if (candidateSubRuleIds == null) {
+            moveFrom(subRuleIds.ids, subRuleIds.size, task.candidateSet(subRuleIds),
+                    fromState, fieldIndex, task, arrayMembership, subRuleContextGenerator);
+            return;
         }
 
         // There are candidate sub-rules, so retain only those that used the matched pattern to transition to the next
         // NameState.
-        Set<SubRuleContext> candidateSubRuleIdsForNextStep = new HashSet<>();
-        intersection(subRuleIds, currentCandidateSubRuleIds, candidateSubRuleIdsForNextStep);
-        return candidateSubRuleIdsForNextStep;
+        final int candidateCountForNextStep = task.intersect(candidateSubRuleIds, candidateCount, subRuleIds);
+
+        // If there are no more candidate sub-rules, there is no need to proceed further.
+        if (candidateCountForNextStep > 0) {
+            final int[] indexes = task.intersectionIndexes();
+            final int[] candidateSubRuleIdsForNextStep = task.newCandidateBuffer(candidateCountForNextStep);
+            for (int i = 0; i < candidateCountForNextStep; i++) {
+                candidateSubRuleIdsForNextStep[i] = subRuleIds.ids[indexes[i]];
+            }
+            moveFrom(candidateSubRuleIdsForNextStep, candidateCountForNextStep,
+                    task.candidateSet(candidateSubRuleIdsForNextStep, candidateCountForNextStep), fromState,
+                    fieldIndex, task, arrayMembership, subRuleContextGenerator);
+        }
     }
 
-    private static void addNameState(Set<SubRuleContext> candidateSubRuleIds, NameState nameState, Patterns pattern,
-                                     ACTask task, int nextKeyIndex, final ArrayMembership arrayMembership,
+    private static void addNameState(final int[] candidateSubRuleIds, final int candidateCount,
+                                     final NameState nameState, final Patterns pattern, final ACTask task,
+                                     final int nextKeyIndex, final ArrayMembership arrayMembership,
                                      final SubRuleContext.Generator subRuleContextGenerator) {
         // one of the matches might imply a rule match
-        task.collectRules(candidateSubRuleIds, nameState, pattern, subRuleContextGenerator);
+        task.collectRules(candidateSubRuleIds, candidateCount, nameState, pattern, subRuleContextGenerator);
 
-        moveFromWithPriorCandidates(candidateSubRuleIds, nameState, pattern, nextKeyIndex, task, arrayMembership,
-                subRuleContextGenerator);
+        moveFromWithPriorCandidates(candidateSubRuleIds, candidateCount, nameState, pattern, nextKeyIndex, task,
+                arrayMembership, subRuleContextGenerator);
     }
 }
-
@@ -1,77 +1,459 @@
 package software.amazon.event.ruler;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import static software.amazon.event.ruler.SetOperations.intersection;
 
 /**
- * Represents the state of an Array-Consistent rule-finding project.
+ * Represents the state of an Array-Consistent rule-finding project. A task is held in a MatchContext and reused from
+ *  one event to the next, so that once it has grown to fit the events it sees, matching allocates very little.
+ *
+ * Steps waiting to be tried are kept on a stack, as parallel arrays rather than as objects, and are tried depth-first.
+ *  A step's candidate sub-rules are a sorted array of sub-rule ids and a count, either taken as they are from a
+ *  NameState or made by intersection into a buffer drawn from a pool. A buffer is only referred to by the steps pushed
+ *  after it was filled, so once the stack has shrunk back to the height it had then, the buffer is returned to the
+ *  pool.
+ *
+ * Matched rules are passed to a Consumer as they are found. A rule that matches more than once is only passed on the
+ *  first time, which is told by marking its rule id with a number that is different for each event. Once as many
+ *  rules have been found as are wanted, or any other of the MatchLimits is reached, the task is done, and no more
+ *  steps are tried.
  */
 class ACTask {
+    private static final int INITIAL_CAPACITY = 16;
 
     // the event we're matching rules to, and its fieldcount
-    public final Event event;
-    final int fieldCount;
+    Event event;
+    int fieldCount;
 
-    // the rules that matched the event, if we find any
-    private final Set<Object> matchingRules = new HashSet<>();
+    // where the rules that matched the event go, if we find any, and how many more of them are wanted
+    private Consumer<Object> matchingRules;
+    private int rulesWanted;
 
-    // Steps queued up for processing
-    private final Queue<ACStep> stepQueue = new ArrayDeque<>();
+    // the limits on the steps and transitions to take, and the System.nanoTime() by which to stop, if there is one;
+    //  the clock is only read every CLOCK_CHECK_INTERVAL steps, as that costs more than a step often does
+    private static final int CLOCK_CHECK_INTERVAL = 16;
+    private long maxSteps;
+    private long maxTransitions;
+    private boolean hasDeadline;
+    private long deadline;
+    private long stepsTaken;
+    private long transitionsTaken;
+
+    // when tasks match an event between them, the steps and transitions not yet handed out to any of them, or null if
+    //  that limit is not shared; a task claims up to CLAIM_SIZE at a time, adding them to its own maximum
+    private static final long CLAIM_SIZE = 64;
+    private AtomicLong sharedSteps;
+    private AtomicLong sharedTransitions;
+
+    // why the task is done, or null if it isn't
+    private MatchResult.StopReason stopReason;
+
+    // indexed by rule id, holding the number of the last event in which the rule matched
+    private int[] ruleMarks = new int[INITIAL_CAPACITY];
+    private int eventNumber = 0;
+
+    // for each field name id in the event, the range of the event's fields with that name, which are next to one
+    //  another as the fields are sorted by name; an entry only holds for this event if its mark is the event number
+    private int[] nameIdMarks = new int[INITIAL_CAPACITY];
+    private int[] nameIdFieldStarts = new int[INITIAL_CAPACITY];
+    private int[] nameIdFieldEnds = new int[INITIAL_CAPACITY];
+    private long[] fieldRanges = new long[INITIAL_CAPACITY];
+
+    // the steps added so far for this event, so that none is added twice
+    private final SeenSteps seenSteps = new SeenSteps();
+
+    // the value transitions found so far for this event, so that none is worked out twice
+    final TransitionMemo transitionMemo = new TransitionMemo();
 
     // the state machine
-    private final GenericMachine<?> machine;
+    private GenericMachine<?> machine;
+
+    // the stack of steps: a field, a NameState from which it might transition, the candidate sub-rules, and the
+    //  array membership of the fields matched so far
+    private int[] stepFieldIndexes = new int[INITIAL_CAPACITY];
+    private NameState[] stepNameStates = new NameState[INITIAL_CAPACITY];
+    private int[][] stepCandidateSubRuleIds = new int[INITIAL_CAPACITY][];
+    private int[] stepCandidateCounts = new int[INITIAL_CAPACITY];
+    private ArrayMembership[] stepMemberships = new ArrayMembership[INITIAL_CAPACITY];
+    private int stepCount = 0;
+
+    // the step most recently taken off the stack; null candidates mean we're on the first step
+    int fieldIndex;
+    NameState nameState;
+    int[] candidateSubRuleIds;
+    int candidateCount;
+    ArrayMembership membershipSoFar;
+
+    // the pool of candidate sub-rule buffers; those in use are at the front, with the stack height when each was taken
+    private int[][] candidateBuffers = new int[0][];
+    private int[] candidateBufferHeights = new int[0];
+    private int candidateBuffersInUse = 0;
+
+    // where intersection writes the positions of the sub-rules it finds
+    private int[] intersectionIndexes = new int[INITIAL_CAPACITY];
+
+    // scratch lists for the transitions out of a NameState; the one for absence transitions is used as a stack, as
+    //  following one of those can lead on to more
+    final List<NameStateWithPattern> valueTransitions = new ArrayList<>();
+    final List<NameState> absenceTransitions = new ArrayList<>();
+
+    /**
+     * Prepare for matching another event, forgetting anything left from the last one.
+     */
+    void start(final Event event, final GenericMachine<?> machine, final Consumer<Object> matchingRules,
+               final int maxRules) {
+        start(event, machine, matchingRules, maxRules, MatchLimits.NONE, 0);
+    }
+
+    /**
+     * As start above, also applying the step, transition and time limits. The time is counted from startNanos, a
+     *  reading of System.nanoTime().
+     */
+    void start(final Event event, final GenericMachine<?> machine, final Consumer<Object> matchingRules,
+               final int maxRules, final MatchLimits limits, final long startNanos) {
+        start(event, machine, matchingRules, maxRules, limits, startNanos, null, null);
+    }
 
-    ACTask(Event event, GenericMachine<?> machine) {
+    /**
+     * As start above, but with the step and transition limits shared with other tasks matching the same event. Each
+     *  shared limit is the number of steps or transitions which the tasks may take between them, and is counted down as
+     *  they claim them; a limit which is null is not shared, and applies to this task alone.
+     */
+    void start(final Event event, final GenericMachine<?> machine, final Consumer<Object> matchingRules,
+               final int maxRules, final MatchLimits limits, final long startNanos, final AtomicLong sharedSteps,
+               final AtomicLong sharedTransitions) {
         this.event = event;
         this.machine = machine;
+        this.matchingRules = matchingRules;
+        rulesWanted = maxRules;
+        this.sharedSteps = sharedSteps;
+        this.sharedTransitions = sharedTransitions;
+        maxSteps = sharedSteps == null ? limits.getMaxSteps() : 0;
+        maxTransitions = sharedTransitions == null ? limits.getMaxTransitions() : 0;
+        hasDeadline = limits.hasTimeout();
+        deadline = startNanos + limits.getTimeoutNanos();
+        stepsTaken = 0;
+        transitionsTaken = 0;
+        stopReason = null;
         fieldCount = event.fields.size();
+        if (++eventNumber == 0) {
+            // after four billion events the numbers come round again, so forget the old marks
+            Arrays.fill(ruleMarks, 0);
+            Arrays.fill(nameIdMarks, 0);
+            eventNumber = 1;
+        }
+        indexFieldsByNameId();
+        seenSteps.clear();
+        transitionMemo.clear();
+        Arrays.fill(stepNameStates, 0, stepCount, null);
+        Arrays.fill(stepCandidateSubRuleIds, 0, stepCount, null);
+        Arrays.fill(stepMemberships, 0, stepCount, null);
+        stepCount = 0;
+        candidateBuffersInUse = 0;
+        valueTransitions.clear();
+        absenceTransitions.clear();
+    }
+
+    private void indexFieldsByNameId() {
+        for (int i = 0; i < fieldCount; i++) {
+            final int nameId = event.fields.get(i).nameId;
+            if (nameId < 0) {
+                continue;
+            }
+            if (nameId >= nameIdMarks.length) {
+                final int capacity = Math.max(nameIdMarks.length * 2, nameId + 1);
+                nameIdMarks = Arrays.copyOf(nameIdMarks, capacity);
+                nameIdFieldStarts = Arrays.copyOf(nameIdFieldStarts, capacity);
+                nameIdFieldEnds = Arrays.copyOf(nameIdFieldEnds, capacity);
+            }
+            if (nameIdMarks[nameId] != eventNumber) {
+                nameIdMarks[nameId] = eventNumber;
+                nameIdFieldStarts[nameId] = i;
+            }
+            nameIdFieldEnds[nameId] = i + 1;
+        }
     }
 
     NameState startState() {
         return machine.getStartState();
     }
 
-    ACStep nextStep() {
-        return stepQueue.remove();
+    /**
+     * Take the next step off the stack, into the fieldIndex, nameState, candidateSubRuleIds, candidateCount and
+     *  membershipSoFar fields, where it stays until the next call.
+     */
+    void nextStep() {
+        // candidate buffers taken while the stack was this high or higher are no longer referred to by any step
+        while (candidateBuffersInUse > 0 && candidateBufferHeights[candidateBuffersInUse - 1] >= stepCount) {
+            candidateBuffersInUse--;
+        }
+
+        stepCount--;
+        stepsTaken++;
+        fieldIndex = stepFieldIndexes[stepCount];
+        nameState = stepNameStates[stepCount];
+        candidateSubRuleIds = stepCandidateSubRuleIds[stepCount];
+        candidateCount = stepCandidateCounts[stepCount];
+        membershipSoFar = stepMemberships[stepCount];
+        stepNameStates[stepCount] = null;
+        stepCandidateSubRuleIds[stepCount] = null;
+        stepMemberships[stepCount] = null;
     }
 
     /*
-     *  Add a step to the queue for later consideration
+     *  Add a step to the stack for later consideration
+     */
+    void addStep(final int fieldIndex, final NameState nameState, final int[] candidateSubRuleIds,
+                 final int candidateCount, final ArrayMembership membershipSoFar) {
+        if (stepCount == stepFieldIndexes.length) {
+            final int capacity = stepCount * 2;
+            stepFieldIndexes = Arrays.copyOf(stepFieldIndexes, capacity);
+            stepNameStates = Arrays.copyOf(stepNameStates, capacity);
+            stepCandidateSubRuleIds = Arrays.copyOf(stepCandidateSubRuleIds, capacity);
+            stepCandidateCounts = Arrays.copyOf(stepCandidateCounts, capacity);
+            stepMemberships = Arrays.copyOf(stepMemberships, capacity);
+        }
+        stepFieldIndexes[stepCount] = fieldIndex;
+        stepNameStates[stepCount] = nameState;
+        stepCandidateSubRuleIds[stepCount] = candidateSubRuleIds;
+        stepCandidateCounts[stepCount] = candidateCount;
+        stepMemberships[stepCount] = membershipSoFar;
+        stepCount++;
+    }
+
+    /**
+     * Record that the steps from a NameState, with the given candidates and membership, are to be added for the
+     *  event's fields from fromFieldIndex on.
+     *
+     * @param candidateSet the number of the candidates' set, from candidateSet()
+     * @return the field index from which those steps have already been added for this event, so that they need only
+     *  be added up to there; if that is no greater than fromFieldIndex, there is nothing left to do
+     */
+    int addingStepsFrom(final int fromFieldIndex, final NameState nameState, final int candidateSet,
+                        final ArrayMembership membershipSoFar) {
+        return seenSteps.addFrom(fromFieldIndex, nameState, membershipSoFar, candidateSet);
+    }
+
+    /**
+     * Add a step to the stack for each of the event's fields from fromFieldIndex up to toFieldIndex that the NameState
+     *  has a value transition on; the others could lead nowhere. A NameState usually has transitions on fewer keys
+     *  than the event has fields left, in which case the fields are found from the keys, and otherwise each field's
+     *  key is looked up. Either way, the steps are added in order of field index.
+     */
+    void addSteps(final int fromFieldIndex, final int toFieldIndex, final NameState nameState,
+                  final int[] candidateSubRuleIds, final int candidateCount, final ArrayMembership membershipSoFar) {
+        final int endFieldIndex = Math.min(toFieldIndex, fieldCount);
+        final NameState.FieldIdMap<ByteMachine> transitions = nameState.getTransitionsById();
+        final int keyCount = transitions.size();
+        if (keyCount >= endFieldIndex - fromFieldIndex) {
+            for (int i = fromFieldIndex; i < endFieldIndex; i++) {
+                if (transitions.indexOf(event.fields.get(i).nameId) >= 0) {
+                    addStep(i, nameState, candidateSubRuleIds, candidateCount, membershipSoFar);
+                }
+            }
+            return;
+        }
+
+        // the ranges of fields for the keys the event has, each packed as its start and end, sorted by start
+        if (fieldRanges.length < keyCount) {
+            fieldRanges = new long[Integer.highestOneBit(keyCount) << 1];
+        }
+        int rangeCount = 0;
+        for (int i = 0; i < keyCount; i++) {
+            final int nameId = transitions.idAt(i);
+            if (nameId < nameIdMarks.length && nameIdMarks[nameId] == eventNumber
+                    && nameIdFieldEnds[nameId] > fromFieldIndex && nameIdFieldStarts[nameId] < endFieldIndex) {
+                final int start = Math.max(fromFieldIndex, nameIdFieldStarts[nameId]);
+                final int end = Math.min(endFieldIndex, nameIdFieldEnds[nameId]);
+                fieldRanges[rangeCount++] = ((long) start << 32) | end;
+            }
+        }
+        if (rangeCount > 1) {
+            Arrays.sort(fieldRanges, 0, rangeCount);
+        }
+        for (int i = 0; i < rangeCount; i++) {
+            final int end = (int) fieldRanges[i];
+            for (int fieldIndex = (int) (fieldRanges[i] >>> 32); fieldIndex < end; fieldIndex++) {
+                addStep(fieldIndex, nameState, candidateSubRuleIds, candidateCount, membershipSoFar);
+            }
+        }
+    }
+
+    /**
+     * @return the number by which steps with these candidates, held by a NameState, are told apart in this event
      */
-    void addStep(final int fieldIndex, final NameState nameState, final Set<SubRuleContext> candidateSubRuleIds,
-                 final ArrayMembership membershipSoFar) {
-        stepQueue.add(new ACStep(fieldIndex, nameState, candidateSubRuleIds, membershipSoFar));
+    int candidateSet(final SubRuleIds subRuleIds) {
+        return seenSteps.candidateSet(subRuleIds);
     }
 
+    /**
+     * @return the number by which steps with these candidates, in a buffer from the pool, are told apart in this event
+     */
+    int candidateSet(final int[] candidateSubRuleIds, final int candidateCount) {
+        return seenSteps.candidateSet(candidateSubRuleIds, candidateCount);
+    }
+
+    /**
+     * @return true if there is another step to take, and no limit has been reached that would stop it being taken
+     */
     boolean stepsRemain() {
-        return !stepQueue.isEmpty();
+        if (stepCount == 0 || isDone()) {
+            return false;
+        }
+        if (stepsTaken >= maxSteps) {
+            maxSteps += claim(sharedSteps, stepsTaken - maxSteps + 1);
+        }
+        if (transitionsTaken >= maxTransitions) {
+            maxTransitions += claim(sharedTransitions, transitionsTaken - maxTransitions + 1);
+        }
+        if (stepsTaken >= maxSteps) {
+            stopReason = MatchResult.StopReason.MAX_STEPS;
+        } else if (transitionsTaken >= maxTransitions) {
+            stopReason = MatchResult.StopReason.MAX_TRANSITIONS;
+        } else if (hasDeadline && stepsTaken % CLOCK_CHECK_INTERVAL == 0 && System.nanoTime() - deadline >= 0) {
+            stopReason = MatchResult.StopReason.DEADLINE;
+        }
+        return stopReason == null;
+    }
+
+    /**
+     * @return the needed number more of a shared limit, or CLAIM_SIZE if that is more, which are then no longer
+     *  available to the other tasks; or as many as are left if that is fewer, and 0 if the limit isn't shared
+     */
+    private static long claim(final AtomicLong shared, final long needed) {
+        if (shared == null) {
+            return 0;
+        }
+        long left = shared.get();
+        while (left > 0) {
+            final long claimed = Math.min(left, Math.max(needed, CLAIM_SIZE));
+            if (shared.compareAndSet(left, left - claimed)) {
+                return claimed;
+            }
+            left = shared.get();
+        }
+        return 0;
+    }
+
+    /**
+     * Hand back to the other tasks whatever this one has claimed of the shared limits but not used, once it has no more
+     *  steps to take.
+     */
+    void releaseClaims() {
+        if (sharedSteps != null && maxSteps > stepsTaken) {
+            sharedSteps.addAndGet(maxSteps - stepsTaken);
+            maxSteps = stepsTaken;
+        }
+        if (sharedTransitions != null && maxTransitions > transitionsTaken) {
+            sharedTransitions.addAndGet(maxTransitions - transitionsTaken);
+            maxTransitions = transitionsTaken;
+        }
+    }
+
+    long stepsTaken() {
+        return stepsTaken;
     }
 
-    List<Object> getMatchedRules() {
-        return new ArrayList<>(matchingRules);
+    long transitionsTaken() {
+        return transitionsTaken;
+    }
+
+    /**
+     * Count a transition about to be looked for, by matching a field's value to the patterns in a ByteMachine.
+     */
+    void countTransition() {
+        transitionsTaken++;
     }
 
-    void collectRules(final Set<SubRuleContext> candidateSubRuleIds, final NameState nameState, final Patterns pattern,
-                      final SubRuleContext.Generator subRuleContextGenerator) {
-        Set<SubRuleContext> terminalSubRuleIds = nameState.getTerminalSubRuleIdsForPattern(pattern);
+    /**
+     * @return true if as many rules have been found as are wanted, or some other limit has been reached, so that
+     *  there is no point going on
+     */
+    boolean isDone() {
+        return stopReason != null;
+    }
+
+    /**
+     * @return why the task is done, or COMPLETED if it ran out of steps to take
+     */
+    MatchResult.StopReason stopReason() {
+        return stopReason == null ? MatchResult.StopReason.COMPLETED : stopReason;
+    }
+
+    /**
+     * @return a buffer from the pool with room for at least the given number of sub-rule ids, for candidates which
+     *  will be referred to by steps added from now on
+     */
+    int[] newCandidateBuffer(final int capacity) {
+        if (candidateBuffersInUse == candidateBuffers.length) {
+            final int poolSize = Math.max(INITIAL_CAPACITY, candidateBuffersInUse * 2);
+            candidateBuffers = Arrays.copyOf(candidateBuffers, poolSize);
+            candidateBufferHeights = Arrays.copyOf(candidateBufferHeights, poolSize);
+        }
+        int[] buffer = candidateBuffers[candidateBuffersInUse];
+        if (buffer == null || buffer.length < capacity) {
+            buffer = new int[Math.max(INITIAL_CAPACITY, Integer.highestOneBit(capacity) << 1)];
+            candidateBuffers[candidateBuffersInUse] = buffer;
+        }
+        candidateBufferHeights[candidateBuffersInUse] = stepCount;
+        candidateBuffersInUse++;
+        return buffer;
+    }
+
+    /**
+     * Intersect a step's candidate sub-rules with those a NameState has for a pattern.
+     *
+     * @return the number of sub-rules found, whose positions in subRuleIds are left in intersectionIndexes()
+     */
+    int intersect(final int[] candidateSubRuleIds, final int candidateCount, final SubRuleIds subRuleIds) {
+        final int capacity = Math.min(candidateCount, subRuleIds.size);
+        if (intersectionIndexes.length < capacity) {
+            intersectionIndexes = new int[Integer.highestOneBit(capacity) << 1];
+        }
+        return intersection(candidateSubRuleIds, candidateCount, subRuleIds.ids, subRuleIds.size,
+                intersectionIndexes);
+    }
+
+    int[] intersectionIndexes() {
+        return intersectionIndexes;
+    }
+
+    void collectRules(final int[] candidateSubRuleIds, final int candidateCount, final NameState nameState,
+                      final Patterns pattern, final SubRuleContext.Generator subRuleContextGenerator) {
+        SubRuleIds terminalSubRuleIds = nameState.getSortedTerminalSubRuleIdsForPattern(pattern);
         if (terminalSubRuleIds == null) {
             return;
         }
 
         // If no candidates, that means we're on the first step, so all sub-rules are candidates.
-        if (candidateSubRuleIds == null || candidateSubRuleIds.isEmpty()) {
-            for (SubRuleContext terminalSubRuleId : terminalSubRuleIds) {
-                matchingRules.add(terminalSubRuleId.getRuleName());
+        if (candidateSubRuleIds == null) {
+            for (int i = 0; i < terminalSubRuleIds.size && !isDone(); i++) {
+                addMatchingRule(terminalSubRuleIds, i);
             }
         } else {
-            intersection(candidateSubRuleIds, terminalSubRuleIds, matchingRules,
-                    SubRuleContext::getRuleName);
+            final int count = intersect(candidateSubRuleIds, candidateCount, terminalSubRuleIds);
+            for (int i = 0; i < count && !isDone(); i++) {
+                addMatchingRule(terminalSubRuleIds, intersectionIndexes[i]);
+            }
+        }
+    }
+
+    private void addMatchingRule(final SubRuleIds subRuleIds, final int index) {
+        final int ruleId = subRuleIds.ruleIds[index];
+        if (ruleId >= ruleMarks.length) {
+            ruleMarks = Arrays.copyOf(ruleMarks, Math.max(ruleMarks.length * 2, ruleId + 1));
+        }
+        if (ruleMarks[ruleId] != eventNumber) {
+            ruleMarks[ruleId] = eventNumber;
+            if (--rulesWanted == 0) {
+                stopReason = MatchResult.StopReason.MAX_RESULTS;
+            }
+            matchingRules.accept(subRuleIds.ruleNames[index]);
         }
     }
 }
@@ -1,51 +1,109 @@
 package software.amazon.event.ruler;
 
+import javax.annotation.concurrent.Immutable;
+import java.util.Arrays;
+
 /**
  * Represents which JSON arrays within an Event structure a particular field appears within, and at which position.
  *  The arrays are identified using integers.
+ *
+ * Instances are immutable, so that all the fields found within one array element can share a single instance, and
+ *  a matching task can keep using the membership it started with for as long as the fields it visits add nothing
+ *  new. The (array, index) pairs are packed into longs, array in the high half, which are kept sorted by array.
  */
+@Immutable
 class ArrayMembership {
-    private static final IntIntMap EMPTY = new IntIntMap();
+    static final int NO_VALUE = -1;
+
+    static final ArrayMembership EMPTY = new ArrayMembership(new long[0]);
 
-    private final IntIntMap membership;
+    private final long[] entries;
 
-    ArrayMembership() {
-        membership = new IntIntMap();
+    private ArrayMembership(final long[] entries) {
+        this.entries = entries;
     }
 
-    ArrayMembership(final ArrayMembership membership) {
-        if (membership.size() == 0) {
-            this.membership = EMPTY;
-        } else {
-            this.membership = (IntIntMap) membership.membership.clone();
+    /**
+     * @return a membership with the provided array's index set, and all others as in this one
+     */
+    ArrayMembership with(final int array, final int index) {
+        final int position = find(array);
+        if (position >= 0) {
+            if (index(entries[position]) == index) {
+                return this;
+            }
+            final long[] newEntries = entries.clone();
+            newEntries[position] = pack(array, index);
+            return new ArrayMembership(newEntries);
         }
+
+        // Event traversal numbers arrays in the order it meets them, so a new array usually goes at the end
+        final int insertAt = -position - 1;
+        final long[] newEntries = new long[entries.length + 1];
+        System.arraycopy(entries, 0, newEntries, 0, insertAt);
+        newEntries[insertAt] = pack(array, index);
+        System.arraycopy(entries, insertAt, newEntries, insertAt + 1, entries.length - insertAt);
+        return new ArrayMembership(newEntries);
+    }
+
+    int getMembership(final int array) {
+        final int position = find(array);
+        return position < 0 ? NO_VALUE : index(entries[position]);
+    }
+
+    boolean isEmpty() {
+        return entries.length == 0;
     }
 
-    void putMembership(int array, int index) {
-        if (index == IntIntMap.NO_VALUE) {
-            membership.remove(array);
-        } else {
-            membership.put(array, index);
+    int size() {
+        return entries.length;
+    }
+
+    // binary search on the array half of the entries, returning as Arrays.binarySearch does
+    private int find(final int array) {
+        int low = 0;
+        int high = entries.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int midArray = array(entries[mid]);
+            if (midArray < array) {
+                low = mid + 1;
+            } else if (midArray > array) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
         }
+        return -(low + 1);
     }
-    void deleteMembership(int array) {
-        membership.remove(array);
+
+    private static long pack(final int array, final int index) {
+        return ((long) array << 32) | (index & 0xffffffffL);
     }
-    int getMembership(int array) {
-        return membership.get(array);
+
+    private static int array(final long entry) {
+        return (int) (entry >>> 32);
     }
-    boolean isEmpty() {
-        return membership.isEmpty();
+
+    private static int index(final long entry) {
+        return (int) entry;
     }
-    private int size() {
-        return membership.size();
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof ArrayMembership && Arrays.equals(entries, ((ArrayMembership) o).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(entries);
     }
 
     // for debugging
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        for (IntIntMap.Entry entry : membership.entries()) {
-            sb.append(entry.getKey()).append('[').append(entry.getValue()).append("] ");
+        for (long entry : entries) {
+            sb.append(array(entry)).append('[').append(index(entry)).append("] ");
         }
         return sb.toString();
     }
@@ -55,7 +113,8 @@ class ArrayMembership {
      *  observed so far in this map. We need to compare this to the array-membership data of the field we're looking at
      *  and see if they are consistent.  Either or both memberships might be empty, which simplifies things.
      * Method returns null if the new field's membership is inconsistent with so-far membership.  If it is compatible,
-     *  returns the possibly-revised array membership of the matching task.
+     *  returns the possibly-revised array membership of the matching task. When one of the two memberships already
+     *  contains the other, that one is returned and nothing is allocated.
      *
      * @param fieldMembership Array membership of the field under consideration
      * @param membershipSoFar Array membership observed so far in a rule-matching task
@@ -65,37 +124,70 @@ class ArrayMembership {
 
         // no existing memberships, so we'll take the ones from the field, if any
         if (membershipSoFar.isEmpty()) {
-            return fieldMembership.isEmpty() ? membershipSoFar : new ArrayMembership(fieldMembership);
+            return fieldMembership;
+        }
+        if (fieldMembership.isEmpty() || membershipSoFar == fieldMembership) {
+            return membershipSoFar;
         }
 
-        // any change will come from memberships in the new field we're investigating. For each of its memberships
-        ArrayMembership newMembership = null;
-        for (IntIntMap.Entry arrayEntry : fieldMembership.membership.entries()) {
-            final int array = arrayEntry.getKey();
-            final int indexInThisArrayOfThisField = arrayEntry.getValue();
-            final int indexInThisArrayPreviouslyAppearingInMatch = membershipSoFar.getMembership(array);
-
-            if (indexInThisArrayPreviouslyAppearingInMatch == IntIntMap.NO_VALUE) {
-
-                // if there's no membership so far, this is an acceptable delta. Update the new memberships, first
-                //  creating it if necessary
-                if (newMembership == null) {
-                    newMembership = new ArrayMembership(membershipSoFar);
-                }
-                newMembership.putMembership(array, indexInThisArrayOfThisField);
-
+        // Walk the two sorted lists together, looking for arrays in which the two are in different elements, and
+        //  counting the arrays that only one of them is in.
+        final long[] soFar = membershipSoFar.entries;
+        final long[] field = fieldMembership.entries;
+        int onlyInSoFar = 0;
+        int onlyInField = 0;
+        int i = 0;
+        int j = 0;
+        while (i < soFar.length && j < field.length) {
+            final int soFarArray = array(soFar[i]);
+            final int fieldArray = array(field[j]);
+            if (soFarArray < fieldArray) {
+                onlyInSoFar++;
+                i++;
+            } else if (soFarArray > fieldArray) {
+                onlyInField++;
+                j++;
             } else {
-
-                // This field does appear within an index that has already appeared in the matching task so far.
-                //  If it's in the same element, fine, no updates. If it's a different entry, return null to
-                //  signal array-inconsistency.
-                if (indexInThisArrayOfThisField != indexInThisArrayPreviouslyAppearingInMatch) {
+                if (soFar[i] != field[j]) {
                     return null;
                 }
+                i++;
+                j++;
             }
         }
+        onlyInSoFar += soFar.length - i;
+        onlyInField += field.length - j;
 
-        // we may have scanned all the fields and not added anything, in which case return the input
-        return (newMembership == null) ? membershipSoFar : newMembership;
+        // if either already contains the other, it's the answer
+        if (onlyInField == 0) {
+            return membershipSoFar;
+        }
+        if (onlyInSoFar == 0) {
+            return fieldMembership;
+        }
+
+        final long[] merged = new long[soFar.length + onlyInField];
+        i = 0;
+        j = 0;
+        int k = 0;
+        while (i < soFar.length && j < field.length) {
+            final int soFarArray = array(soFar[i]);
+            final int fieldArray = array(field[j]);
+            if (soFarArray < fieldArray) {
+                merged[k++] = soFar[i++];
+            } else if (soFarArray > fieldArray) {
+                merged[k++] = field[j++];
+            } else {
+                merged[k++] = soFar[i++];
+                j++;
+            }
+        }
+        while (i < soFar.length) {
+            merged[k++] = soFar[i++];
+        }
+        while (j < field.length) {
+            merged[k++] = field[j++];
+        }
+        return new ArrayMembership(merged);
     }
 }
@@ -11,6 +11,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -82,27 +83,95 @@ class ByteMachine {
     //
     private final Map<NameState, List<Patterns>> anythingButs = new ConcurrentHashMap<>();
 
+    // Increased whenever a pattern is added or deleted, once the machine has been changed, so that transitions cached
+    //  while it was being changed, or before, are not used afterwards.
+    private final AtomicInteger version = new AtomicInteger(0);
+
+    // the number of entries to cache the transitions of recent values in, or 0 for no cache; the cache is only made
+    //  once the machine is used, as many never see enough events to need one, and if two threads make it at once, one
+    //  just loses what it put in its own
+    private final int transitionCacheSize;
+    private volatile TransitionCache transitionCache;
+
+    ByteMachine() {
+        this(0);
+    }
+
+    /**
+     * @param transitionCacheSize the number of values whose transitions are to be kept from one event to the next, or
+     *                            0 to keep none
+     */
+    ByteMachine(final int transitionCacheSize) {
+        this.transitionCacheSize = transitionCacheSize;
+    }
+
     // Multiple different next-namestate steps can result from  processing a single field value, for example
     //  "foot" matches "foot" exactly, "foo" as a prefix, and "hand" as an anything-but.  So, this
     //  method returns a list.
     Set<NameStateWithPattern> transitionOn(final String valString) {
+        return transitionOn(new Field(null, valString, null));
+    }
+
+    /**
+     * As transitionOn(String), but for a field of an event. String matching consumes the field's UTF-8 bytes as they
+     *  are; the String form of the value is only needed, and decoded, for numeric and IP matching. The numeric and IP
+     *  forms are kept on the field, so they are only worked out once however many ByteMachines the field reaches.
+     */
+    Set<NameStateWithPattern> transitionOn(final Field field) {
 
         // not thread-safe, but this is only used in the scope of this method on one thread
-        final Set<NameStateWithPattern> transitionTo = new HashSet<>();
+        final List<NameStateWithPattern> transitionTo = new ArrayList<>();
+        transitionOn(field, transitionTo);
+        return new HashSet<>(transitionTo);
+    }
+
+    /**
+     * As transitionOn(Field), but adds the transitions, each just once, to a list provided by the caller, which can
+     *  then be reused from one call to the next.
+     *
+     * @param field the field to match
+     * @param transitionTo the list to add the transitions to
+     */
+    void transitionOn(final Field field, final List<NameStateWithPattern> transitionTo) {
+
+        // a number read from a binary format isn't told apart by its bytes alone, so is never cached
+        if (transitionCacheSize == 0 || field.number != null
+                || field.valBytes.length > TransitionCache.MAX_VALUE_LENGTH) {
+            findTransitions(field, transitionTo);
+            return;
+        }
+        TransitionCache cache = transitionCache;
+        if (cache == null) {
+            cache = new TransitionCache(transitionCacheSize);
+            transitionCache = cache;
+        }
+
+        // the version is read before the transitions are found, so that if the machine is changed meanwhile, they
+        //  are cached under the version it had before, and not used again
+        final int versionNow = version.get();
+        final NameStateWithPattern[] cached = cache.get(field.valBytes, field.valueType, versionNow);
+        if (cached != null) {
+            for (NameStateWithPattern transition : cached) {
+                addTransition(transitionTo, transition);
+            }
+            return;
+        }
+
+        // only what is found into an empty list is known to be all of the value's transitions
+        final boolean cacheable = transitionTo.isEmpty();
+        findTransitions(field, transitionTo);
+        if (cacheable) {
+            cache.put(field.valBytes, field.valueType, versionNow, transitionTo);
+        }
+    }
+
+    private void findTransitions(final Field field, final List<NameStateWithPattern> transitionTo) {
 
         // Do CIDR matching if there is at least one IP pattern, then move on to NUMERIC or STRING matching below.
         if (hasIP.get() > 0) {
-            try {
-                // we'll try both the quoted and unquoted version to help people whose events aren't in JSON
-                String ipString;
-                if (valString.startsWith("\"") && valString.endsWith("\"")) {
-                    ipString = CIDR.ipToString(valString.substring(1, valString.length() -1));
-                } else {
-                    ipString = CIDR.ipToString(valString);
-                }
-                doTransitionOn(ipString, transitionTo, TransitionValueType.CIDR);
-            } catch (IllegalArgumentException e) {
-                // no-op, couldn't treat this as an IP address
+            final byte[] ip = field.ip();
+            if (ip != null) {
+                doTransitionOn(ip, transitionTo, TransitionValueType.CIDR);
             }
         }
 
@@ -111,15 +180,29 @@ class ByteMachine {
         // string patterns present as no value can satisfy both a numeric and a string pattern. This is due to string
         // patterns starting/ending with a double quotation, where as numeric patterns never do.
         if (hasNumeric.get() > 0) {
-            try {
-                doTransitionOn(ComparableNumber.generate(valString), transitionTo, TransitionValueType.NUMERIC);
-                return transitionTo;
-            } catch (Exception e) {
-                // no-op, couldn't treat this as a sensible number
+            final byte[] comparable = field.comparableNumber();
+            if (comparable != null) {
+                doTransitionOn(comparable, transitionTo, TransitionValueType.NUMERIC);
+                return;
             }
         }
-        doTransitionOn(valString, transitionTo, TransitionValueType.STRING);
-        return transitionTo;
+        doTransitionOn(field.valBytes, transitionTo, TransitionValueType.STRING);
+    }
+
+    // the list is cheaper to reuse than a Set would be, and the transitions it gets are few, so it's searched for
+    //  duplicates rather than hashed
+    private static void addTransition(final List<NameStateWithPattern> transitionTo,
+                                      final NameStateWithPattern transition) {
+        if (!transitionTo.contains(transition)) {
+            transitionTo.add(transition);
+        }
+    }
+
+    /**
+     * @return the cache of recent values' transitions, or null if there is none yet
+     */
+    TransitionCache getTransitionCache() {
+        return transitionCache;
     }
 
     boolean isEmpty() {
@@ -134,6 +217,14 @@ class ByteMachine {
 
     // this is to support deleteRule().  It deletes the ByteStates that exist to support matching the provided pattern.
     void deletePattern(final Patterns pattern) {
+        try {
+            doDeletePattern(pattern);
+        } finally {
+            version.incrementAndGet();
+        }
+    }
+
+    private void doDeletePattern(final Patterns pattern) {
         switch (pattern.type()) {
             case NUMERIC_RANGE:
                 assert pattern instanceof Range;
@@ -458,10 +549,11 @@ class ByteMachine {
         }
     }
 
-    private void doTransitionOn(final String valString, final Set<NameStateWithPattern> transitionTo,
+    private void doTransitionOn(final byte[] val, final List<NameStateWithPattern> transitionTo,
                                 TransitionValueType valueType) {
-        final Map<NameState, List<Patterns>> failedAnythingButs = new HashMap<>();
-        final byte[] val = valString.getBytes(StandardCharsets.UTF_8);
+        // failures are only recorded, and anything-buts only harvested, if the machine had any when we started
+        final boolean hasAnythingButs = !anythingButs.isEmpty();
+        final Map<NameState, List<Patterns>> failedAnythingButs = hasAnythingButs ? new HashMap<>() : null;
 
         // we need to add the name state for key existence
         addExistenceMatch(transitionTo);
@@ -470,7 +562,7 @@ class ByteMachine {
         addSuffixMatch(val, transitionTo, failedAnythingButs);
 
         if (startStateMatch != null) {
-            transitionTo.add(new NameStateWithPattern(startStateMatch.getNextNameState(), startStateMatch.getPattern()));
+            addTransition(transitionTo, startStateMatch.getNameStateWithPattern());
         }
 
         // we have to do old-school indexing rather than "for (byte b : val)" because there is some special-casing
@@ -479,7 +571,7 @@ class ByteMachine {
         for (int valIndex = 0; valIndex < val.length; valIndex++) {
             final ByteTransition nextTrans = getTransition(trans, val[valIndex]);
 
-            attemptAddShortcutTransitionMatch(nextTrans, valString, EXACT, transitionTo);
+            attemptAddShortcutTransitionMatch(nextTrans, val, EXACT, transitionTo);
 
             if (!nextTrans.isShortcutTrans()) {
 
@@ -490,19 +582,19 @@ class ByteMachine {
                         case EQUALS_IGNORE_CASE:
                         case WILDCARD:
                             if (valIndex == (val.length - 1)) {
-                                transitionTo.add(new NameStateWithPattern(match.getNextNameState(), match.getPattern()));
+                                addTransition(transitionTo, match.getNameStateWithPattern());
                             }
                             break;
                         case NUMERIC_EQ:
                             // only matches at last character
                             if (valueType == TransitionValueType.NUMERIC && valIndex == (val.length - 1)) {
-                                transitionTo.add(new NameStateWithPattern(match.getNextNameState(), match.getPattern()));
+                                addTransition(transitionTo, match.getNameStateWithPattern());
                             }
                             break;
 
                         case PREFIX:
                         case PREFIX_EQUALS_IGNORE_CASE:
-                            transitionTo.add(new NameStateWithPattern(match.getNextNameState(), match.getPattern()));
+                            addTransition(transitionTo, match.getNameStateWithPattern());
                             break;
                         case ANYTHING_BUT_SUFFIX:
                         case SUFFIX:
@@ -517,7 +609,7 @@ class ByteMachine {
                             Range range = (Range) match.getPattern();
                             if ((valueType == TransitionValueType.NUMERIC && !range.isCIDR) ||
                                     (valueType != TransitionValueType.NUMERIC && range.isCIDR)) {
-                                transitionTo.add(new NameStateWithPattern(match.getNextNameState(), match.getPattern()));
+                                addTransition(transitionTo, match.getNameStateWithPattern());
                             }
                             break;
 
@@ -556,13 +648,13 @@ class ByteMachine {
         // This may look like premature optimization, but the first "if" here yields roughly 10x performance
         // improvement. We exclude CIDR because the value will have been transformed, causing the anythingBut to always
         // match. Wait for NUMERIC or STRING matching to harvest anythingBut matches.
-        if (!anythingButs.isEmpty() && valueType != TransitionValueType.CIDR) {
+        if (hasAnythingButs && valueType != TransitionValueType.CIDR) {
             for (Map.Entry<NameState, List<Patterns>> entry : anythingButs.entrySet()) {
                 boolean failedAnythingButsContainsKey = failedAnythingButs.containsKey(entry.getKey());
                 for (Patterns pattern : entry.getValue()) {
                     if (!failedAnythingButsContainsKey ||
                             !failedAnythingButs.get(entry.getKey()).contains(pattern)) {
-                        transitionTo.add(new NameStateWithPattern(entry.getKey(), pattern));
+                        addTransition(transitionTo, new NameStateWithPattern(entry.getKey(), pattern));
                     }
                 }
             }
@@ -570,6 +662,10 @@ class ByteMachine {
     }
 
     private void addToAnythingButsMap(Map<NameState, List<Patterns>> map, NameState nameState, Patterns pattern) {
+        if (map == null) {
+            // we're matching a value, and the machine had no anything-buts when we started
+            return;
+        }
         if (!map.containsKey(nameState)) {
             map.put(nameState, new ArrayList<>());
         }
@@ -586,7 +682,7 @@ class ByteMachine {
         }
     }
 
-    private void addExistenceMatch(final Set<NameStateWithPattern> transitionTo) {
+    private void addExistenceMatch(final List<NameStateWithPattern> transitionTo) {
         final byte[] val = Patterns.EXISTS_BYTE_STRING.getBytes(StandardCharsets.UTF_8);
 
         ByteTransition trans = startState;
@@ -602,13 +698,13 @@ class ByteMachine {
 
         for (ByteMatch match : nextTrans.getMatches()) {
             if (match.getPattern().type() == EXISTS) {
-                transitionTo.add(new NameStateWithPattern(match.getNextNameState(), match.getPattern()));
+                addTransition(transitionTo, match.getNameStateWithPattern());
                 break;
             }
         }
     }
 
-    private void addSuffixMatch(final byte[] val, final Set<NameStateWithPattern> transitionTo,
+    private void addSuffixMatch(final byte[] val, final List<NameStateWithPattern> transitionTo,
                                 final Map<NameState, List<Patterns>> failedAnythingButs) {
         // we only attempt to evaluate suffix matches when there is suffix match in current byte machine instance.
         // it works as performance level to avoid other type of matches from being affected by suffix checking.
@@ -622,7 +718,7 @@ class ByteMachine {
                     // to be collected.
                     MatchType patternType = match.getPattern().type();
                     if (patternType == SUFFIX || patternType == SUFFIX_EQUALS_IGNORE_CASE) {
-                        transitionTo.add(new NameStateWithPattern(match.getNextNameState(), match.getPattern()));
+                        addTransition(transitionTo, match.getNameStateWithPattern());
                     } else if (patternType == ANYTHING_BUT_SUFFIX) {
                         addToAnythingButsMap(failedAnythingButs, match.getNextNameState(), match.getPattern());
                     }
@@ -637,27 +733,27 @@ class ByteMachine {
 
     /**
      * Evaluates if a provided transition is a shortcut transition with a match having a given match type and value. If
-     * so, adds match to transitionTo Set. Used to short-circuit traversal.
+     * so, adds match to transitionTo list. Used to short-circuit traversal.
      *
      * Note: The adjustment mode can ensure the shortcut transition (if exists) is always at the tail of path. Refer to
      * addEndOfMatch() function for details.
      *
      * @param transition Transition to evaluate.
-     * @param value Value desired in match's pattern.
+     * @param value UTF-8 bytes of the value desired in match's pattern.
      * @param expectedMatchType Match type expected in match's pattern.
-     * @param transitionTo Set that match's next name state will be added to if desired match is found.
-     * @return True iff match was added to transitionTo Set.
+     * @param transitionTo List that match's next name state will be added to if desired match is found.
+     * @return True iff match was added to transitionTo list.
      */
-    private boolean attemptAddShortcutTransitionMatch(final ByteTransition transition, final String value,
-            final MatchType expectedMatchType, final Set<NameStateWithPattern> transitionTo) {
+    private boolean attemptAddShortcutTransitionMatch(final ByteTransition transition, final byte[] value,
+            final MatchType expectedMatchType, final List<NameStateWithPattern> transitionTo) {
         for (ShortcutTransition shortcut : transition.getShortcuts()) {
             ByteMatch match = shortcut.getMatch();
             assert match != null;
             if (match.getPattern().type() == expectedMatchType) {
                 ValuePatterns valuePatterns = (ValuePatterns) match.getPattern();
-                if (valuePatterns.pattern().equals(value)) {
+                if (Arrays.equals(valuePatterns.patternBytes(), value)) {
                     // Only one match is possible for shortcut transition
-                    transitionTo.add(new NameStateWithPattern(match.getNextNameState(), match.getPattern()));
+                    addTransition(transitionTo, match.getNameStateWithPattern());
                     return true;
                 }
             }
@@ -678,6 +774,14 @@ class ByteMachine {
      * @return NameState transitioned to from ByteMatch. May or may not equal provided NameState if it wasn't null.
      */
     NameState addPattern(final Patterns pattern, final NameState nameState) {
+        try {
+            return doAddPattern(pattern, nameState);
+        } finally {
+            version.incrementAndGet();
+        }
+    }
+
+    private NameState doAddPattern(final Patterns pattern, final NameState nameState) {
         switch (pattern.type()) {
             case NUMERIC_RANGE:
                 assert pattern instanceof Range;
@@ -12,6 +12,9 @@ final class ByteMatch extends SingleByteTransition  {
     private final Patterns pattern;
     private final NameState nextNameState;  // the next state in the higher-level name/value machine
 
+    // the transition this match yields, made on first use and then shared by every value that reaches the match
+    private NameStateWithPattern nameStateWithPattern;
+
     ByteMatch(Patterns pattern, NameState nextNameState) {
         this.pattern = pattern;
         this.nextNameState = nextNameState;
@@ -62,6 +65,16 @@ final class ByteMatch extends SingleByteTransition  {
     }
     NameState getNextNameState() { return nextNameState; }
 
+    NameStateWithPattern getNameStateWithPattern() {
+        // a race here only means an extra, equal, object gets made
+        NameStateWithPattern transition = nameStateWithPattern;
+        if (transition == null) {
+            transition = new NameStateWithPattern(nextNameState, pattern);
+            nameStateWithPattern = transition;
+        }
+        return transition;
+    }
+
     @Override
     boolean isMatchTrans() {
         return true;
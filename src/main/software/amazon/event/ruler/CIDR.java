@@ -24,8 +24,40 @@ public class CIDR {
 
     private CIDR() { }
 
-    private static boolean isIPv4OrIPv6(String ip) {
-        return Constants.IPv4_REGEX.matcher(ip).matches() || Constants.IPv6_REGEX.matcher(ip).matches();
+    // A cheap check, made one character at a time since it is applied to event values, that a string looks like an
+    //  IPv4 address, [0-9]+\.[0-9]+\.[0-9]+\.[0-9]+, or an IPv6 address, [0-9a-fA-F:]*:[0-9a-fA-F:]*
+    private static boolean isIPv4OrIPv6(final String ip) {
+        return isIPv4(ip) || isIPv6(ip);
+    }
+
+    private static boolean isIPv4(final String ip) {
+        int dots = 0;
+        boolean digitSeen = false;
+        for (int i = 0; i < ip.length(); i++) {
+            final char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digitSeen = true;
+            } else if (c == '.' && digitSeen && dots < 3) {
+                dots++;
+                digitSeen = false;
+            } else {
+                return false;
+            }
+        }
+        return dots == 3 && digitSeen;
+    }
+
+    private static boolean isIPv6(final String ip) {
+        boolean colonSeen = false;
+        for (int i = 0; i < ip.length(); i++) {
+            final char c = ip.charAt(i);
+            if (c == ':') {
+                colonSeen = true;
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return colonSeen;
     }
 
     private static byte[] ipToBytes(final String ip) {
@@ -73,6 +105,24 @@ public class CIDR {
         }
     }
 
+    /**
+     * Converts a string to an IP address literal if this is possible.  If not
+     *  possible, returns null. Unlike ipToString, nothing is thrown for the
+     *  common case of a string that doesn't look like an IP address at all.
+     * @param ip String that might be an IP address literal
+     * @return Hexadecimal form of the input, or null if it was not an IP address literal.
+     */
+    static String ipToStringIfValid(final String ip) {
+        if (!isIPv4OrIPv6(ip)) {
+            return null;
+        }
+        try {
+            return ipToString(ip);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     /**
      * Converts a string to an IP address literal to isCIDR format Range if this is possible.
      * If not possible, returns null.
@@ -35,6 +35,9 @@ class ComparableNumber {
     static final int MAX_LENGTH_IN_BYTES = 10;
     static final int BASE_128_BITMASK = 0x7f; // 127 or 01111111
 
+    // longs up to this magnitude convert to double exactly
+    private static final long MAX_EXACT_LONG = 1L << 53;
+
     private ComparableNumber() {}
 
     /**
@@ -47,14 +50,140 @@ class ComparableNumber {
      * @throws IllegalArgumentException if the input isn't a number we can compare
      */
     static String generate(final String str) {
-        final BigDecimal bigDecimal = JavaBigDecimalParser.parseBigDecimal(str);
+        return orThrow(comparable(JavaBigDecimalParser.parseBigDecimal(str)), str);
+    }
+
+    /**
+     * As above, but from a number's binary value, as read from a binary event format, without going through text.
+     *
+     * @param number the number
+     * @return the comparable number string
+     * @throws IllegalArgumentException if the input isn't a number we can compare
+     */
+    static String generate(final Number number) {
+        return orThrow(comparable(number), number);
+    }
+
+    /**
+     * As generate(String), but returns null, rather than throwing, if the input isn't a number we can compare. This
+     *  is for event values, many of which aren't numbers, and checks their syntax before trying to parse them.
+     *
+     * @param str the string representation of the number
+     * @return the comparable number string, or null
+     */
+    static String generateIfComparable(final String str) {
+        if (!isNumber(str)) {
+            return null;
+        }
+        try {
+            return comparable(JavaBigDecimalParser.parseBigDecimal(str));
+        } catch (NumberFormatException e) {
+            // well-formed, but beyond what the parser can handle, such as an exponent that overflows an int
+            return null;
+        }
+    }
+
+    /**
+     * As generate(Number), but returns null, rather than throwing, if the input isn't a number we can compare.
+     *
+     * @param number the number
+     * @return the comparable number string, or null
+     */
+    static String generateIfComparable(final Number number) {
+        return comparable(number);
+    }
+
+    private static String orThrow(final String comparable, final Object source) {
+        if (comparable == null) {
+            throw new IllegalArgumentException("Cannot compare number : " + source);
+        }
+        return comparable;
+    }
+
+    // returns null if the number can't be compared
+    private static String comparable(final Number number) {
+        if (number instanceof Double) {
+            final double doubleValue = number.doubleValue();
+            if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+                return null;
+            }
+            // as when parsing text, negative zero compares equal to zero
+            return generate(doubleValue == 0 ? 0.0 : doubleValue);
+        }
+        if (number instanceof Float) {
+            // widening would turn 0.1f into 0.100000001490116..., so go through the float's shortest decimal text,
+            //  which is what the number would have been written as
+            final float floatValue = number.floatValue();
+            if (Float.isNaN(floatValue) || Float.isInfinite(floatValue)) {
+                return null;
+            }
+            return comparable(new BigDecimal(Float.toString(floatValue)));
+        }
+        if (number instanceof Integer || number instanceof Short || number instanceof Byte) {
+            return generate(number.doubleValue());
+        }
+        if (number instanceof Long && number.longValue() >= -MAX_EXACT_LONG && number.longValue() <= MAX_EXACT_LONG) {
+            return generate(number.doubleValue());
+        }
+        return comparable(number instanceof BigDecimal ? (BigDecimal) number : new BigDecimal(number.toString()));
+    }
+
+    // returns null if the number can't be compared
+    private static String comparable(final BigDecimal bigDecimal) {
         final double doubleValue = bigDecimal.doubleValue();
 
         // make sure we have the comparable numbers and haven't eaten up decimals values
         if(Double.isNaN(doubleValue) || Double.isInfinite(doubleValue) ||
                 BigDecimal.valueOf(doubleValue).compareTo(bigDecimal) != 0) {
-            throw new IllegalArgumentException("Cannot compare number : " + str);
+            return null;
+        }
+        return generate(doubleValue);
+    }
+
+    // whether the string has the syntax BigDecimal accepts: [+-]? (digits [. digits?] | . digits) ([eE] [+-]? digits)?
+    private static boolean isNumber(final String str) {
+        final int length = str.length();
+        int i = 0;
+        if (i < length && (str.charAt(i) == '-' || str.charAt(i) == '+')) {
+            i++;
         }
+        int digits = 0;
+        while (i < length && isDigit(str.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < length && str.charAt(i) == '.') {
+            i++;
+            while (i < length && isDigit(str.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < length && (str.charAt(i) == 'e' || str.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (str.charAt(i) == '-' || str.charAt(i) == '+')) {
+                i++;
+            }
+            final int exponentStart = i;
+            while (i < length && isDigit(str.charAt(i))) {
+                i++;
+            }
+            if (i == exponentStart) {
+                return false;
+            }
+        }
+        return i == length;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // the value must be finite
+    private static String generate(final double doubleValue) {
         final long bits = Double.doubleToRawLongBits(doubleValue);
 
         // https://github.com/aws/event-ruler/pull/188/files#r1769199522
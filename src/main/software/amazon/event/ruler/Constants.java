@@ -2,7 +2,6 @@ package software.amazon.event.ruler;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Pattern;
 
 final class Constants {
 
@@ -29,8 +28,6 @@ final class Constants {
   final static String GT = ">";
   final static String GE = ">=";
 
-  final static Pattern IPv4_REGEX = Pattern.compile("[0-9]+\\.[0-9]+\\.[0-9]+\\.[0-9]+");
-  final static Pattern IPv6_REGEX = Pattern.compile("[0-9a-fA-F:]*:[0-9a-fA-F:]*");
   final static byte[] HEX_DIGITS = {
       '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
       'A', 'B', 'C', 'D', 'E', 'F'
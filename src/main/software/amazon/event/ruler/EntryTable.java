@@ -0,0 +1,111 @@
+package software.amazon.event.ruler;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * An open-addressed hash table of numbered entries, for the tables used while matching one event, which must cost
+ *  nothing to look up in and allocate nothing once they have grown to fit the events they see. The entries themselves
+ *  are kept by the user of the table, in arrays indexed by number; the table only finds the number for a hash.
+ *
+ * Entries are numbered from 1 in the order they are added, as 0 marks a free slot, and the table is kept no more than
+ *  half full. Finding an entry is left to the user, as only it can tell whether two entries with the same hash are the
+ *  same; it probes from slot() on, through next(), until numberAt() is either the entry or 0, and in the latter case
+ *  can add() the entry in that free slot. clear() empties the table by undoing just the slots that were used.
+ */
+@NotThreadSafe
+final class EntryTable {
+    private int[] table;
+    private int[] slots;
+    private int[] hashes;
+    private int size = 0;
+
+    /**
+     * @param capacity the number of slots to start with, a power of two
+     */
+    EntryTable(final int capacity) {
+        table = new int[capacity];
+        slots = new int[capacity / 2 + 1];
+        hashes = new int[capacity / 2 + 1];
+    }
+
+    /**
+     * @return the first slot to look for an entry with the given hash in
+     */
+    int slot(final int hash) {
+        return hash & (table.length - 1);
+    }
+
+    /**
+     * @return the slot to look in after the given one
+     */
+    int next(final int slot) {
+        return (slot + 1) & (table.length - 1);
+    }
+
+    /**
+     * @return the number of the entry in a slot, or 0 if it is free
+     */
+    int numberAt(final int slot) {
+        return table[slot];
+    }
+
+    int hashOf(final int number) {
+        return hashes[number];
+    }
+
+    /**
+     * Add an entry in a free slot, found by probing for it, which is the last time the slot may be used.
+     *
+     * @return the number of the new entry, one more than that of the last
+     */
+    int add(final int slot, final int hash) {
+        final int number = ++size;
+        table[slot] = number;
+        slots[number] = slot;
+        hashes[number] = hash;
+        if (size * 2 >= table.length) {
+            grow();
+        }
+        return number;
+    }
+
+    /**
+     * @return the number of entries, which is also the number of the last one
+     */
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        for (int number = 1; number <= size; number++) {
+            table[slots[number]] = 0;
+        }
+        size = 0;
+    }
+
+    private void grow() {
+        final int capacity = table.length * 2;
+        table = new int[capacity];
+        slots = Arrays.copyOf(slots, capacity / 2 + 1);
+        hashes = Arrays.copyOf(hashes, capacity / 2 + 1);
+        final int mask = capacity - 1;
+        for (int number = 1; number <= size; number++) {
+            int slot = hashes[number] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = number;
+            slots[number] = slot;
+        }
+    }
+
+    /**
+     * Spread the bits of a hash, so that hashes which differ only in their low bits, as those of neighbouring field
+     *  indexes or numbers do, don't cluster in a table that uses the low bits to pick a slot.
+     */
+    static int mix(final int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
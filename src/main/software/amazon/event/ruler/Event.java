@@ -3,18 +3,27 @@ package software.amazon.event.ruler;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.TokenStreamFactory;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.core.io.JsonEOFException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import software.amazon.event.ruler.Field.ValueType;
 
 import javax.annotation.Nonnull;
-import javax.annotation.concurrent.Immutable;
-import javax.annotation.concurrent.ThreadSafe;
+import javax.annotation.concurrent.NotThreadSafe;
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Stack;
 import java.util.StringJoiner;
@@ -32,147 +41,357 @@ import java.util.TreeMap;
  *  This method cannot support array-consistent matching and is called only from the now-deprecated
  *  rulesForEvent(String json) method.
  *
- * There are two Event constructors, both called from the rulesForJSONEvent method in GenericMachine.
- *  Both generates a list of Field objects sorted by field name and equipped for matching with
+ * There are several Event constructors, all called from the rulesForJSONEvent methods in GenericMachine.
+ *  All generate a list of Field objects sorted by field name and equipped for matching with
  *  array consistency
  *
  * One takes a parsed version of the JSON event, presumably constructed by ObjectMapper. Its chief tools are the
  *  loadObject and loadArray methods.
  *
- * The constructor which takes a JSON string as argument uses the JsonParser's nextToken() method to traverse the
- *  structure without parsing it into a tree, and is thus several times faster.  Its chief tools are the
- *  traverseObject and traverseArray methods.
+ * One takes the event as Java Maps, collections and scalars, so that callers who hold their events in that form
+ *  need not serialize them to JSON. Its chief tools are the loadMap and loadMapArray methods.
+ *
+ * The constructors which take a JSON string, or its UTF-8 bytes in an array or ByteBuffer, as argument use the
+ *  JsonParser's nextToken() method to traverse the structure without parsing it into a tree, and are thus several
+ *  times faster.  Their chief tools are the traverseObject and traverseArray methods.
+ *
+ * The fields of an Event are held in the MatchContext it was built with, which clears and refills them when it is next
+ *  used, so an Event is only good until then, and only on the thread using the context. The exception is matching in
+ *  parallel, which shares the fields with the pool's threads for as long as the match lasts, as ACFinder describes.
  */
 // TODO: Improve unit-test coverage, there are surprising gaps
-@Immutable
-@ThreadSafe
+@NotThreadSafe
 final class Event {
 
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    static final JsonFactory JSON_FACTORY = new JsonFactory();
 
-    // the fields of the event
-    final List<Field> fields = new ArrayList<>();
+    // the fields of the event, held in the MatchContext the event was constructed with
+    final List<Field> fields;
 
     /**
      * represents the current state of an Event-constructor project
      */
     static class Progress {
-        final ArrayMembership membership = new ArrayMembership();
+        // shared by all the fields found within the current array element
+        ArrayMembership membership = ArrayMembership.EMPTY;
         int arrayCount = 0;
-        final Path path = new Path();
-        // final Stack<String> path = new Stack<>();
-        final GenericMachine<?> machine;
-        Progress(final GenericMachine<?> m) {
-            machine = m;
+
+        // whether to compare the parser's value for each number, rather than its text as it is
+        boolean numberValues = false;
+
+        void clear() {
+            membership = ArrayMembership.EMPTY;
+            arrayCount = 0;
         }
     }
 
     /**
-     * represents a field value during Event construction
+     * Accumulates the fields of an event as they are found during Event construction, in parallel arrays which are
+     *  sorted by field name just once, after the whole event has been seen. Fields with the same name keep the order
+     *  in which they were added. Each field name comes with its id in the machine's FieldPathTrie.
      */
-    static class Value {
-        final String val;
-        final ArrayMembership membership;
-        Value(String val, ArrayMembership membership) {
-            this.val = val;
-            this.membership = new ArrayMembership(membership); // clones the argument
+    static final class FieldBuffer {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private String[] names = new String[INITIAL_CAPACITY];
+        private int[] nameIds = new int[INITIAL_CAPACITY];
+        private byte[][] vals = new byte[INITIAL_CAPACITY][];
+        private ValueType[] valueTypes = new ValueType[INITIAL_CAPACITY];
+        private Number[] numbers = new Number[INITIAL_CAPACITY];
+        private ArrayMembership[] memberships = new ArrayMembership[INITIAL_CAPACITY];
+        private int[] order = new int[INITIAL_CAPACITY];
+        private int[] scratch = new int[INITIAL_CAPACITY];
+        private int size = 0;
+
+        void add(final String name, final int nameId, final byte[] val, final ValueType valueType,
+                 final ArrayMembership membership) {
+            add(name, nameId, val, valueType, null, membership);
+        }
+
+        void add(final String name, final int nameId, final byte[] val, final ValueType valueType,
+                 final Number number, final ArrayMembership membership) {
+            if (size == names.length) {
+                grow();
+            }
+            names[size] = name;
+            nameIds[size] = nameId;
+            vals[size] = val;
+            valueTypes[size] = valueType;
+            numbers[size] = number;
+            memberships[size] = membership;
+            order[size] = size;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Sorts the buffered fields by name and appends them, as Field objects, to the provided list.
+         *
+         * @param fields the list to add the fields to
+         */
+        void sortInto(final List<Field> fields) {
+            sort(0, size);
+            for (int i = 0; i < size; i++) {
+                final int index = order[i];
+                fields.add(new Field(names[index], nameIds[index], vals[index], valueTypes[index],
+                        numbers[index], memberships[index]));
+            }
+        }
+
+        /**
+         * Forgets the buffered fields so that the buffer can be used again.
+         */
+        void clear() {
+            Arrays.fill(names, 0, size, null);
+            Arrays.fill(vals, 0, size, null);
+            Arrays.fill(valueTypes, 0, size, null);
+            Arrays.fill(numbers, 0, size, null);
+            Arrays.fill(memberships, 0, size, null);
+            size = 0;
+        }
+
+        private void grow() {
+            final int capacity = names.length * 2;
+            names = Arrays.copyOf(names, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            vals = Arrays.copyOf(vals, capacity);
+            valueTypes = Arrays.copyOf(valueTypes, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+            memberships = Arrays.copyOf(memberships, capacity);
+            order = Arrays.copyOf(order, capacity);
+            scratch = new int[capacity];
+        }
+
+        // a merge sort of the order[] indexes on the names they point at, which keeps equal names in insertion order
+        private void sort(final int from, final int to) {
+            if (to - from < 8) {
+                for (int i = from + 1; i < to; i++) {
+                    final int index = order[i];
+                    int j = i - 1;
+                    while (j >= from && compare(order[j], index) > 0) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = index;
+                }
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            sort(from, mid);
+            sort(mid, to);
+
+            // already in order, quite common as many events have their keys sorted
+            if (compare(order[mid - 1], order[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, scratch, from, to - from);
+            int left = from;
+            int right = mid;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < mid && compare(scratch[left], scratch[right]) <= 0)) {
+                    order[i] = scratch[left++];
+                } else {
+                    order[i] = scratch[right++];
+                }
+            }
+        }
+
+        // by name rather than id, as an id passes to another name once its own is no longer used by any rule, which can
+        //  happen while the event is being read, so that two of its names have the same id
+        private int compare(final int index1, final int index2) {
+            final String name1 = names[index1];
+            final String name2 = names[index2];
+            if (name1 == name2 || name1.equals(name2)) {
+                return 0;
+            }
+            return name1.compareTo(name2);
         }
     }
 
     /**
-     * Generates an Event with a structure that supports checking for consistent array membership.
+     * Generates an Event with a structure that supports checking for consistent array membership. The Event is built
+     *  in the storage of the provided context, and so is only usable until the context is next used.
      *
      * @param json JSON representation of the event
+     * @param context the working storage to build the event in
+     * @throws IOException if the JSON can't be parsed
+     * @throws IllegalArgumentException if the top level of the Event is not a JSON object
+     */
+    Event(@Nonnull final String json, @Nonnull final GenericMachine<?> machine, @Nonnull final MatchContext context)
+            throws IOException, IllegalArgumentException {
+        this(JSON_FACTORY.createParser(json), false, machine, context);
+    }
+
+    /**
+     * As above, but reads the JSON directly from UTF-8 encoded bytes, without decoding them into a String first. If
+     *  the machine has a TokenStreamFactory for some other format, the bytes are read in that format instead.
+     *
+     * @param json UTF-8 encoded JSON representation of the event
+     * @param offset offset of the first byte of the event within the array
+     * @param length number of bytes making up the event
+     * @throws IOException if the JSON can't be parsed
+     * @throws IllegalArgumentException if the top level of the Event is not a JSON object
+     */
+    Event(@Nonnull final byte[] json, final int offset, final int length, @Nonnull final GenericMachine<?> machine,
+          @Nonnull final MatchContext context) throws IOException, IllegalArgumentException {
+        this(machine.getTokenStreamFactory().createParser(json, offset, length),
+                readsNumberValues(machine.getTokenStreamFactory()), machine, context);
+    }
+
+    /**
+     * As above, reading the UTF-8 encoded JSON between the buffer's position and limit. The buffer's position, limit
+     *  and mark are not modified. Heap buffers are parsed in place; direct buffers are streamed through the parser's
+     *  own input buffer rather than being copied out in full.
+     *
+     * @param json UTF-8 encoded JSON representation of the event
      * @throws IOException if the JSON can't be parsed
      * @throws IllegalArgumentException if the top level of the Event is not a JSON object
      */
-    Event(@Nonnull final String json, @Nonnull final GenericMachine<?> machine) throws IOException, IllegalArgumentException {
-        final JsonParser parser = JSON_FACTORY.createParser(json);
-        final Progress progress = new Progress(machine);
-        final TreeMap<String, List<Value>> fieldMap = new TreeMap<>();
+    Event(@Nonnull final ByteBuffer json, @Nonnull final GenericMachine<?> machine,
+          @Nonnull final MatchContext context) throws IOException, IllegalArgumentException {
+        this(createParser(machine.getTokenStreamFactory(), json), readsNumberValues(machine.getTokenStreamFactory()),
+                machine, context);
+    }
+
+    private Event(final JsonParser parser, final boolean numberValues, final GenericMachine<?> machine,
+                  final MatchContext context) throws IOException, IllegalArgumentException {
+        fields = clear(context);
+        context.progress.numberValues = numberValues;
 
         if (parser.nextToken() != JsonToken.START_OBJECT) {
             throw new IllegalArgumentException("Event must be a JSON object");
         }
-        traverseObject(parser, fieldMap, progress);
+        traverseObject(parser, context.fieldBuffer, context.progress, machine.getUsedFieldPathsRoot());
         parser.close();
-        for (Map.Entry<String, List<Value>> entry : fieldMap.entrySet()) {
-            for (Value val : entry.getValue()) {
-                fields.add(new Field(entry.getKey(), val.val, val.membership));
-            }
-        }
+        context.fieldBuffer.sortInto(fields);
     }
 
     // as above, only with the JSON already parsed into a ObjectMapper tree
-    Event(@Nonnull final JsonNode eventRoot, @Nonnull final GenericMachine<?> machine) throws IllegalArgumentException {
+    Event(@Nonnull final JsonNode eventRoot, @Nonnull final GenericMachine<?> machine,
+          @Nonnull final MatchContext context) throws IllegalArgumentException {
         if (!eventRoot.isObject()) {
             throw new IllegalArgumentException("Event must be a JSON object");
         }
-        final TreeMap<String, List<Value>> fieldMap = new TreeMap<>();
-        final Progress progress = new Progress(machine);
-        loadObject(eventRoot, fieldMap, progress);
+        fields = clear(context);
+        loadObject(eventRoot, context.fieldBuffer, context.progress, machine.getUsedFieldPathsRoot());
+        context.fieldBuffer.sortInto(fields);
+    }
 
-        for (Map.Entry<String, List<Value>> entry : fieldMap.entrySet()) {
-            for (Value val : entry.getValue()) {
-                fields.add(new Field(entry.getKey(), val.val, val.membership));
-            }
+    // as above, only with the event held as Java Maps, collections and scalars, as it might be before serialization
+    Event(@Nonnull final Map<String, ?> eventRoot, @Nonnull final GenericMachine<?> machine,
+          @Nonnull final MatchContext context) {
+        fields = clear(context);
+        loadMap(eventRoot, context.fieldBuffer, context.progress, machine.getUsedFieldPathsRoot());
+        context.fieldBuffer.sortInto(fields);
+    }
+
+    // for Incremental, with the fields already in the context's buffer
+    private Event(final MatchContext context) {
+        fields = context.fields;
+        context.fieldBuffer.sortInto(fields);
+    }
+
+    // a previous use of the context may have been abandoned part-way through, so clear everything
+    private static List<Field> clear(final MatchContext context) {
+        context.fieldBuffer.clear();
+        context.progress.clear();
+        context.fields.clear();
+        return context.fields;
+    }
+
+    private static JsonParser createParser(final TokenStreamFactory factory, final ByteBuffer json)
+            throws IOException {
+        if (json.hasArray()) {
+            return factory.createParser(json.array(), json.arrayOffset() + json.position(), json.remaining());
         }
+        return factory.createParser(new ByteBufferBackedInputStream(json.duplicate()));
     }
 
-    private void traverseObject(final JsonParser parser, final TreeMap<String, List<Value>> fieldMap, final Progress progress) throws IOException {
+    // JSON numbers are compared by their text, which is read just as a rule's numbers are, but other formats may
+    //  write numbers differently, or as binary values, as CBOR and Smile do, so the parser's values are used for them
+    private static boolean readsNumberValues(final TokenStreamFactory factory) {
+        return !JsonFactory.FORMAT_NAME_JSON.equals(factory.getFormatName());
+    }
+
+    private void traverseObject(final JsonParser parser, final FieldBuffer fieldBuffer, final Progress progress,
+                                final FieldPathTrie.Node node) throws IOException {
         while (parser.nextToken() != JsonToken.END_OBJECT) {
             // step name
             final String stepName = parser.getCurrentName();
             JsonToken nextToken = parser.nextToken();
 
-            // If we know current step name hasn't been used by any rules, we don't parse into this step.
-            if (!progress.machine.isFieldStepUsed(stepName)) {
+            // If no rule uses a field name starting with the path to this step, we don't parse into this step.
+            final FieldPathTrie.Node nextNode = node.step(stepName);
+            if (nextNode == null) {
                 ignoreCurrentStep(parser);
                 continue;
             }
 
-            progress.path.push(stepName);
             switch (nextToken) {
                 case START_OBJECT:
-                    traverseObject(parser, fieldMap, progress);
+                    traverseObject(parser, fieldBuffer, progress, nextNode);
                     break;
                 case START_ARRAY:
-                    traverseArray(parser, fieldMap, progress);
+                    traverseArray(parser, fieldBuffer, progress, nextNode);
                     break;
                 case VALUE_STRING:
-                    addField(fieldMap, progress, '"' + parser.getText() + '"');
+                    if (nextNode.isFieldName()) {
+                        addField(fieldBuffer, progress, nextNode, utf8(parser, true), ValueType.STRING);
+                    }
+                    break;
+                case VALUE_NUMBER_INT:
+                case VALUE_NUMBER_FLOAT:
+                    if (nextNode.isFieldName()) {
+                        addNumberField(parser, fieldBuffer, progress, nextNode);
+                    }
                     break;
                 default:
-                    addField(fieldMap, progress, parser.getText());
+                    if (nextNode.isFieldName()) {
+                        addField(fieldBuffer, progress, nextNode, utf8(parser, false), literalType(nextToken));
+                    }
                     break;
             }
-            progress.path.pop();
         }
     }
 
-    private void traverseArray(final JsonParser parser, final TreeMap<String, List<Value>> fieldMap, final Progress progress) throws IOException {
+    private void traverseArray(final JsonParser parser, final FieldBuffer fieldBuffer, final Progress progress,
+                               final FieldPathTrie.Node node) throws IOException {
         final int arrayID = progress.arrayCount++;
+        final ArrayMembership outer = progress.membership;
 
         JsonToken token;
         int arrayIndex = 0;
         while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
             switch (token) {
                 case START_OBJECT:
-                    progress.membership.putMembership(arrayID, arrayIndex);
-                    traverseObject(parser, fieldMap, progress);
-                    progress.membership.deleteMembership(arrayID);
+                    progress.membership = outer.with(arrayID, arrayIndex);
+                    traverseObject(parser, fieldBuffer, progress, node);
+                    progress.membership = outer;
                     break;
                 case START_ARRAY:
-                    progress.membership.putMembership(arrayID, arrayIndex);
-                    traverseArray(parser, fieldMap, progress);
-                    progress.membership.deleteMembership(arrayID);
+                    progress.membership = outer.with(arrayID, arrayIndex);
+                    traverseArray(parser, fieldBuffer, progress, node);
+                    progress.membership = outer;
                     break;
                 case VALUE_STRING:
-                    addField(fieldMap, progress, '"' + parser.getText() + '"');
+                    if (node.isFieldName()) {
+                        addField(fieldBuffer, progress, node, utf8(parser, true), ValueType.STRING);
+                    }
+                    break;
+                case VALUE_NUMBER_INT:
+                case VALUE_NUMBER_FLOAT:
+                    if (node.isFieldName()) {
+                        addNumberField(parser, fieldBuffer, progress, node);
+                    }
                     break;
                 default:
-                    addField(fieldMap, progress, parser.getText());
+                    if (node.isFieldName()) {
+                        addField(fieldBuffer, progress, node, utf8(parser, false), literalType(token));
+                    }
                     break;
             }
             arrayIndex++;
@@ -244,38 +463,43 @@ final class Event {
         return nameVals;
     }
 
-    private void loadObject(final JsonNode object, final Map<String, List<Value>> fieldMap, final Progress progress) {
+    private void loadObject(final JsonNode object, final FieldBuffer fieldBuffer, final Progress progress,
+                            final FieldPathTrie.Node node) {
         final Iterator<Map.Entry<String, JsonNode>> fields = object.fields();
         while (fields.hasNext()) {
             final Map.Entry<String, JsonNode> field = fields.next();
             final JsonNode val = field.getValue();
 
-            // If we know current step name hasn't been used by any rules, we don't parse into this step.
-            if (!progress.machine.isFieldStepUsed(field.getKey())) {
+            // If no rule uses a field name starting with the path to this step, we don't parse into this step.
+            final FieldPathTrie.Node nextNode = node.step(field.getKey());
+            if (nextNode == null) {
                 continue;
             }
 
-            progress.path.push(field.getKey());
             switch (val.getNodeType()) {
                 case OBJECT:
-                    loadObject(val, fieldMap, progress);
+                    loadObject(val, fieldBuffer, progress, nextNode);
                     break;
                 case ARRAY:
-                    loadArray(val, fieldMap, progress);
+                    loadArray(val, fieldBuffer, progress, nextNode);
                     break;
 
                 case STRING:
-                    addField(fieldMap, progress, '"' + val.asText() + '"');
+                    if (nextNode.isFieldName()) {
+                        addField(fieldBuffer, progress, nextNode, utf8(val.textValue(), true),
+                                ValueType.STRING);
+                    }
                     break;
                 case NULL:
                 case BOOLEAN:
                 case NUMBER:
-                    addField(fieldMap, progress, val.asText());
+                    if (nextNode.isFieldName()) {
+                        addField(fieldBuffer, progress, nextNode, utf8(val.asText(), false), valueType(val));
+                    }
                     break;
                 default:
                     throw new RuntimeException("Unknown JsonNode type for: " + val.asText());
             }
-            progress.path.pop();
         }
     }
 
@@ -308,8 +532,10 @@ final class Event {
         }
     }
 
-    private void loadArray(final JsonNode array, final Map<String, List<Value>> fieldMap, final Progress progress) {
+    private void loadArray(final JsonNode array, final FieldBuffer fieldBuffer, final Progress progress,
+                           final FieldPathTrie.Node node) {
         final int arrayID = progress.arrayCount++;
+        final ArrayMembership outer = progress.membership;
         final Iterator<JsonNode> elements = array.elements();
 
         int arrayIndex = 0;
@@ -317,22 +543,26 @@ final class Event {
             final JsonNode element = elements.next();
             switch (element.getNodeType()) {
             case OBJECT:
-                progress.membership.putMembership(arrayID, arrayIndex);
-                loadObject(element, fieldMap, progress);
-                progress.membership.deleteMembership(arrayID);
+                progress.membership = outer.with(arrayID, arrayIndex);
+                loadObject(element, fieldBuffer, progress, node);
+                progress.membership = outer;
                 break;
             case ARRAY:
-                progress.membership.putMembership(arrayID, arrayIndex);
-                loadArray(element, fieldMap, progress);
-                progress.membership.deleteMembership(arrayID);
+                progress.membership = outer.with(arrayID, arrayIndex);
+                loadArray(element, fieldBuffer, progress, node);
+                progress.membership = outer;
                 break;
             case STRING:
-                addField(fieldMap, progress, '"' + element.asText() + '"');
+                if (node.isFieldName()) {
+                    addField(fieldBuffer, progress, node, utf8(element.textValue(), true), ValueType.STRING);
+                }
                 break;
             case NULL:
             case BOOLEAN:
             case NUMBER:
-                addField(fieldMap, progress, element.asText());
+                if (node.isFieldName()) {
+                    addField(fieldBuffer, progress, node, utf8(element.asText(), false), valueType(element));
+                }
                 break;
             default:
                 throw new RuntimeException("Unknown JsonNode type for: " + element.asText());
@@ -366,10 +596,449 @@ final class Event {
         }
     }
 
-    private void addField(final Map<String, List<Value>> fieldMap, final Progress progress, final String val) {
-        final String key = progress.path.name();
-        final List<Value> vals = fieldMap.computeIfAbsent(key, k -> new ArrayList<>());
-        vals.add(new Value(val, progress.membership));
+    /**
+     * Builds an Event from JSON which arrives in chunks, using a non-blocking parser, so that neither the caller nor
+     *  Ruler need to hold the whole of the event at once. Each chunk is fed in as it arrives and its complete tokens
+     *  are processed straight away, after which the caller may reuse the chunk's storage. When the input is
+     *  complete, finish() returns the Event.
+     *
+     * This does the same job as traverseObject and traverseArray, but since a chunk may end anywhere in the event,
+     *  the position in the event's structure is kept in an explicit stack of frames rather than on the call stack.
+     */
+    static final class Incremental {
+        private static final int INITIAL_DEPTH = 8;
+
+        private final GenericMachine<?> machine;
+        private final MatchContext context;
+        private final JsonParser parser;
+        private final ByteArrayFeeder feeder;
+
+        // one frame per open object or array. For arrays, the array's ID, the index of the current element, and
+        //  the membership the array itself is in.
+        private boolean[] isArray = new boolean[INITIAL_DEPTH];
+        private FieldPathTrie.Node[] nodes = new FieldPathTrie.Node[INITIAL_DEPTH];
+        private int[] arrayIDs = new int[INITIAL_DEPTH];
+        private int[] arrayIndexes = new int[INITIAL_DEPTH];
+        private ArrayMembership[] outerMemberships = new ArrayMembership[INITIAL_DEPTH];
+        private int depth = 0;
+
+        // where the name of the field whose value is next leads in the trie; null if nowhere
+        private FieldPathTrie.Node stepNode = null;
+
+        // when skipping a part of the event no rule uses, the number of objects and arrays still open within it
+        private int skipDepth = 0;
+
+        private boolean started = false;
+        private boolean done = false;
+
+        Incremental(@Nonnull final GenericMachine<?> machine, @Nonnull final MatchContext context)
+                throws IOException {
+            final TokenStreamFactory factory = machine.getTokenStreamFactory();
+            if (!factory.canParseAsync()) {
+                throw new UnsupportedOperationException("Incremental parsing is not supported by " +
+                        factory.getFormatName());
+            }
+            this.machine = machine;
+            this.context = context;
+            this.parser = factory.createNonBlockingByteArrayParser();
+            this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+            clear(context);
+            context.progress.numberValues = readsNumberValues(factory);
+        }
+
+        /**
+         * Processes the next chunk of the event.
+         *
+         * @param chunk the array containing the chunk
+         * @param offset the offset of the chunk in the array
+         * @param length the length of the chunk
+         * @throws IOException if the input can't be parsed
+         * @throws IllegalArgumentException if the top level of the Event is not a JSON object
+         */
+        void feed(final byte[] chunk, final int offset, final int length) throws IOException {
+            if (done) {
+                throw new IllegalStateException("Input has already been finished");
+            }
+            // as when the event is parsed all at once, anything after the event's object is ignored
+            if (isComplete()) {
+                return;
+            }
+            feeder.feedInput(chunk, offset, offset + length);
+            processAvailableTokens();
+        }
+
+        /**
+         * Signals the end of the input, and returns the Event, which is held in the context's storage.
+         *
+         * @throws IOException if the input can't be parsed, or was incomplete
+         * @throws IllegalArgumentException if the top level of the Event is not a JSON object
+         */
+        Event finish() throws IOException {
+            if (done) {
+                throw new IllegalStateException("Input has already been finished");
+            }
+            done = true;
+            if (!isComplete()) {
+                feeder.endOfInput();
+                processAvailableTokens();
+            }
+            parser.close();
+            if (!started || depth > 0) {
+                throw new JsonEOFException(parser, null, "Event is incomplete");
+            }
+            return new Event(context);
+        }
+
+        private void processAvailableTokens() throws IOException {
+            JsonToken token;
+            while (!isComplete() && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                process(token);
+            }
+        }
+
+        // whether the event's object has been closed
+        private boolean isComplete() {
+            return started && depth == 0;
+        }
+
+        private void process(final JsonToken token) throws IOException {
+            if (skipDepth > 0) {
+                if (token.isStructStart()) {
+                    skipDepth++;
+                } else if (token.isStructEnd()) {
+                    skipDepth--;
+                }
+                return;
+            }
+
+            if (depth == 0) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new IllegalArgumentException("Event must be a JSON object");
+                }
+                started = true;
+                push(false, machine.getUsedFieldPathsRoot());
+                return;
+            }
+
+            final Progress progress = context.progress;
+            final int top = depth - 1;
+            if (token.isStructEnd()) {
+                pop();
+                return;
+            }
+            if (token == JsonToken.FIELD_NAME) {
+                // If no rule uses a field name starting with the path to this step, we won't look into this step.
+                stepNode = nodes[top].step(parser.currentName());
+                return;
+            }
+
+            final FieldPathTrie.Node node;
+            final boolean inObject = !isArray[top];
+            if (inObject) {
+                if (stepNode == null) {
+                    if (token.isStructStart()) {
+                        skipDepth = 1;
+                    }
+                    return;
+                }
+                node = stepNode;
+            } else {
+                node = nodes[top];
+            }
+
+            switch (token) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    if (!inObject) {
+                        progress.membership = outerMemberships[top].with(arrayIDs[top], arrayIndexes[top]);
+                    }
+                    push(token == JsonToken.START_ARRAY, node);
+                    return;
+                case VALUE_STRING:
+                    if (node.isFieldName()) {
+                        addField(context.fieldBuffer, progress, node, utf8(parser, true), ValueType.STRING);
+                    }
+                    break;
+                case VALUE_NUMBER_INT:
+                case VALUE_NUMBER_FLOAT:
+                    if (node.isFieldName()) {
+                        addNumberField(parser, context.fieldBuffer, progress, node);
+                    }
+                    break;
+                default:
+                    if (node.isFieldName()) {
+                        addField(context.fieldBuffer, progress, node, utf8(parser, false),
+                                literalType(token));
+                    }
+                    break;
+            }
+            if (!inObject) {
+                arrayIndexes[top]++;
+            }
+        }
+
+        private void push(final boolean array, final FieldPathTrie.Node node) {
+            if (depth == isArray.length) {
+                final int capacity = depth * 2;
+                isArray = Arrays.copyOf(isArray, capacity);
+                nodes = Arrays.copyOf(nodes, capacity);
+                arrayIDs = Arrays.copyOf(arrayIDs, capacity);
+                arrayIndexes = Arrays.copyOf(arrayIndexes, capacity);
+                outerMemberships = Arrays.copyOf(outerMemberships, capacity);
+            }
+            isArray[depth] = array;
+            nodes[depth] = node;
+            if (array) {
+                arrayIDs[depth] = context.progress.arrayCount++;
+                arrayIndexes[depth] = 0;
+                outerMemberships[depth] = context.progress.membership;
+            }
+            depth++;
+        }
+
+        private void pop() {
+            depth--;
+            nodes[depth] = null;
+            outerMemberships[depth] = null;
+
+            // back in an enclosing array, move on to its next element
+            if (depth > 0 && isArray[depth - 1]) {
+                context.progress.membership = outerMemberships[depth - 1];
+                arrayIndexes[depth - 1]++;
+            }
+        }
+    }
+
+    /*
+     * The loadMap family walks an event held as Java objects. Maps are treated as JSON objects and Iterables and
+     *  arrays as JSON arrays, while CharSequences, Characters and Enums are string values, and Numbers, Booleans and
+     *  null are represented as they would be in JSON. Any other object, and anything below it, is converted to a
+     *  JsonNode tree by the ObjectMapper and handed over to loadObject and loadArray.
+     */
+    private void loadMap(final Map<?, ?> object, final FieldBuffer fieldBuffer, final Progress progress,
+                         final FieldPathTrie.Node node) {
+        for (Map.Entry<?, ?> entry : object.entrySet()) {
+            final String key = String.valueOf(entry.getKey());
+
+            // If no rule uses a field name starting with the path to this step, we don't look into this step.
+            final FieldPathTrie.Node nextNode = node.step(key);
+            if (nextNode == null) {
+                continue;
+            }
+
+            loadMapValue(toLoadable(entry.getValue()), fieldBuffer, progress, nextNode);
+        }
+    }
+
+    private void loadMapArray(final Iterator<?> elements, final FieldBuffer fieldBuffer, final Progress progress,
+                              final FieldPathTrie.Node node) {
+        final int arrayID = progress.arrayCount++;
+        final ArrayMembership outer = progress.membership;
+
+        int arrayIndex = 0;
+        while (elements.hasNext()) {
+            final Object element = toLoadable(elements.next());
+            if (isContainer(element)) {
+                progress.membership = outer.with(arrayID, arrayIndex);
+                loadMapValue(element, fieldBuffer, progress, node);
+                progress.membership = outer;
+            } else {
+                loadMapValue(element, fieldBuffer, progress, node);
+            }
+            arrayIndex++;
+        }
+    }
+
+    // the value has been through toLoadable()
+    private void loadMapValue(final Object val, final FieldBuffer fieldBuffer, final Progress progress,
+                              final FieldPathTrie.Node node) {
+        if (val instanceof JsonNode) {
+            final JsonNode jsonNode = (JsonNode) val;
+            switch (jsonNode.getNodeType()) {
+                case OBJECT:
+                    loadObject(jsonNode, fieldBuffer, progress, node);
+                    break;
+                case ARRAY:
+                    loadArray(jsonNode, fieldBuffer, progress, node);
+                    break;
+                case STRING:
+                    if (node.isFieldName()) {
+                        addField(fieldBuffer, progress, node, utf8(jsonNode.textValue(), true),
+                                ValueType.STRING);
+                    }
+                    break;
+                case NULL:
+                case BOOLEAN:
+                case NUMBER:
+                    if (node.isFieldName()) {
+                        addField(fieldBuffer, progress, node, utf8(jsonNode.asText(), false),
+                                valueType(jsonNode));
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("Unknown JsonNode type for: " + jsonNode.asText());
+            }
+        } else if (val instanceof Map) {
+            loadMap((Map<?, ?>) val, fieldBuffer, progress, node);
+        } else if (val instanceof Iterable) {
+            loadMapArray(((Iterable<?>) val).iterator(), fieldBuffer, progress, node);
+        } else if (val != null && val.getClass().isArray()) {
+            loadMapArray(arrayIterator(val), fieldBuffer, progress, node);
+        } else if (node.isFieldName()) {
+            if (val instanceof CharSequence || val instanceof Character) {
+                addField(fieldBuffer, progress, node, utf8(val.toString(), true), ValueType.STRING);
+            } else if (val instanceof Enum) {
+                addField(fieldBuffer, progress, node, utf8(((Enum<?>) val).name(), true), ValueType.STRING);
+            } else {
+                addField(fieldBuffer, progress, node, utf8(String.valueOf(val), false),
+                        val instanceof Number ? ValueType.NUMBER : ValueType.LITERAL);
+            }
+        }
+    }
+
+    // leaves the values loadMapValue understands alone, and converts anything else to a JsonNode
+    private static Object toLoadable(final Object val) {
+        if (val == null || val instanceof JsonNode || val instanceof Map || val instanceof Iterable ||
+                val.getClass().isArray() || val instanceof CharSequence || val instanceof Character ||
+                val instanceof Enum || val instanceof Number || val instanceof Boolean) {
+            return val;
+        }
+        return OBJECT_MAPPER.valueToTree(val);
+    }
+
+    // the value has been through toLoadable()
+    private static boolean isContainer(final Object val) {
+        if (val instanceof JsonNode) {
+            return ((JsonNode) val).isContainerNode();
+        }
+        return val instanceof Map || val instanceof Iterable || (val != null && val.getClass().isArray());
+    }
+
+    private static Iterator<?> arrayIterator(final Object array) {
+        if (array instanceof Object[]) {
+            return Arrays.asList((Object[]) array).iterator();
+        }
+
+        // an array of primitives
+        final int length = Array.getLength(array);
+        return new Iterator<Object>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < length;
+            }
+
+            @Override
+            public Object next() {
+                if (index >= length) {
+                    throw new NoSuchElementException();
+                }
+                return Array.get(array, index++);
+            }
+        };
+    }
+
+    // the trie node reached by the field's path provides its name, so the path's steps never need joining
+    private static void addField(final FieldBuffer fieldBuffer, final Progress progress,
+                                 final FieldPathTrie.Node node, final byte[] val, final ValueType valueType) {
+        fieldBuffer.add(node.getFieldName(), node.getFieldId(), val, valueType, progress.membership);
+    }
+
+    // the text of a number is always kept for string matching, but the number's value is kept too if it's to be used
+    private static void addNumberField(final JsonParser parser, final FieldBuffer fieldBuffer, final Progress progress,
+                                       final FieldPathTrie.Node node) throws IOException {
+        final Number number = progress.numberValues ? parser.getNumberValue() : null;
+        fieldBuffer.add(node.getFieldName(), node.getFieldId(), utf8(parser, false), ValueType.NUMBER, number,
+                progress.membership);
+    }
+
+    // the type of a scalar token other than a string or number; binary formats may also have embedded objects
+    private static ValueType literalType(final JsonToken token) {
+        return token == JsonToken.VALUE_EMBEDDED_OBJECT ? ValueType.UNKNOWN : ValueType.LITERAL;
+    }
+
+    // the type of a null, boolean or number node
+    private static ValueType valueType(final JsonNode node) {
+        return node.isNumber() ? ValueType.NUMBER : ValueType.LITERAL;
+    }
+
+    /**
+     * Encodes the text of the parser's current scalar token as UTF-8, straight from the parser's character buffer,
+     *  so that no intermediate Strings are created.
+     *
+     * @param parser the parser, positioned on a scalar token
+     * @param quoted whether to surround the value with '"', as is done for string values
+     * @return the UTF-8 bytes
+     */
+    static byte[] utf8(final JsonParser parser, final boolean quoted) throws IOException {
+        final char[] chars = parser.getTextCharacters();
+        final int offset = parser.getTextOffset();
+        final int end = offset + parser.getTextLength();
+
+        final byte[] bytes = new byte[utf8Length(chars, offset, end) + (quoted ? 2 : 0)];
+        int pos = 0;
+        if (quoted) {
+            bytes[pos++] = '"';
+        }
+        for (int i = offset; i < end; i++) {
+            final char c = chars[i];
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xc0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                final int cp = Character.toCodePoint(c, chars[++i]);
+                bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, replaced as String.getBytes() would do
+                bytes[pos++] = '?';
+            } else {
+                bytes[pos++] = (byte) (0xe0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        if (quoted) {
+            bytes[pos] = '"';
+        }
+        return bytes;
+    }
+
+    private static int utf8Length(final char[] chars, final int offset, final int end) {
+        int length = 0;
+        for (int i = offset; i < end; i++) {
+            final char c = chars[i];
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] utf8(final String val, final boolean quoted) {
+        if (!quoted) {
+            return val.getBytes(StandardCharsets.UTF_8);
+        }
+        final byte[] unquoted = val.getBytes(StandardCharsets.UTF_8);
+        final byte[] bytes = new byte[unquoted.length + 2];
+        bytes[0] = '"';
+        System.arraycopy(unquoted, 0, bytes, 1, unquoted.length);
+        bytes[bytes.length - 1] = '"';
+        return bytes;
     }
 
     static void recordNameVal(final Map<String, List<String>> map, final Stack<String> path, final String val) {
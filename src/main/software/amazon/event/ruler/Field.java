@@ -1,20 +1,124 @@
 package software.amazon.event.ruler;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Represents the name and value of a data field in an event that Ruler will match.
  *
- * Both name and value are represented as strings.  Also provided for each field is information about its position
- *  in any arrays the event may contain. This is used to guard against a rule matching a set of fields which are in
- *  peer elements of an array, a situation which it turns out is perceived by users as a bug.
+ * The name is a string, which for fields of an Event also has an id, from the machine's FieldPathTrie, that NameState
+ *  uses to find the field's transitions without hashing the name; other fields have the id -1.
+ *
+ * The value is held as the UTF-8 bytes that the byte machines consume, encoded just once per event; string values
+ *  include their surrounding quotes, as they would appear in JSON. Event also records what type of JSON value it was,
+ *  so that numeric and IP matching can pass over values that can't be numbers or IP addresses without trying to
+ *  convert them. The String form of the value is only needed for numeric and IP matching, and is decoded lazily on
+ *  first use, as are the numeric and IP forms derived from it, which are then shared by all the ByteMachines that the
+ *  field is matched against.
+ *
+ * None of this lazy decoding is synchronized, so a Field may only be used by one thread at a time. The one exception
+ *  is matching an event in parallel, where the pool's threads share the event's Fields; ACFinder works out the
+ *  numeric and IP forms of every field before handing them out, so that the threads only ever read them.
+ *
+ * Also provided for each field is information about its position in any arrays the event may contain. This is used to
+ *  guard against a rule matching a set of fields which are in peer elements of an array, a situation which it turns
+ *  out is perceived by users as a bug.
  */
 class Field {
+
+    /**
+     * The type of JSON value a field has.
+     */
+    enum ValueType {
+        STRING,
+        NUMBER,
+        // true, false or null
+        LITERAL,
+        // not known, as for values which didn't come from an Event; these are checked for every possible form
+        UNKNOWN
+    }
+
     final String name;
-    final String val;
+    final int nameId;
+    final byte[] valBytes;
+    final ValueType valueType;
+
+    // the value of a number read from a binary format, which is compared as it is rather than parsed from its text
+    final Number number;
     final ArrayMembership arrayMembership;
 
+    // decoded from valBytes on demand; as Strings are immutable, a thread that sees another's is safe to use it
+    private String val;
+
+    // the value's forms for numeric and IP matching, encoded for the byte machines, worked out on first use and then
+    //  kept for every ByteMachine the field is matched against; null if the value has no such form
+    private byte[] comparableNumber;
+    private boolean comparableNumberDone = false;
+    private byte[] ip;
+    private boolean ipDone = false;
+
     Field(final String name, final String val, final ArrayMembership arrayMembership) {
-        this.name = name;
+        this(name, -1, val.getBytes(StandardCharsets.UTF_8), ValueType.UNKNOWN, null, arrayMembership);
         this.val = val;
+    }
+
+    Field(final String name, final int nameId, final byte[] valBytes, final ValueType valueType, final Number number,
+          final ArrayMembership arrayMembership) {
+        this.name = name;
+        this.nameId = nameId;
+        this.valBytes = valBytes;
+        this.valueType = valueType;
+        this.number = number;
         this.arrayMembership = arrayMembership;
     }
+
+    String val() {
+        if (val == null) {
+            val = new String(valBytes, StandardCharsets.UTF_8);
+        }
+        return val;
+    }
+
+    /**
+     * @return the value as generated by ComparableNumber, or null if it isn't a number we can compare
+     */
+    byte[] comparableNumber() {
+        if (!comparableNumberDone) {
+            byte[] result = null;
+            if (valueType == ValueType.NUMBER || valueType == ValueType.UNKNOWN) {
+                final String comparable = number != null ?
+                        ComparableNumber.generateIfComparable(number) : ComparableNumber.generateIfComparable(val());
+                if (comparable != null) {
+                    result = comparable.getBytes(StandardCharsets.UTF_8);
+                }
+            }
+            comparableNumber = result;
+            comparableNumberDone = true;
+        }
+        return comparableNumber;
+    }
+
+    /**
+     * @return the value as generated by CIDR.ipToString, or null if it isn't an IP address. A quoted value is tried
+     *  without its quotes, and an unquoted one as it is, to help people whose events aren't in JSON.
+     */
+    byte[] ip() {
+        if (!ipDone) {
+            byte[] result = null;
+            if (valueType == ValueType.STRING || valueType == ValueType.UNKNOWN) {
+                final String valString = val();
+                final String ipString;
+                if (valString.length() >= 2 && valString.startsWith("\"") && valString.endsWith("\"")) {
+                    ipString = CIDR.ipToStringIfValid(valString.substring(1, valString.length() - 1));
+                } else {
+                    ipString = CIDR.ipToStringIfValid(valString);
+                }
+                if (ipString != null) {
+                    result = ipString.getBytes(StandardCharsets.UTF_8);
+                }
+            }
+            ip = result;
+            ipDone = true;
+        }
+        return ip;
+    }
 }
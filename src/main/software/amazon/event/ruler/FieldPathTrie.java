@@ -0,0 +1,212 @@
+package software.amazon.event.ruler;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the field names used by the rules in a machine, as a trie whose edges are the "."-separated steps of the
+ *  names. Event construction walks the trie alongside the structure of the event, which lets it skip any part of the
+ *  event that cannot lead to a field name used by some rule. For example, with rules on "detail.foo" and "bar", the
+ *  "detail.bar" subtree of an event is skipped, as is a "detail" field with a simple value.
+ *
+ * A field name is recorded once for each transition in the machine that uses it, and counts are kept so that it is
+ *  only forgotten when the last of those transitions goes away.
+ *
+ * Each field name is also given a small integer id while it is in use, so that the ids stay as few as the names the
+ *  rules use; once a name is forgotten, its id is given to the next new name. The terminal node carries the id and the
+ *  name itself, so that Event construction can tag each field with both without joining the steps of its path, and
+ *  NameState can find a field's transitions by id rather than by hashing its name. An event built before an id
+ *  changed hands may still be being matched after, so NameState checks the name of any transition it finds by id.
+ *
+ * Like the NameState maps, the trie is updated by one thread at a time, under GenericMachine's lock, while it may be
+ *  read concurrently by any number of matching threads.
+ */
+@ThreadSafe
+class FieldPathTrie {
+
+    private static final char SEPARATOR = '.';
+
+    /**
+     * A node of the trie, representing a path that is either a used field name or a prefix of one.
+     */
+    static final class Node {
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+
+        // the number of recorded field names which end at or pass through this node; only touched by the writer
+        private int pathCount = 0;
+
+        // the number of recorded field names which end at this node
+        private volatile int fieldNameCount = 0;
+
+        // set before fieldNameCount becomes non-zero, and not changed again until it is back to zero
+        private String fieldName;
+        private int fieldId = -1;
+
+        /**
+         * Moves from this node by one step of an event's structure.
+         *
+         * @param stepName the name of an event key, which may itself contain "."
+         * @return the node reached, or null if no used field name starts with the resulting path
+         */
+        Node step(final String stepName) {
+            if (stepName.indexOf(SEPARATOR) < 0) {
+                return children.get(stepName);
+            }
+
+            // Keys containing dots, like { "a.b": 1 }, flatten to the same field name as { "a": { "b": 1 } }
+            Node node = this;
+            int start = 0;
+            while (node != null) {
+                final int end = stepName.indexOf(SEPARATOR, start);
+                if (end < 0) {
+                    return node.children.get(stepName.substring(start));
+                }
+                node = node.children.get(stepName.substring(start, end));
+                start = end + 1;
+            }
+            return null;
+        }
+
+        /**
+         * @return true if the path leading to this node is a field name used by some rule
+         */
+        boolean isFieldName() {
+            return fieldNameCount > 0;
+        }
+
+        /**
+         * @return the field name ending at this node; only meaningful if isFieldName() is true
+         */
+        String getFieldName() {
+            return fieldName;
+        }
+
+        /**
+         * @return the id of the field name ending at this node; only meaningful if isFieldName() is true
+         */
+        int getFieldId() {
+            return fieldId;
+        }
+    }
+
+    private final Node root = new Node();
+
+    // the terminal node for each recorded field name
+    private final Map<String, Node> fieldNames = new ConcurrentHashMap<>();
+
+    // the id of each field name in use, and the ids of names that have been forgotten, for reuse
+    private final Map<String, Integer> fieldIds = new ConcurrentHashMap<>();
+    private final Deque<Integer> freeFieldIds = new ArrayDeque<>();
+    private int nextFieldId = 0;
+
+    Node getRoot() {
+        return root;
+    }
+
+    /**
+     * @param fieldName a flattened field name
+     * @return true if the field name is used by some rule
+     */
+    boolean contains(final String fieldName) {
+        return fieldNames.containsKey(fieldName);
+    }
+
+    /**
+     * Get the id for a field name, assigning a free one if the name is not in use. Must only be called by the thread
+     *  updating the machine, which must then record the name with add(), or the id is not freed again.
+     *
+     * @param fieldName a flattened field name
+     * @return the field name's id, which is dense, starting at 0
+     */
+    int fieldId(final String fieldName) {
+        Integer id = fieldIds.get(fieldName);
+        if (id == null) {
+            id = freeFieldIds.isEmpty() ? Integer.valueOf(nextFieldId++) : freeFieldIds.pop();
+            fieldIds.put(fieldName, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return one more than the highest id handed out so far
+     */
+    int fieldIdLimit() {
+        return nextFieldId;
+    }
+
+    boolean isEmpty() {
+        return fieldNames.isEmpty();
+    }
+
+    /**
+     * Record a use of a field name. Must only be called by the thread updating the machine.
+     *
+     * @param fieldName the flattened field name
+     */
+    void add(final String fieldName) {
+        Node node = root;
+        node.pathCount++;
+        int start = 0;
+        int end;
+        do {
+            end = endOfStep(fieldName, start);
+            node = node.children.computeIfAbsent(fieldName.substring(start, end), k -> new Node());
+            node.pathCount++;
+            start = end + 1;
+        } while (end < fieldName.length());
+
+        if (node.fieldNameCount == 0) {
+            node.fieldName = fieldName;
+            node.fieldId = fieldId(fieldName);
+        }
+        node.fieldNameCount++;
+        fieldNames.put(fieldName, node);
+    }
+
+    /**
+     * Forget one use of a field name, as recorded by add(). Must only be called by the thread updating the machine.
+     *
+     * @param fieldName the flattened field name
+     */
+    void remove(final String fieldName) {
+        final Node terminal = fieldNames.get(fieldName);
+        if (terminal == null) {
+            return;
+        }
+        if (--terminal.fieldNameCount == 0) {
+            fieldNames.remove(fieldName);
+            final Integer id = fieldIds.remove(fieldName);
+            if (id != null) {
+                freeFieldIds.push(id);
+            }
+        }
+
+        Node node = root;
+        node.pathCount--;
+        int start = 0;
+        int end;
+        do {
+            end = endOfStep(fieldName, start);
+            final String step = fieldName.substring(start, end);
+            final Node child = node.children.get(step);
+            if (--child.pathCount == 0) {
+                node.children.remove(step);
+            }
+            node = child;
+            start = end + 1;
+        } while (end < fieldName.length());
+    }
+
+    private static int endOfStep(final String fieldName, final int start) {
+        final int end = fieldName.indexOf(SEPARATOR, start);
+        return end < 0 ? fieldName.length() : end;
+    }
+
+    @Override
+    public String toString() {
+        return fieldNames.keySet().toString();
+    }
+}
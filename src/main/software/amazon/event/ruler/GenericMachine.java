@@ -1,22 +1,30 @@
 package software.amazon.event.ruler;
 
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.TokenStreamFactory;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static software.amazon.event.ruler.SetOperations.intersection;
@@ -51,13 +59,12 @@ public class GenericMachine<T> {
     private final NameState startState = new NameState();
 
     /**
-     * A Map of all reference counts for each step in field name separated by "." used by current rules.
-     * when reference count is 0, we could safely remove the key from map.
-     * Use ConcurrentHashMap to support concurrent access.
-     * For example, if we get rule { "a" : { "b" : [ 123 ] } }, the flatten field name is "a.b", the step name
-     * will be "a" and "b", which will be tracked in this map.
+     * A trie of all the field names used by current rules, keyed by the steps of the field names separated by ".".
+     * For example, if we get rule { "a" : { "b" : [ 123 ] } }, the flatten field name is "a.b", which will be
+     * tracked as the path "a" then "b" in the trie. Event parsing walks this trie to skip parts of the event that
+     * no rule can use.
      */
-    private final Map<String, Integer> fieldStepsUsedRefCount = new ConcurrentHashMap<>();
+    private final FieldPathTrie usedFieldPaths = new FieldPathTrie();
 
     /**
      * Generate context for a sub-rule that can be passed through relevant methods.
@@ -80,15 +87,372 @@ public class GenericMachine<T> {
      * @param jsonEvent The JSON representation of the event
      * @return list of rule names that match. The list may be empty but never null.
      */
-    @SuppressWarnings("unchecked")
     public List<T> rulesForJSONEvent(final String jsonEvent) throws Exception {
-        final Event event = new Event(jsonEvent, this);
-        return (List<T>) ACFinder.matchRules(event, this, subRuleContextGenerator);
+        return rulesForJSONEvent(jsonEvent, new MatchContext());
     }
-    @SuppressWarnings("unchecked")
+
+    /**
+     * As rulesForJSONEvent(String), reusing the working storage in the provided context rather than allocating it
+     *  afresh. The context must not be used by more than one thread at a time.
+     * @param jsonEvent The JSON representation of the event
+     * @param context The working storage to use while matching
+     * @return list of rule names that match. The list may be empty but never null.
+     */
+    public List<T> rulesForJSONEvent(final String jsonEvent, final MatchContext context) throws Exception {
+        final Event event = new Event(jsonEvent, this, context);
+        return matchEvent(event, context);
+    }
+
+    /**
+     * As rulesForJSONEvent(String), but passing each rule that matches to the provided consumer as it is found,
+     *  rather than collecting them into a list. Each matching rule is passed exactly once, in no particular order.
+     * @param jsonEvent The JSON representation of the event
+     * @param matchingRules The consumer to pass the rules that match to
+     */
+    public void rulesForJSONEvent(final String jsonEvent, final Consumer<? super T> matchingRules) throws Exception {
+        rulesForJSONEvent(jsonEvent, new MatchContext(), matchingRules);
+    }
+
+    /**
+     * As rulesForJSONEvent(String, Consumer), reusing the working storage in the provided context. The consumer must
+     *  not use the same context while it is being passed rules.
+     * @param jsonEvent The JSON representation of the event
+     * @param context The working storage to use while matching
+     * @param matchingRules The consumer to pass the rules that match to
+     */
+    public void rulesForJSONEvent(final String jsonEvent, final MatchContext context,
+                                  final Consumer<? super T> matchingRules) throws Exception {
+        final Event event = new Event(jsonEvent, this, context);
+        matchEvent(event, context, matchingRules);
+    }
+
+    /**
+     * As rulesForJSONEvent(String), but returning no more than maxResults rules. Once that many have been found,
+     *  matching stops, which bounds the time and memory spent on an event that matches a great many rules. The
+     *  result says whether any matching rules were left out. The limits set with Builder.withMatchLimits apply too,
+     *  as with rulesForJSONEvent(String, MatchLimits).
+     * @param jsonEvent The JSON representation of the event
+     * @param maxResults The most rules to return, at least 1
+     * @return the rules that match, up to maxResults, and whether there were more
+     */
+    public MatchResult<T> rulesForJSONEvent(final String jsonEvent, final int maxResults) throws Exception {
+        return rulesForJSONEvent(jsonEvent, maxResults, new MatchContext());
+    }
+
+    /**
+     * As rulesForJSONEvent(String, int), reusing the working storage in the provided context.
+     * @param jsonEvent The JSON representation of the event
+     * @param maxResults The most rules to return, at least 1
+     * @param context The working storage to use while matching
+     * @return the rules that match, up to maxResults, and whether there were more
+     */
+    public MatchResult<T> rulesForJSONEvent(final String jsonEvent, final int maxResults,
+                                            final MatchContext context) throws Exception {
+        return rulesForJSONEvent(jsonEvent, MatchLimits.builder().withMaxResults(maxResults).build(), context);
+    }
+
+    /**
+     * As rulesForJSONEvent(String), but stopping once any of the given limits is reached, so as to bound the work done
+     *  on an event that would take very long to match. The result holds the rules found up to then and says which
+     *  limit, if any, stopped matching. The limits set with Builder.withMatchLimits apply too, and where both set
+     *  the same limit, the lower holds.
+     * @param jsonEvent The JSON representation of the event
+     * @param limits The limits on matching the event, counting the time to parse it
+     * @return the rules that match, up to the limits, and why matching stopped
+     */
+    public MatchResult<T> rulesForJSONEvent(final String jsonEvent, final MatchLimits limits) throws Exception {
+        return rulesForJSONEvent(jsonEvent, limits, new MatchContext());
+    }
+
+    /**
+     * As rulesForJSONEvent(String, MatchLimits), reusing the working storage in the provided context.
+     * @param jsonEvent The JSON representation of the event
+     * @param limits The limits on matching the event, counting the time to parse it
+     * @param context The working storage to use while matching
+     * @return the rules that match, up to the limits, and why matching stopped
+     */
+    public MatchResult<T> rulesForJSONEvent(final String jsonEvent, final MatchLimits limits,
+                                            final MatchContext context) throws Exception {
+        final MatchLimits applied = getMatchLimits().within(limits);
+        final long startNanos = applied.hasTimeout() ? System.nanoTime() : 0;
+        final Event event = new Event(jsonEvent, this, context);
+        return matchEvent(event, context, applied, startNanos);
+    }
+
+    /**
+     * Return whether any rule matches the fields in the event, in the same Array-Consistent way as
+     *  rulesForJSONEvent(String). Matching stops at the first rule found, and if the machine has no rules, the event
+     *  is not even parsed.
+     * @param jsonEvent The JSON representation of the event
+     * @return true if any rule matches the event
+     */
+    public boolean matchesAnyJSONEvent(final String jsonEvent) throws Exception {
+        return matchesAnyJSONEvent(jsonEvent, new MatchContext());
+    }
+
+    /**
+     * As matchesAnyJSONEvent(String), reusing the working storage in the provided context.
+     * @param jsonEvent The JSON representation of the event
+     * @param context The working storage to use while matching
+     * @return true if any rule matches the event
+     */
+    public boolean matchesAnyJSONEvent(final String jsonEvent, final MatchContext context) throws Exception {
+        if (isEmpty()) {
+            return false;
+        }
+        final Event event = new Event(jsonEvent, this, context);
+        return ACFinder.matchesAny(event, this, subRuleContextGenerator, context);
+    }
+
+    /**
+     * Match each of a batch of events, as rulesForJSONEvent(String) would, returning the results in the same order as
+     *  the events. One MatchContext serves the whole batch, so the working storage that grows to fit the first events
+     *  is reused for the rest, rather than each event paying to set it up. If any event can't be parsed, the exception
+     *  is thrown and no results are returned.
+     * @param jsonEvents The JSON representations of the events
+     * @return for each event, the list of rule names that match it
+     */
+    public List<List<T>> rulesForJSONEvents(final List<String> jsonEvents) throws Exception {
+        return rulesForJSONEvents(jsonEvents, new MatchContext());
+    }
+
+    /**
+     * As rulesForJSONEvents(List), using the working storage in the provided context.
+     * @param jsonEvents The JSON representations of the events
+     * @param context The working storage to use while matching
+     * @return for each event, the list of rule names that match it
+     */
+    public List<List<T>> rulesForJSONEvents(final List<String> jsonEvents, final MatchContext context)
+            throws Exception {
+        final List<List<T>> results = new ArrayList<>(jsonEvents.size());
+        for (final String jsonEvent : jsonEvents) {
+            final Event event = new Event(jsonEvent, this, context);
+            results.add(matchEvent(event, context));
+        }
+        return results;
+    }
+
+    /**
+     * As rulesForJSONEvents(List), spreading the work of matching the batch over up to parallelism threads: the calling
+     *  thread and parallelism - 1 tasks run on the executor. Each takes the next unmatched event from the batch until
+     *  none are left, using a MatchContext of its own, so that slow events don't hold up a fixed share of the batch.
+     *  The results are in the same order as the events. The executor may be a ForkJoinPool, including the one the
+     *  caller is running in. If any event can't be parsed, the rest of the batch is abandoned and the exception is
+     *  thrown.
+     * @param jsonEvents The JSON representations of the events
+     * @param executor The executor to run the extra matching tasks on
+     * @param parallelism The most threads to match on at once, at least 1
+     * @return for each event, the list of rule names that match it
+     */
+    public List<List<T>> rulesForJSONEvents(final List<String> jsonEvents, final Executor executor,
+                                            final int parallelism) throws Exception {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1, not " + parallelism);
+        }
+        final int eventCount = jsonEvents.size();
+        final int taskCount = Math.min(parallelism, eventCount) - 1;
+        if (taskCount <= 0) {
+            return rulesForJSONEvents(jsonEvents);
+        }
+
+        final Object[] results = new Object[eventCount];
+        final AtomicInteger nextEvent = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final Runnable worker = () -> {
+            final MatchContext context = new MatchContext();
+            try {
+                for (int i = nextEvent.getAndIncrement(); i < eventCount; i = nextEvent.getAndIncrement()) {
+                    final Event event = new Event(jsonEvents.get(i), this, context);
+                    results[i] = matchEvent(event, context);
+                }
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+                // no point the others going on
+                nextEvent.set(eventCount);
+            }
+        };
+
+        final CompletableFuture<?>[] tasks = new CompletableFuture<?>[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            tasks[i] = CompletableFuture.runAsync(worker, executor);
+        }
+        worker.run();
+        CompletableFuture.allOf(tasks).join();
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        @SuppressWarnings("unchecked")
+        final List<List<T>> matches = (List<List<T>>) (List<?>) Arrays.asList(results);
+        return matches;
+    }
+
+    /**
+     * As rulesForJSONEvents(List), with each event provided as an array of UTF-8 encoded JSON bytes, which are parsed
+     *  in place. If the machine was built with a TokenStreamFactory, the bytes are instead read in that factory's
+     *  format.
+     * @param jsonEvents The UTF-8 encoded JSON representations of the events
+     * @return for each event, the list of rule names that match it
+     */
+    public List<List<T>> rulesForJSONEvents(final Iterator<byte[]> jsonEvents) throws Exception {
+        return rulesForJSONEvents(jsonEvents, new MatchContext());
+    }
+
+    /**
+     * As rulesForJSONEvents(Iterator), using the working storage in the provided context.
+     * @param jsonEvents The UTF-8 encoded JSON representations of the events
+     * @param context The working storage to use while matching
+     * @return for each event, the list of rule names that match it
+     */
+    public List<List<T>> rulesForJSONEvents(final Iterator<byte[]> jsonEvents, final MatchContext context)
+            throws Exception {
+        final List<List<T>> results = new ArrayList<>();
+        while (jsonEvents.hasNext()) {
+            final byte[] jsonEvent = jsonEvents.next();
+            final Event event = new Event(jsonEvent, 0, jsonEvent.length, this, context);
+            results.add(matchEvent(event, context));
+        }
+        return results;
+    }
+
     public List<T> rulesForJSONEvent(final JsonNode eventRoot) {
-        final Event event = new Event(eventRoot, this);
-        return (List<T>) ACFinder.matchRules(event, this, subRuleContextGenerator);
+        return rulesForJSONEvent(eventRoot, new MatchContext());
+    }
+
+    /**
+     * As rulesForJSONEvent(JsonNode), reusing the working storage in the provided context rather than allocating it
+     *  afresh. The context must not be used by more than one thread at a time.
+     * @param eventRoot The root of the parsed JSON event
+     * @param context The working storage to use while matching
+     * @return list of rule names that match. The list may be empty but never null.
+     */
+    public List<T> rulesForJSONEvent(final JsonNode eventRoot, final MatchContext context) {
+        final Event event = new Event(eventRoot, this, context);
+        return matchEvent(event, context);
+    }
+
+    /**
+     * As rulesForJSONEvent(String), but with the event provided as UTF-8 encoded JSON bytes. The bytes are parsed in
+     *  place, so there is no need to decode them into a String first. If the machine was built with a
+     *  TokenStreamFactory, the bytes are instead read in that factory's format.
+     * @param jsonEvent Array containing the UTF-8 encoded JSON representation of the event
+     * @param offset Offset of the first byte of the event within jsonEvent
+     * @param length Number of bytes making up the event
+     * @return list of rule names that match. The list may be empty but never null.
+     */
+    public List<T> rulesForJSONEvent(final byte[] jsonEvent, final int offset, final int length) throws Exception {
+        return rulesForJSONEvent(jsonEvent, offset, length, new MatchContext());
+    }
+
+    /**
+     * As rulesForJSONEvent(byte[], int, int), reusing the working storage in the provided context rather than
+     *  allocating it afresh. The context must not be used by more than one thread at a time.
+     * @param jsonEvent Array containing the UTF-8 encoded JSON representation of the event
+     * @param offset Offset of the first byte of the event within jsonEvent
+     * @param length Number of bytes making up the event
+     * @param context The working storage to use while matching
+     * @return list of rule names that match. The list may be empty but never null.
+     */
+    public List<T> rulesForJSONEvent(final byte[] jsonEvent, final int offset, final int length,
+                                     final MatchContext context) throws Exception {
+        final Event event = new Event(jsonEvent, offset, length, this, context);
+        return matchEvent(event, context);
+    }
+
+    /**
+     * As rulesForJSONEvent(String), but with the event provided as UTF-8 encoded JSON bytes, between the buffer's
+     *  position and limit. The buffer's position, limit and mark are left unchanged. If the machine was built with
+     *  a TokenStreamFactory, the bytes are instead read in that factory's format.
+     * @param jsonEvent Buffer containing the UTF-8 encoded JSON representation of the event
+     * @return list of rule names that match. The list may be empty but never null.
+     */
+    public List<T> rulesForJSONEvent(final ByteBuffer jsonEvent) throws Exception {
+        return rulesForJSONEvent(jsonEvent, new MatchContext());
+    }
+
+    /**
+     * As rulesForJSONEvent(ByteBuffer), reusing the working storage in the provided context rather than allocating it
+     *  afresh. The context must not be used by more than one thread at a time.
+     * @param jsonEvent Buffer containing the UTF-8 encoded JSON representation of the event
+     * @param context The working storage to use while matching
+     * @return list of rule names that match. The list may be empty but never null.
+     */
+    public List<T> rulesForJSONEvent(final ByteBuffer jsonEvent, final MatchContext context) throws Exception {
+        final Event event = new Event(jsonEvent, this, context);
+        return matchEvent(event, context);
+    }
+
+    /**
+     * Start matching an event whose JSON will be provided in chunks, as it arrives, rather than all at once. See
+     *  IncrementalMatcher for details. If the machine was built with a TokenStreamFactory, the chunks are read in
+     *  that factory's format, which must support non-blocking parsing.
+     * @return the matcher to feed the event's chunks to
+     * @throws UnsupportedOperationException if the machine's TokenStreamFactory can't parse incrementally
+     */
+    public IncrementalMatcher<T> incrementalMatcher() throws IOException {
+        return incrementalMatcher(new MatchContext());
+    }
+
+    /**
+     * As incrementalMatcher(), using the working storage in the provided context. The context must not be used for
+     *  anything else until the matcher has finished.
+     * @param context The working storage to use while matching
+     * @return the matcher to feed the event's chunks to
+     */
+    public IncrementalMatcher<T> incrementalMatcher(final MatchContext context) throws IOException {
+        return new IncrementalMatcher<>(this, context);
+    }
+
+    // Array-Consistent matching of an Event built in the provided context
+    @SuppressWarnings("unchecked")
+    final List<T> matchEvent(final Event event, final MatchContext context) {
+        return (List<T>) ACFinder.matchRules(event, this, subRuleContextGenerator, context);
+    }
+
+    // as above, but stopping once any of the limits is reached; one more rule is looked for than is to be returned, so
+    //  as to tell whether there were more, and finding it is what stops matching for MAX_RESULTS
+    @SuppressWarnings("unchecked")
+    final MatchResult<T> matchEvent(final Event event, final MatchContext context, final MatchLimits limits,
+                                    final long startNanos) {
+        final List<T> matchingRules = new ArrayList<>();
+        final int maxResults = limits.getMaxResults();
+        final int wanted = maxResults == Integer.MAX_VALUE ? maxResults : maxResults + 1;
+        final MatchResult.StopReason stopReason = ACFinder.matchRules(event, this, subRuleContextGenerator, context,
+                rule -> matchingRules.add((T) rule), wanted, limits, startNanos);
+        if (matchingRules.size() > maxResults) {
+            matchingRules.remove(matchingRules.size() - 1);
+        }
+        return new MatchResult<>(matchingRules, stopReason);
+    }
+
+    @SuppressWarnings("unchecked")
+    final void matchEvent(final Event event, final MatchContext context, final Consumer<? super T> matchingRules) {
+        ACFinder.matchRules(event, this, subRuleContextGenerator, context, (Consumer<Object>) matchingRules);
+    }
+
+    /**
+     * As rulesForJSONEvent(String), but with the event provided as Java objects rather than JSON text, so that
+     *  callers who already hold it that way need not serialize it. Maps are treated as JSON objects, Iterables and
+     *  arrays as JSON arrays, CharSequences, Characters and Enums as strings, and Numbers, Booleans and null as the
+     *  corresponding JSON values. Any other object is converted as ObjectMapper would convert it. Matching is
+     *  Array-Consistent.
+     * @param event The event, as a Map from top-level field name to value
+     * @return list of rule names that match. The list may be empty but never null.
+     */
+    public List<T> rulesForEvent(final Map<String, ?> event) {
+        return rulesForEvent(event, new MatchContext());
+    }
+
+    /**
+     * As rulesForEvent(Map), reusing the working storage in the provided context rather than allocating it afresh.
+     *  The context must not be used by more than one thread at a time.
+     * @param event The event, as a Map from top-level field name to value
+     * @param context The working storage to use while matching
+     * @return list of rule names that match. The list may be empty but never null.
+     */
+    public List<T> rulesForEvent(final Map<String, ?> event, final MatchContext context) {
+        final Event e = new Event(event, this, context);
+        return matchEvent(e, context);
     }
 
     /**
@@ -139,6 +503,34 @@ public class GenericMachine<T> {
         return (List<T>) Finder.rulesForEvent(event, this, subRuleContextGenerator);
     }
 
+    /**
+     * The factory for parsers of events provided as bytes
+     */
+    final TokenStreamFactory getTokenStreamFactory() {
+        return configuration.getTokenStreamFactory();
+    }
+
+    /**
+     * The pool to spread the matching of an event over, if it has at least getParallelMatchMinFields() fields
+     *
+     * @return the pool, null if events are always matched on the calling thread alone
+     */
+    final ForkJoinPool getParallelMatchPool() {
+        return configuration.getParallelMatchPool();
+    }
+
+    final int getParallelMatchMinFields() {
+        return configuration.getParallelMatchMinFields();
+    }
+
+    /**
+     * @return the limits on matching set with Builder.withMatchLimits, which the rulesForJSONEvent methods returning a
+     *  MatchResult apply along with any given for the event
+     */
+    public final MatchLimits getMatchLimits() {
+        return configuration.getMatchLimits();
+    }
+
     /**
      * The root state for the machine
      *
@@ -149,27 +541,26 @@ public class GenericMachine<T> {
     }
 
     /**
-     * Check to see whether a field step name is actually used in any rule.
+     * The root of the trie of field names used by current rules. Event parsing steps through the trie as it descends
+     *  into the event, and skips any subtree whose path is not a prefix of some used field name.
+     *  Note that the rule: {"a.b" : [123]} and {"a" : { "b" : [123] }} both have the field name "a.b", and that
+     *  FieldPathTrie.Node.step() splits event keys containing "." so that both {"a.b" : 123} and {"a" : { "b" : 123 }}
+     *  events reach it.
+     *
+     * @return the root node of the trie of used field names
+     */
+    final FieldPathTrie.Node getUsedFieldPathsRoot() {
+        return usedFieldPaths.getRoot();
+    }
+
+    /**
+     * Check to see whether a flattened field name is actually used in any rule.
      *
-     * @param stepName the field step name to check
+     * @param fieldName the field name to check
      * @return true if the field is used in any rule, false otherwise
      */
-    boolean isFieldStepUsed(final String stepName) {
-        if (fieldStepsUsedRefCount.get(stepName) != null) {
-            return true;
-        }
-        // We need split step name further with "." to check each sub step individually to cover the case if customer
-        // use the "." internally in field of event, e.g. rule: {"a.b" : [123]} and {"a" : { "b" : [123] }} will both
-        // result "a" and "b" being added into fieldStepsUsedRefCount map in addPatternRule API, at that time, we
-        // cannot distinguish the "." is from original event or added by us when we flatten the event, but they are
-        // both possible to match some rules, so we do this check.
-        // The main reason we decided to put "recordStep" work in addPatternRule API is this API have been used by many
-        // customer directly already and we want them to get the same performance boost.
-        if (stepName.contains(".")) {
-            String[] steps = stepName.split("\\.");
-            return Arrays.stream(steps).allMatch(step -> (fieldStepsUsedRefCount.get(step) != null));
-        }
-        return false;
+    boolean isFieldUsed(final String fieldName) {
+        return usedFieldPaths.contains(fieldName);
     }
 
     /**
@@ -336,6 +727,7 @@ public class GenericMachine<T> {
                                 candidateSubRuleId.getRuleName(), candidateSubRuleId,
                                 pattern, true)) {
                             deletedSubRuleIds.add(candidateSubRuleId);
+                            subRuleContextGenerator.deletedTerminal(candidateSubRuleId);
                             // Only delete the pattern if the pattern does not transition to the next NameState.
                             if (!doesNameStateContainPattern(nextNameState, pattern) &&
                                     deletePattern(state, key, pattern)) {
@@ -389,14 +781,14 @@ public class GenericMachine<T> {
             NameMatcher<NameState> nameMatcher = parentNameState.getKeyTransitionOn(key);
             nameMatcher.deletePattern(pattern);
             if (nameMatcher.isEmpty()) {
-                parentNameState.removeKeyTransition(key);
+                parentNameState.removeKeyTransition(key, usedFieldPaths.fieldId(key));
                 return true;
             }
         } else {
             ByteMachine byteMachine = parentNameState.getTransitionOn(key);
             byteMachine.deletePattern(pattern);
             if (byteMachine.isEmpty()) {
-                parentNameState.removeTransition(key);
+                parentNameState.removeTransition(key, usedFieldPaths.fieldId(key));
                 return true;
             }
         }
@@ -519,7 +911,9 @@ public class GenericMachine<T> {
                 boolean isTerminal = i + 1 == keys.size();
                 for (Patterns pattern : patterns.get(keys.get(i))) {
                     for (NameState nameState : nameStates[i]) {
-                        nameState.addSubRule(ruleName, context, pattern, isTerminal);
+                        if (nameState.addSubRule(ruleName, context, pattern, isTerminal) && isTerminal) {
+                            subRuleContextGenerator.addedTerminal(context);
+                        }
                     }
                 }
             }
@@ -554,14 +948,14 @@ public class GenericMachine<T> {
         NameMatcher<NameState> nameMatcher = state.getKeyTransitionOn(key);
 
         if (byteMachine == null && hasValuePatterns(patterns.get(key))) {
-            byteMachine = new ByteMachine();
-            state.addTransition(key, byteMachine);
+            byteMachine = new ByteMachine(configuration.getTransitionCacheSize());
+            state.addTransition(key, usedFieldPaths.fieldId(key), byteMachine);
             addedKeys.add(key);
         }
 
         if (nameMatcher == null && hasKeyPatterns(patterns.get(key))) {
             nameMatcher = createNameMatcher();
-            state.addKeyTransition(key, nameMatcher);
+            state.addKeyTransition(key, usedFieldPaths.fieldId(key), nameMatcher);
             addedKeys.add(key);
         }
         // for each pattern, we'll provisionally add it to the BMC, which may already have it.  Pass the states
@@ -667,18 +1061,18 @@ public class GenericMachine<T> {
 
     private void addIntoUsedFields(List<String> keys) {
         for (String key : keys) {
-            recordFieldStep(key);
+            usedFieldPaths.add(key);
         }
     }
 
     private void checkAndDeleteUsedFields(final List<String> keys) {
         for (String key : keys) {
-            eraseFieldStep(key);
+            usedFieldPaths.remove(key);
         }
     }
 
     public boolean isEmpty() {
-        return startState.isEmpty() && fieldStepsUsedRefCount.isEmpty();
+        return startState.isEmpty() && usedFieldPaths.isEmpty();
     }
 
     @Nonnull
@@ -688,20 +1082,6 @@ public class GenericMachine<T> {
     }
 
 
-    private void recordFieldStep(String fieldName) {
-        final String [] steps = fieldName.split("\\.");
-        for (String step : steps) {
-            fieldStepsUsedRefCount.compute(step, (k, v) -> (v == null) ? 1 : v + 1);
-        }
-    }
-
-    private void eraseFieldStep(String fieldName) {
-        final String [] steps = fieldName.split("\\.");
-        for (String step : steps) {
-            fieldStepsUsedRefCount.compute(step, (k, v) -> (v == 1) ? null : v - 1);
-        }
-    }
-
     public int evaluateComplexity(MachineComplexityEvaluator evaluator) {
         return startState.evaluateComplexity(evaluator);
     }
@@ -743,7 +1123,7 @@ public class GenericMachine<T> {
     public String toString() {
         return "GenericMachine{" +
                 "startState=" + startState +
-                ", fieldStepsUsedRefCount=" + fieldStepsUsedRefCount +
+                ", usedFieldPaths=" + usedFieldPaths +
                 '}';
     }
 
@@ -764,6 +1144,45 @@ public class GenericMachine<T> {
          */
         private boolean additionalNameStateReuse = false;
 
+        /**
+         * The Jackson factory used to read events provided as bytes, to the rulesForJSONEvent(byte[], int, int) and
+         * rulesForJSONEvent(ByteBuffer) methods. By default these are read as JSON, but setting a factory for a binary
+         * format such as CBOR or Smile lets events in that format be matched token by token, without first being
+         * transcoded to JSON. Numbers in formats other than JSON are compared using their values rather than their text.
+         * Events provided as Strings, and all rules, are still read as JSON.
+         */
+        private TokenStreamFactory tokenStreamFactory = null;
+
+        /**
+         * Matching an event normally happens entirely on the calling thread. Setting a pool here lets the matching of
+         * events with at least parallelMatchMinFields fields be spread over the pool's threads as well: each thread
+         * follows the transitions out of the start state on a share of the event's fields, with working storage of its
+         * own, and the rules they find are merged. This only pays for very large events, where it cuts the latency of
+         * matching one event at the cost of some extra work in total, so the threshold should be set well above the
+         * size of typical events.
+         */
+        private ForkJoinPool parallelMatchPool = null;
+        private int parallelMatchMinFields = Integer.MAX_VALUE;
+
+        /**
+         * The limits on the work done to match an event by the rulesForJSONEvent methods which return a MatchResult
+         * saying which limit, if any, stopped matching, along with any limits given for the event. The methods that
+         * return a plain list of rules always match to the end, as they have no way to say they stopped short. By
+         * default, nothing is limited.
+         */
+        private MatchLimits matchLimits = MatchLimits.NONE;
+
+        /**
+         * Each ByteMachine normally matches every value it is given against its patterns afresh. Setting a size here
+         * gives each ByteMachine a cache of that many entries, which keeps the transitions it found for recent values
+         * from one event to the next, so that a field whose values come from a small set, such as "source" or
+         * "detail-type", is mostly matched by one lookup. The caches are shared by all threads, and a ByteMachine's is
+         * emptied whenever one of its patterns is added or deleted. Each ByteMachine that is used takes memory for a
+         * whole cache, so the size should be around the number of distinct values expected in a field. By default
+         * there is no cache.
+         */
+        private int transitionCacheSize = 0;
+
         Builder() {}
 
         public Builder<M,T> withAdditionalNameStateReuse(boolean additionalNameStateReuse) {
@@ -771,12 +1190,42 @@ public class GenericMachine<T> {
             return this;
         }
 
+        public Builder<M,T> withTokenStreamFactory(TokenStreamFactory tokenStreamFactory) {
+            this.tokenStreamFactory = tokenStreamFactory;
+            return this;
+        }
+
+        public Builder<M,T> withParallelMatching(ForkJoinPool parallelMatchPool, int parallelMatchMinFields) {
+            if (parallelMatchMinFields < 1) {
+                throw new IllegalArgumentException("parallelMatchMinFields must be at least 1, not "
+                        + parallelMatchMinFields);
+            }
+            this.parallelMatchPool = Objects.requireNonNull(parallelMatchPool, "parallelMatchPool");
+            this.parallelMatchMinFields = parallelMatchMinFields;
+            return this;
+        }
+
+        public Builder<M,T> withMatchLimits(MatchLimits matchLimits) {
+            this.matchLimits = Objects.requireNonNull(matchLimits, "matchLimits");
+            return this;
+        }
+
+        public Builder<M,T> withTransitionCacheSize(int transitionCacheSize) {
+            if (transitionCacheSize < 0) {
+                throw new IllegalArgumentException("transitionCacheSize must not be negative, not "
+                        + transitionCacheSize);
+            }
+            this.transitionCacheSize = transitionCacheSize;
+            return this;
+        }
+
         public M build() {
             return (M) new GenericMachine<T>(buildConfig());
         }
 
         protected GenericMachineConfiguration buildConfig() {
-            return new GenericMachineConfiguration(additionalNameStateReuse);
+            return new GenericMachineConfiguration(additionalNameStateReuse, tokenStreamFactory, parallelMatchPool,
+                    parallelMatchMinFields, matchLimits, transitionCacheSize);
         }
     }
 }
@@ -1,18 +1,53 @@
 package software.amazon.event.ruler;
 
+import com.fasterxml.jackson.core.TokenStreamFactory;
+
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * Configuration for a GenericMachine. For descriptions of the options, see GenericMachine.Builder.
  */
 class GenericMachineConfiguration {
 
     private final boolean additionalNameStateReuse;
+    private final TokenStreamFactory tokenStreamFactory;
+    private final ForkJoinPool parallelMatchPool;
+    private final int parallelMatchMinFields;
+    private final MatchLimits matchLimits;
+    private final int transitionCacheSize;
 
-    GenericMachineConfiguration(boolean additionalNameStateReuse) {
+    GenericMachineConfiguration(boolean additionalNameStateReuse, TokenStreamFactory tokenStreamFactory,
+                                ForkJoinPool parallelMatchPool, int parallelMatchMinFields,
+                                MatchLimits matchLimits, int transitionCacheSize) {
         this.additionalNameStateReuse = additionalNameStateReuse;
+        this.tokenStreamFactory = tokenStreamFactory == null ? Event.JSON_FACTORY : tokenStreamFactory;
+        this.parallelMatchPool = parallelMatchPool;
+        this.parallelMatchMinFields = parallelMatchMinFields;
+        this.matchLimits = matchLimits == null ? MatchLimits.NONE : matchLimits;
+        this.transitionCacheSize = transitionCacheSize;
     }
 
     boolean isAdditionalNameStateReuse() {
         return additionalNameStateReuse;
     }
-}
 
+    TokenStreamFactory getTokenStreamFactory() {
+        return tokenStreamFactory;
+    }
+
+    ForkJoinPool getParallelMatchPool() {
+        return parallelMatchPool;
+    }
+
+    int getParallelMatchMinFields() {
+        return parallelMatchMinFields;
+    }
+
+    MatchLimits getMatchLimits() {
+        return matchLimits;
+    }
+
+    int getTransitionCacheSize() {
+        return transitionCacheSize;
+    }
+}
@@ -0,0 +1,69 @@
+package software.amazon.event.ruler;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Matches one event, provided as JSON which arrives in chunks, against the rules in a machine. Each chunk is parsed
+ *  as soon as it is fed in, so there is no need to collect the whole event before matching it; and since nothing is
+ *  kept of a chunk but the values of the fields that rules use, the caller may reuse a chunk's storage as soon as
+ *  feed() returns. Once the last chunk has been fed in, finish() returns the matching rules. As when an event is
+ *  provided all at once, anything after the event's object is ignored.
+ *
+ * Matching is Array-Consistent, as for GenericMachine.rulesForJSONEvent(). An IncrementalMatcher is obtained from
+ *  GenericMachine.incrementalMatcher(), is used for a single event, and may only be used by one thread at a time.
+ *
+ * @param <T> the type of the rule names
+ */
+@NotThreadSafe
+public final class IncrementalMatcher<T> {
+
+    private final GenericMachine<T> machine;
+    private final MatchContext context;
+    private final Event.Incremental event;
+
+    IncrementalMatcher(final GenericMachine<T> machine, final MatchContext context) throws IOException {
+        this.machine = machine;
+        this.context = context;
+        this.event = new Event.Incremental(machine, context);
+    }
+
+    /**
+     * Processes the next chunk of the event.
+     *
+     * @param chunk the UTF-8 encoded JSON of the chunk
+     * @throws IOException if the JSON can't be parsed
+     * @throws IllegalArgumentException if the top level of the event is not a JSON object
+     * @throws IllegalStateException if finish() has been called
+     */
+    public void feed(final byte[] chunk) throws IOException {
+        feed(chunk, 0, chunk.length);
+    }
+
+    /**
+     * Processes the next chunk of the event.
+     *
+     * @param chunk array containing the UTF-8 encoded JSON of the chunk
+     * @param offset offset of the chunk within the array
+     * @param length number of bytes in the chunk
+     * @throws IOException if the JSON can't be parsed
+     * @throws IllegalArgumentException if the top level of the event is not a JSON object
+     * @throws IllegalStateException if finish() has been called
+     */
+    public void feed(final byte[] chunk, final int offset, final int length) throws IOException {
+        event.feed(chunk, offset, length);
+    }
+
+    /**
+     * Signals that the whole event has been fed in, and returns the rules it matches.
+     *
+     * @return list of rule names that match. The list may be empty but never null.
+     * @throws IOException if the JSON can't be parsed, or is incomplete
+     * @throws IllegalArgumentException if the top level of the event is not a JSON object
+     * @throws IllegalStateException if finish() has already been called
+     */
+    public List<T> finish() throws IOException {
+        return machine.matchEvent(event.finish(), context);
+    }
+}
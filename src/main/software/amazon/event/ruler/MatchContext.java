@@ -0,0 +1,70 @@
+package software.amazon.event.ruler;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds the working storage used while matching an event against a machine with rulesForJSONEvent(), so that it can
+ *  be reused from one event to the next instead of being allocated afresh for every event. The storage is cleared
+ *  at the start of each use. Once it has grown to fit the events it sees, matching an event with a context allocates
+ *  little beyond the list of matching rules that is returned.
+ *
+ * Using a context is optional. A context is not tied to any one machine, but it may only be used by one thread at a
+ *  time, for one event at a time; callers that match on many threads will typically keep one per thread, for
+ *  example in a ThreadLocal.
+ */
+@NotThreadSafe
+public final class MatchContext {
+
+    // used by Event construction
+    final Event.FieldBuffer fieldBuffer = new Event.FieldBuffer();
+    final Event.Progress progress = new Event.Progress();
+    final List<Field> fields = new ArrayList<>();
+
+    // used by ACFinder; the extra tasks are for the pool's threads when an event's matching is spread over them
+    final ACTask acTask = new ACTask();
+    private ACTask[] parallelTasks = new ACTask[0];
+
+    public MatchContext() { }
+
+    /**
+     * @return at least the given number of tasks, the first of which is acTask
+     */
+    ACTask[] parallelTasks(final int count) {
+        if (parallelTasks.length < count) {
+            final ACTask[] tasks = Arrays.copyOf(parallelTasks, count);
+            tasks[0] = acTask;
+            for (int i = Math.max(1, parallelTasks.length); i < count; i++) {
+                tasks[i] = new ACTask();
+            }
+            parallelTasks = tasks;
+        }
+        return parallelTasks;
+    }
+
+    /**
+     * @return how many times, over all the events matched with this context, the value transitions for a field were
+     *  found to have been worked out already, from the same ByteMachine earlier in the same event
+     */
+    public long getTransitionMemoHits() {
+        long hits = acTask.transitionMemo.hits();
+        for (int i = 1; i < parallelTasks.length; i++) {
+            hits += parallelTasks[i].transitionMemo.hits();
+        }
+        return hits;
+    }
+
+    /**
+     * @return how many times, over all the events matched with this context, the value transitions for a field had to
+     *  be worked out
+     */
+    public long getTransitionMemoMisses() {
+        long misses = acTask.transitionMemo.misses();
+        for (int i = 1; i < parallelTasks.length; i++) {
+            misses += parallelTasks[i].transitionMemo.misses();
+        }
+        return misses;
+    }
+}
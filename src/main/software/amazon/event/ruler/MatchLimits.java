@@ -0,0 +1,172 @@
+package software.amazon.event.ruler;
+
+import javax.annotation.concurrent.Immutable;
+import java.time.Duration;
+
+/**
+ * Bounds on the work done to match a single event, for callers who would rather have some of the matching rules
+ *  quickly than all of them late. Matching stops once any limit is reached, and the MatchResult says which one it was.
+ *  The limits are:
+ *
+ * maxResults: the most rules to return.
+ * maxSteps: the most steps to take through the machine. A step tries one of the event's fields from one NameState.
+ * maxTransitions: the most times to match a field's value against a set of patterns, which is most of the cost of a
+ *  step that gets that far. A value is only matched against the same set once per event, so only counts once.
+ * timeout: how long to spend, counting from when the event is passed in, so including the time to parse it. The time
+ *  is only checked every few steps, so it may be overrun by a little.
+ *
+ * When an event is matched on several threads, as with GenericMachine.Builder.withParallelMatching, the steps and
+ *  transitions taken on all of them count towards the same limits.
+ *
+ * Limits may be given for each event, or to GenericMachine.Builder for all the events the machine matches, in which
+ *  case both apply, and where both set the same limit the lower holds. By default, nothing is limited. Instances are
+ *  immutable.
+ */
+@Immutable
+public final class MatchLimits {
+
+    /**
+     * No limits at all
+     */
+    public static final MatchLimits NONE = builder().build();
+
+    private final int maxResults;
+    private final long maxSteps;
+    private final long maxTransitions;
+    private final long timeoutNanos;
+
+    private MatchLimits(final int maxResults, final long maxSteps, final long maxTransitions,
+                        final long timeoutNanos) {
+        this.maxResults = maxResults;
+        this.maxSteps = maxSteps;
+        this.maxTransitions = maxTransitions;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder starting from these limits
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .withMaxResults(maxResults)
+                .withMaxSteps(maxSteps)
+                .withMaxTransitions(maxTransitions)
+                .withTimeout(Duration.ofNanos(timeoutNanos));
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+
+    public long getMaxTransitions() {
+        return maxTransitions;
+    }
+
+    public Duration getTimeout() {
+        return Duration.ofNanos(timeoutNanos);
+    }
+
+    boolean hasTimeout() {
+        return timeoutNanos != Long.MAX_VALUE;
+    }
+
+    long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /**
+     * @return the lower of each of these limits and the given ones
+     */
+    MatchLimits within(final MatchLimits limits) {
+        if (limits.equals(NONE) || limits.equals(this)) {
+            return this;
+        } else if (equals(NONE)) {
+            return limits;
+        }
+        return new MatchLimits(Math.min(maxResults, limits.maxResults), Math.min(maxSteps, limits.maxSteps),
+                Math.min(maxTransitions, limits.maxTransitions), Math.min(timeoutNanos, limits.timeoutNanos));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MatchLimits)) {
+            return false;
+        }
+        MatchLimits other = (MatchLimits) o;
+        return maxResults == other.maxResults && maxSteps == other.maxSteps && maxTransitions == other.maxTransitions
+                && timeoutNanos == other.timeoutNanos;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(((maxResults * 31L + maxSteps) * 31 + maxTransitions) * 31 + timeoutNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "MatchLimits{maxResults=" + maxResults + ", maxSteps=" + maxSteps + ", maxTransitions=" + maxTransitions
+                + ", timeout=" + (hasTimeout() ? getTimeout() : "none") + '}';
+    }
+
+    public static class Builder {
+        private int maxResults = Integer.MAX_VALUE;
+        private long maxSteps = Long.MAX_VALUE;
+        private long maxTransitions = Long.MAX_VALUE;
+        private long timeoutNanos = Long.MAX_VALUE;
+
+        Builder() {}
+
+        public Builder withMaxResults(int maxResults) {
+            if (maxResults < 1) {
+                throw new IllegalArgumentException("maxResults must be at least 1, not " + maxResults);
+            }
+            this.maxResults = maxResults;
+            return this;
+        }
+
+        public Builder withMaxSteps(long maxSteps) {
+            if (maxSteps < 1) {
+                throw new IllegalArgumentException("maxSteps must be at least 1, not " + maxSteps);
+            }
+            this.maxSteps = maxSteps;
+            return this;
+        }
+
+        public Builder withMaxTransitions(long maxTransitions) {
+            if (maxTransitions < 1) {
+                throw new IllegalArgumentException("maxTransitions must be at least 1, not " + maxTransitions);
+            }
+            this.maxTransitions = maxTransitions;
+            return this;
+        }
+
+        /**
+         * @param timeout how long to spend on each event; durations too long to count in nanoseconds mean no limit
+         */
+        public Builder withTimeout(Duration timeout) {
+            if (timeout.isNegative() || timeout.isZero()) {
+                throw new IllegalArgumentException("timeout must be positive, not " + timeout);
+            }
+            long nanos;
+            try {
+                nanos = timeout.toNanos();
+            } catch (ArithmeticException e) {
+                nanos = Long.MAX_VALUE;
+            }
+            this.timeoutNanos = nanos;
+            return this;
+        }
+
+        public MatchLimits build() {
+            return new MatchLimits(maxResults, maxSteps, maxTransitions, timeoutNanos);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package software.amazon.event.ruler;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The rules that matched an event when limits were put on matching it, as by
+ *  GenericMachine.rulesForJSONEvent(String, int) or rulesForJSONEvent(String, MatchLimits). If a limit was reached,
+ *  matching stopped early, the result holds the rules found up to then, and it is marked as truncated, with the reason
+ *  it stopped. Which of the matching rules are returned in that case is not defined.
+ */
+public final class MatchResult<T> {
+
+    /**
+     * Why matching stopped: because it had finished, or because it reached one of the limits in MatchLimits.
+     */
+    public enum StopReason {
+        COMPLETED,
+        MAX_RESULTS,
+        MAX_STEPS,
+        MAX_TRANSITIONS,
+        DEADLINE
+    }
+
+    private final List<T> rules;
+    private final StopReason stopReason;
+
+    MatchResult(final List<T> rules, final StopReason stopReason) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.stopReason = stopReason;
+    }
+
+    /**
+     * @return the rules that matched, no more than the limit. The list may be empty but never null.
+     */
+    public List<T> getRules() {
+        return rules;
+    }
+
+    /**
+     * @return true if matching stopped before it had finished, so that some matching rules may be missing from
+     *  getRules(). When it stops for MAX_RESULTS, some certainly are.
+     */
+    public boolean isTruncated() {
+        return stopReason != StopReason.COMPLETED;
+    }
+
+    /**
+     * @return which limit stopped matching, or COMPLETED if none did
+     */
+    public StopReason getStopReason() {
+        return stopReason;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MatchResult)) {
+            return false;
+        }
+        MatchResult<?> other = (MatchResult<?>) o;
+        return stopReason == other.stopReason && rules.equals(other.rules);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(rules, stopReason);
+    }
+
+    @Override
+    public String toString() {
+        return "MatchResult{rules=" + rules + ", stopReason=" + stopReason + '}';
+    }
+}
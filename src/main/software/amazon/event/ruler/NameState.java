@@ -1,7 +1,9 @@
 package software.amazon.event.ruler;
 
 import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -14,6 +16,9 @@ import java.util.concurrent.ConcurrentHashMap;
  *
  * The "keyTransitions" map is keyed by field name and yields a NameMatcher
  * that is used to match keys for [ { exists: false } ].
+ *
+ * While matching an Event, both are looked up by the field's id from the machine's
+ * FieldPathTrie instead, through copies of the maps held as sorted id arrays.
  */
 @ThreadSafe
 class NameState {
@@ -28,6 +33,11 @@ class NameState {
     // while add/delete Rule is active in another thread, without any locks.
     private final Map<String, NameMatcher<NameState>> mustNotExistMatchers = new ConcurrentHashMap<>(1);
 
+    // The same transitions as the two maps above, keyed by field id, for Event matching. FieldIdMap describes how
+    //  these change when a transition is added or removed.
+    private volatile FieldIdMap<ByteMachine> valueTransitionsById = FieldIdMap.empty();
+    private volatile FieldIdMap<NameMatcher<NameState>> mustNotExistMatchersById = FieldIdMap.empty();
+
     // Maps a key to the next NameState accessible via either valueTransitions or mustNotExistMatchers.
     // Only used when Configuration is set for additionalNameStateReuse.
     private final Map<String, NameState> keyToNextNameState = new ConcurrentHashMap<>();
@@ -41,6 +51,11 @@ class NameState {
     // All non-terminal sub-rule IDs, keyed by pattern, that led to this NameState.
     private final Map<Patterns, Set<SubRuleContext>> patternToNonTerminalSubRuleIds = new ConcurrentHashMap<>();
 
+    // The same sub-rule IDs as the two maps above, as sorted arrays, for intersecting while matching an Event. These
+    //  are replaced, rather than modified, when a sub-rule is added or deleted.
+    private final Map<Patterns, SubRuleIds> patternToSortedTerminalSubRuleIds = new ConcurrentHashMap<>();
+    private final Map<Patterns, SubRuleIds> patternToSortedNonTerminalSubRuleIds = new ConcurrentHashMap<>();
+
     // All sub-rule IDs mapped to the number of times that sub-rule has been added to this NameState.
     private final Map<SubRuleContext, Integer> subRuleIdToCount = new ConcurrentHashMap<>();
 
@@ -48,6 +63,17 @@ class NameState {
         return valueTransitions.get(token);
     }
 
+    ByteMachine getTransitionOn(final int fieldId, final String fieldName) {
+        return valueTransitionsById.get(fieldId, fieldName);
+    }
+
+    /**
+     * @return the value transitions, by the ids of the fields they are on
+     */
+    FieldIdMap<ByteMachine> getTransitionsById() {
+        return valueTransitionsById;
+    }
+
     /**
      * Get all the terminal patterns that have led to this NameState. "Terminal" means the pattern was used by the last
      * field of a rule to lead to this NameState, and thus, the rule's matching criteria have been fully satisfied.
@@ -109,6 +135,26 @@ class NameState {
         return patternToNonTerminalSubRuleIds.get(pattern);
     }
 
+    /**
+     * Get the terminal sub-rule IDs that used a given pattern to lead to this NameState, as a sorted array.
+     *
+     * @param pattern The pattern that the rules must use to get to this NameState.
+     * @return The sub-rule IDs, could be null if none for pattern.
+     */
+    SubRuleIds getSortedTerminalSubRuleIdsForPattern(Patterns pattern) {
+        return patternToSortedTerminalSubRuleIds.get(pattern);
+    }
+
+    /**
+     * Get the non-terminal sub-rule IDs that used a given pattern to lead to this NameState, as a sorted array.
+     *
+     * @param pattern The pattern that the rules must use to get to this NameState.
+     * @return The sub-rule IDs, could be null if none for pattern.
+     */
+    SubRuleIds getSortedNonTerminalSubRuleIdsForPattern(Patterns pattern) {
+        return patternToSortedNonTerminalSubRuleIds.get(pattern);
+    }
+
     /**
      * Delete a sub-rule to indicate that it no longer transitions to this NameState using the provided pattern.
      *
@@ -123,6 +169,14 @@ class NameState {
         Map<Patterns, ?> patternToSubRules = isTerminal ? patternToTerminalSubRuleIds : patternToNonTerminalSubRuleIds;
         boolean deleted = deleteFromPatternToSetMap(patternToSubRules, pattern, subRuleId);
         if (deleted) {
+            Map<Patterns, SubRuleIds> patternToSortedSubRules = isTerminal ?
+                    patternToSortedTerminalSubRuleIds : patternToSortedNonTerminalSubRuleIds;
+            SubRuleIds sortedSubRuleIds = patternToSortedSubRules.get(pattern).without(subRuleId);
+            if (sortedSubRuleIds == null) {
+                patternToSortedSubRules.remove(pattern);
+            } else {
+                patternToSortedSubRules.put(pattern, sortedSubRuleIds);
+            }
             Integer count = subRuleIdToCount.get(subRuleId);
             if (count == 1) {
                 subRuleIdToCount.remove(subRuleId);
@@ -146,12 +200,14 @@ class NameState {
         return deleted;
     }
 
-    void removeTransition(String name) {
+    void removeTransition(final String name, final int fieldId) {
         valueTransitions.remove(name);
+        valueTransitionsById = valueTransitionsById.without(fieldId);
     }
 
-    void removeKeyTransition(String name) {
+    void removeKeyTransition(final String name, final int fieldId) {
         mustNotExistMatchers.remove(name);
+        mustNotExistMatchersById = mustNotExistMatchersById.without(fieldId);
     }
 
     void removeNextNameState(String key) {
@@ -174,13 +230,21 @@ class NameState {
      * @param subRuleId The ID of the sub-rule.
      * @param pattern The pattern used by the sub-rule to transition to this NameState.
      * @param isTerminal True indicates that the sub-rule is using pattern to match on the final event field.
+     * @return True if and only if the sub-rule wasn't already there.
      */
-    void addSubRule(final Object rule, final SubRuleContext subRuleId, final Patterns pattern, final boolean isTerminal) {
+    boolean addSubRule(final Object rule, final SubRuleContext subRuleId, final Patterns pattern, final boolean isTerminal) {
         addToPatternToSetMap(patternToRules, pattern, rule);
         Map<Patterns, ?> patternToSubRules = isTerminal ? patternToTerminalSubRuleIds : patternToNonTerminalSubRuleIds;
         if (addToPatternToSetMap(patternToSubRules, pattern, subRuleId)) {
+            Map<Patterns, SubRuleIds> patternToSortedSubRules = isTerminal ?
+                    patternToSortedTerminalSubRuleIds : patternToSortedNonTerminalSubRuleIds;
+            SubRuleIds sortedSubRuleIds = patternToSortedSubRules.get(pattern);
+            patternToSortedSubRules.put(pattern,
+                    sortedSubRuleIds == null ? SubRuleIds.of(subRuleId) : sortedSubRuleIds.with(subRuleId));
             subRuleIdToCount.compute(subRuleId, (k, count) -> count == null ? 1 : count + 1);
+            return true;
         }
+        return false;
     }
 
     private static boolean addToPatternToSetMap(final Map<Patterns, ?> map, final Patterns pattern,
@@ -203,12 +267,14 @@ class NameState {
         return rules != null && rules.contains(rule);
     }
 
-    void addTransition(final String key, final ByteMachine to) {
+    void addTransition(final String key, final int fieldId, final ByteMachine to) {
         valueTransitions.put(key, to);
+        valueTransitionsById = valueTransitionsById.with(fieldId, key, to);
     }
 
-    void addKeyTransition(final String key, final NameMatcher<NameState> to) {
+    void addKeyTransition(final String key, final int fieldId, final NameMatcher<NameState> to) {
         mustNotExistMatchers.put(key, to);
+        mustNotExistMatchersById = mustNotExistMatchersById.with(fieldId, key, to);
     }
 
     void addNextNameState(final String key, final NameState nextNameState) {
@@ -251,37 +317,72 @@ class NameState {
         return nextNameStates;
     }
 
-    Set<NameState> getNameTransitions(final Event event, final ArrayMembership membership) {
-
-        final Set<NameState> nextNameStates = new HashSet<>();
+    /**
+     * Adds to a list the NameStates reached by the [ { exists: false } ] matchers whose fields are absent from the
+     *  event, or present only in array elements inconsistent with the given membership. A NameState already added by
+     *  this call is not added again. Nothing is allocated unless there are more than 64 matchers.
+     *
+     * @param event the event being matched
+     * @param membership the array membership of the fields matched so far
+     * @param addTo the list to add the next NameStates to
+     */
+    void getNameTransitions(final Event event, final ArrayMembership membership, final List<NameState> addTo) {
 
-        if (mustNotExistMatchers.isEmpty()) {
-            return nextNameStates;
+        final FieldIdMap<NameMatcher<NameState>> matchersById = mustNotExistMatchersById;
+        final int matcherCount = matchersById.size();
+        if (matcherCount == 0) {
+            return;
         }
 
-        Set<NameMatcher<NameState>> absentValues = new HashSet<>(mustNotExistMatchers.values());
+        // which matchers have a field present in the event; a bitmask will do for up to 64 of them
+        long presentMask = 0;
+        final boolean[] present = matcherCount > Long.SIZE ? new boolean[matcherCount] : null;
+        int presentCount = 0;
 
-        for (Field field :  event.fields) {
-            NameMatcher<NameState> matcher = mustNotExistMatchers.get(field.name);
-            if (matcher != null) {
+        final List<Field> fields = event.fields;
+        for (int i = 0; i < fields.size() && presentCount < matcherCount; i++) {
+            final Field field = fields.get(i);
+            final int position = matchersById.indexOf(field.nameId);
+            if (position >= 0 && field.name.equals(matchersById.nameAt(position))) {
                 // we should only consider the field who doesn't violate array consistency.
                 // normally, we should first check array consistency of field, then check mustNotExistMatchers, but
-                // for performance optimization, we first check mustNotExistMatchers because the hashmap.get is cheaper
+                // for performance optimization, we first check mustNotExistMatchers because the lookup is cheaper
                 // than AC check.
                 if (ArrayMembership.checkArrayConsistency(membership, field.arrayMembership) != null) {
-                    absentValues.remove(matcher);
-                    if (absentValues.isEmpty()) {
-                        break;
+                    if (present == null) {
+                        final long bit = 1L << position;
+                        if ((presentMask & bit) == 0) {
+                            presentMask |= bit;
+                            presentCount++;
+                        }
+                    } else if (!present[position]) {
+                        present[position] = true;
+                        presentCount++;
                     }
                 }
             }
         }
 
-        for (NameMatcher<NameState> nameMatcher: absentValues) {
-            nextNameStates.add(nameMatcher.getNextState());
+        final int start = addTo.size();
+        for (int position = 0; position < matcherCount; position++) {
+            final boolean isPresent = present == null ? (presentMask & (1L << position)) != 0 : present[position];
+            if (!isPresent) {
+                final NameMatcher<NameState> matcher = matchersById.valueAt(position);
+                final NameState nextState = matcher == null ? null : matcher.getNextState();
+                if (nextState != null && !containsFrom(addTo, start, nextState)) {
+                    addTo.add(nextState);
+                }
+            }
         }
+    }
 
-        return nextNameStates;
+    private static boolean containsFrom(final List<NameState> list, final int start, final NameState nameState) {
+        for (int i = start; i < list.size(); i++) {
+            if (list.get(i).equals(nameState)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public NameState getNextNameState(String key) {
@@ -332,4 +433,167 @@ class NameState {
                 ", subRuleIdToCount=" + subRuleIdToCount +
                 '}';
     }
-}
\ No newline at end of file
+
+    /**
+     * A map from field ids to values, held as a sorted array of ids and parallel arrays of the field names and values.
+     *  A NameState has few transitions, so a binary search of their ids costs less than hashing a field name. As ids
+     *  can pass from a forgotten field name to a new one, get() also checks the name.
+     *
+     * Only the thread updating the machine calls with() and without(), always on the newest instance. So that a
+     *  NameState with many transitions isn't copied each time one is added or removed, they work on its arrays where
+     *  they can, as readers may safely see the changes: with() appends into spare room at the end, as SubRuleIds does,
+     *  or fills in the position of an id that is already there; and without() leaves the id in place with no name or
+     *  value, until such gaps are half the entries and it copies the rest into new arrays. Readers must therefore
+     *  expect an entry's name and value to be null.
+     */
+    @ThreadSafe
+    static final class FieldIdMap<V> {
+        private static final FieldIdMap<?> EMPTY = new FieldIdMap<>(new int[0], new String[0], new Object[0], 0, 0);
+
+        // sorted, distinct, and only meaningful up to size
+        private final int[] ids;
+        private final String[] names;
+        private final Object[] values;
+        private final int size;
+
+        // only used by the thread updating the machine: the number of entries removed from within the arrays, and
+        //  whether with() has appended to the arrays beyond size
+        private int removedCount;
+        private boolean appendedTo = false;
+
+        private FieldIdMap(final int[] ids, final String[] names, final Object[] values, final int size,
+                           final int removedCount) {
+            this.ids = ids;
+            this.names = names;
+            this.values = values;
+            this.size = size;
+            this.removedCount = removedCount;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <V> FieldIdMap<V> empty() {
+            return (FieldIdMap<V>) EMPTY;
+        }
+
+        /**
+         * @return the value for the field with the given id and name, or null if there is none
+         */
+        @SuppressWarnings("unchecked")
+        V get(final int id, final String name) {
+            final int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position < 0) {
+                return null;
+            }
+            final String entryName = names[position];
+            return entryName != null && entryName.equals(name) ? (V) values[position] : null;
+        }
+
+        /**
+         * @return the position of the id, from 0 to size() - 1, or a negative number if it is absent
+         */
+        int indexOf(final int id) {
+            return Arrays.binarySearch(ids, 0, size, id);
+        }
+
+        /**
+         * @return the number of positions, some of which may have been removed since
+         */
+        int size() {
+            return size;
+        }
+
+        int idAt(final int position) {
+            return ids[position];
+        }
+
+        /**
+         * @return the field name at the position, or null if it has been removed
+         */
+        String nameAt(final int position) {
+            return names[position];
+        }
+
+        /**
+         * @return the value at the position, or null if it has been removed
+         */
+        @SuppressWarnings("unchecked")
+        V valueAt(final int position) {
+            return (V) values[position];
+        }
+
+        FieldIdMap<V> with(final int id, final String name, final V value) {
+            if ((size == 0 || ids[size - 1] < id) && !appendedTo) {
+                int[] newIds = ids;
+                String[] newNames = names;
+                Object[] newValues = values;
+                if (size == ids.length) {
+                    final int capacity = Math.max(1, size * 2);
+                    newIds = Arrays.copyOf(ids, capacity);
+                    newNames = Arrays.copyOf(names, capacity);
+                    newValues = Arrays.copyOf(values, capacity);
+                } else {
+                    appendedTo = true;
+                }
+                newIds[size] = id;
+                newNames[size] = name;
+                newValues[size] = value;
+                return new FieldIdMap<>(newIds, newNames, newValues, size + 1, removedCount);
+            }
+
+            final int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position >= 0) {
+                if (names[position] == null) {
+                    removedCount--;
+                }
+                values[position] = value;
+                names[position] = name;
+                return this;
+            }
+            final int insertAt = -position - 1;
+            final int[] newIds = new int[size + 1];
+            final String[] newNames = new String[size + 1];
+            final Object[] newValues = new Object[size + 1];
+            System.arraycopy(ids, 0, newIds, 0, insertAt);
+            System.arraycopy(names, 0, newNames, 0, insertAt);
+            System.arraycopy(values, 0, newValues, 0, insertAt);
+            newIds[insertAt] = id;
+            newNames[insertAt] = name;
+            newValues[insertAt] = value;
+            System.arraycopy(ids, insertAt, newIds, insertAt + 1, size - insertAt);
+            System.arraycopy(names, insertAt, newNames, insertAt + 1, size - insertAt);
+            System.arraycopy(values, insertAt, newValues, insertAt + 1, size - insertAt);
+            return new FieldIdMap<>(newIds, newNames, newValues, size + 1, removedCount);
+        }
+
+        FieldIdMap<V> without(final int id) {
+            final int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position < 0 || names[position] == null) {
+                return this;
+            }
+            if ((removedCount + 1) * 2 <= size) {
+                names[position] = null;
+                values[position] = null;
+                removedCount++;
+                return this;
+            }
+
+            final int newSize = size - removedCount - 1;
+            if (newSize == 0) {
+                return empty();
+            }
+            final int[] newIds = new int[newSize];
+            final String[] newNames = new String[newSize];
+            final Object[] newValues = new Object[newSize];
+            int to = 0;
+            for (int from = 0; from < size; from++) {
+                if (from != position && names[from] != null) {
+                    newIds[to] = ids[from];
+                    newNames[to] = names[from];
+                    newValues[to] = values[from];
+                    to++;
+                }
+            }
+            return new FieldIdMap<>(newIds, newNames, newValues, newSize, 0);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package software.amazon.event.ruler;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * The steps an ACTask has added while matching one event, so that a step reached again by another route is not tried
+ *  again, as Task does with its seenSteps set. A step is identified by its field index, NameState, array membership and
+ *  candidate sub-rules. So that the candidates can be compared cheaply, each distinct set of them is given a number.
+ *
+ * Steps are added from a NameState for all the fields from some index on, of which there can be very many, so rather
+ *  than each step, what is recorded is the lowest index from which steps have been added for each NameState,
+ *  membership and candidate set. That costs one lookup for a whole run of steps, and tells which of them are new.
+ *
+ * Both tables are EntryTables, so that they allocate nothing once they have grown to fit the events they see.
+ */
+@NotThreadSafe
+final class SeenSteps {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // the lowest field index steps were added from, by NameState, membership and candidate set, indexed by the
+    //  number of the entry in stepTable
+    private final EntryTable stepTable = new EntryTable(INITIAL_CAPACITY);
+    private int[] stepFromIndexes = new int[INITIAL_CAPACITY / 2 + 1];
+    private NameState[] stepNameStates = new NameState[INITIAL_CAPACITY / 2 + 1];
+    private ArrayMembership[] stepMemberships = new ArrayMembership[INITIAL_CAPACITY / 2 + 1];
+    private int[] stepCandidateSets = new int[INITIAL_CAPACITY / 2 + 1];
+
+    // The candidate sets, numbered by candidateSetTable from 1, as 0 stands for the first step's, which has all
+    //  sub-rules as candidates. A set drawn straight from a NameState is not changed while the event is matched, so it
+    //  is referred to where it is; one made by intersection is in a pooled buffer that will be reused, so it is copied.
+    private final EntryTable candidateSetTable = new EntryTable(INITIAL_CAPACITY);
+    private int[][] candidateSetArrays = new int[INITIAL_CAPACITY / 2 + 1][];
+    private int[] candidateSetStarts = new int[INITIAL_CAPACITY / 2 + 1];
+    private int[] candidateSetCounts = new int[INITIAL_CAPACITY / 2 + 1];
+    private int[] candidateCopies = new int[INITIAL_CAPACITY];
+    private int candidateCopiesSize = 0;
+
+    /**
+     * Forget the steps and candidate sets of the last event.
+     */
+    void clear() {
+        Arrays.fill(stepNameStates, 1, stepTable.size() + 1, null);
+        Arrays.fill(stepMemberships, 1, stepTable.size() + 1, null);
+        stepTable.clear();
+        Arrays.fill(candidateSetArrays, 1, candidateSetTable.size() + 1, null);
+        candidateSetTable.clear();
+        candidateCopiesSize = 0;
+    }
+
+    /**
+     * @return the number of a set of candidates held by a NameState
+     */
+    int candidateSet(final SubRuleIds subRuleIds) {
+        return candidateSet(subRuleIds.ids, subRuleIds.size, subRuleIds.idsHash, true);
+    }
+
+    /**
+     * @return the number of a set of candidates in a buffer which will be reused
+     */
+    int candidateSet(final int[] ids, final int count) {
+        return candidateSet(ids, count, hash(ids, count), false);
+    }
+
+    // sets with the same ids get the same number, wherever they are held
+    private int candidateSet(final int[] ids, final int count, final int idsHash, final boolean stable) {
+        final int hash = EntryTable.mix(idsHash);
+        int slot = candidateSetTable.slot(hash);
+        for (int number = candidateSetTable.numberAt(slot); number != 0; number = candidateSetTable.numberAt(slot)) {
+            if (candidateSetTable.hashOf(number) == hash && isCandidateSet(number, ids, count)) {
+                return number;
+            }
+            slot = candidateSetTable.next(slot);
+        }
+
+        final int number = candidateSetTable.add(slot, hash);
+        if (number == candidateSetCounts.length) {
+            growCandidateSets();
+        }
+        candidateSetCounts[number] = count;
+        if (stable) {
+            candidateSetArrays[number] = ids;
+            candidateSetStarts[number] = 0;
+        } else {
+            if (candidateCopiesSize + count > candidateCopies.length) {
+                candidateCopies = Arrays.copyOf(candidateCopies,
+                        Math.max(candidateCopies.length * 2, candidateCopiesSize + count));
+            }
+            System.arraycopy(ids, 0, candidateCopies, candidateCopiesSize, count);
+            candidateSetArrays[number] = null;
+            candidateSetStarts[number] = candidateCopiesSize;
+            candidateCopiesSize += count;
+        }
+        return number;
+    }
+
+    private boolean isCandidateSet(final int number, final int[] ids, final int count) {
+        if (candidateSetCounts[number] != count) {
+            return false;
+        }
+        final int[] array = candidateSetArrays[number] == null ? candidateCopies : candidateSetArrays[number];
+        final int start = candidateSetStarts[number];
+        if (array == ids && start == 0) {
+            return true;
+        }
+        for (int i = 0; i < count; i++) {
+            if (array[start + i] != ids[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growCandidateSets() {
+        final int length = candidateSetCounts.length * 2;
+        candidateSetArrays = Arrays.copyOf(candidateSetArrays, length);
+        candidateSetStarts = Arrays.copyOf(candidateSetStarts, length);
+        candidateSetCounts = Arrays.copyOf(candidateSetCounts, length);
+    }
+
+    /**
+     * Record that steps are to be added from a NameState, with the given array membership and candidate set, for the
+     *  event's fields from fieldIndex on.
+     *
+     * @param candidateSet the number of the steps' candidate set, from candidateSet()
+     * @return the lowest field index from which such steps had already been added, so that those from there on need
+     *  not be added again, or Integer.MAX_VALUE if none had been
+     */
+    int addFrom(final int fieldIndex, final NameState nameState, final ArrayMembership membership,
+                final int candidateSet) {
+        final int hash = EntryTable.mix((System.identityHashCode(nameState) * 31 + membership.hashCode()) * 31
+                + candidateSet);
+        int slot = stepTable.slot(hash);
+        for (int number = stepTable.numberAt(slot); number != 0; number = stepTable.numberAt(slot)) {
+            if (stepTable.hashOf(number) == hash && stepNameStates[number] == nameState
+                    && stepCandidateSets[number] == candidateSet
+                    && (stepMemberships[number] == membership || stepMemberships[number].equals(membership))) {
+                final int addedFrom = stepFromIndexes[number];
+                if (fieldIndex < addedFrom) {
+                    stepFromIndexes[number] = fieldIndex;
+                }
+                return addedFrom;
+            }
+            slot = stepTable.next(slot);
+        }
+
+        final int number = stepTable.add(slot, hash);
+        if (number == stepNameStates.length) {
+            growSteps();
+        }
+        stepFromIndexes[number] = fieldIndex;
+        stepNameStates[number] = nameState;
+        stepMemberships[number] = membership;
+        stepCandidateSets[number] = candidateSet;
+        return Integer.MAX_VALUE;
+    }
+
+    private void growSteps() {
+        final int length = stepNameStates.length * 2;
+        stepFromIndexes = Arrays.copyOf(stepFromIndexes, length);
+        stepNameStates = Arrays.copyOf(stepNameStates, length);
+        stepMemberships = Arrays.copyOf(stepMemberships, length);
+        stepCandidateSets = Arrays.copyOf(stepCandidateSets, length);
+    }
+
+    /**
+     * @return the hash of a set of sub-rule ids, which can be added to one id at a time with hash(int, int)
+     */
+    static int hash(final int[] ids, final int count) {
+        int hash = 1;
+        for (int i = 0; i < count; i++) {
+            hash = hash(hash, ids[i]);
+        }
+        return hash;
+    }
+
+    static int hash(final int hash, final int id) {
+        return hash * 31 + id;
+    }
+}
@@ -41,4 +41,78 @@ class SetOperations {
             }
         }
     }
+
+    /**
+     * Find the elements common to two sorted arrays of distinct ints, writing the index in the second array of each
+     * one into a third array. Each element of the shorter array is looked for in the longer by galloping ahead from
+     * where the last was found, so the cost grows with the length of the shorter array, and only logarithmically with
+     * the length of the longer.
+     *
+     * @param array1 First sorted array involved in intersection.
+     * @param size1 The number of elements of array1 to consider.
+     * @param array2 Second sorted array involved in intersection.
+     * @param size2 The number of elements of array2 to consider.
+     * @param indexesInArray2 Write the index in array2 of each element of the intersection here, in increasing order.
+     *                        Must have room for the smaller of size1 and size2.
+     * @return The number of elements in the intersection.
+     */
+    public static int intersection(final int[] array1, final int size1, final int[] array2, final int size2,
+                                   final int[] indexesInArray2) {
+        int count = 0;
+        int index1 = 0;
+        int index2 = 0;
+        if (size1 <= size2) {
+            while (index1 < size1 && index2 < size2) {
+                index2 = gallop(array2, index2, size2, array1[index1]);
+                if (index2 < size2 && array2[index2] == array1[index1]) {
+                    indexesInArray2[count++] = index2++;
+                }
+                index1++;
+            }
+        } else {
+            while (index2 < size2 && index1 < size1) {
+                index1 = gallop(array1, index1, size1, array2[index2]);
+                if (index1 < size1 && array1[index1] == array2[index2]) {
+                    indexesInArray2[count++] = index2;
+                    index1++;
+                }
+                index2++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The first index, from "from" on, of an element of the sorted array no less than the key, or size if
+     *         there is none.
+     */
+    private static int gallop(final int[] array, final int from, final int size, final int key) {
+        if (from >= size || array[from] >= key) {
+            return from;
+        }
+
+        // double the distance ahead until we pass the key, then binary search the last stretch
+        int low = from;
+        int high = from + 1;
+        int step = 1;
+        while (high < size && array[high] < key) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        if (high > size) {
+            high = size;
+        }
+
+        // array[low] < key, and either high == size or array[high] >= key
+        while (high - low > 1) {
+            final int middle = (low + high) >>> 1;
+            if (array[middle] < key) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return high;
+    }
 }
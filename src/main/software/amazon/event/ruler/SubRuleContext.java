@@ -1,5 +1,8 @@
 package software.amazon.event.ruler;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -10,17 +13,33 @@ import java.util.concurrent.ConcurrentHashMap;
  *
  * A sub-rule refers to name/value pairs, usually represented by Map of String to List of Patterns, that compose a rule.
  * In the case of $or, one rule will have multiple name/value pairs, and this is why we use the "sub-rule" terminology.
+ *
+ * Each sub-rule has an int id, dense and increasing in the order the sub-rules were generated, so that NameState can
+ * also hold the sub-rules for a pattern as a sorted array of ids, which is quicker to intersect than a Set. Each rule
+ * name also has a dense int id, shared by all its sub-rules, which lets matching tell whether a rule has already been
+ * reported without hashing its name. Once none of a name's sub-rules are left in the machine, its id is given to the
+ * next new name, so the ids stay as few as the rules in the machine.
  */
 public final class SubRuleContext {
 
-    private final long id;
+    private final int id;
+    private final int ruleId;
     private final Object ruleName;
 
-    SubRuleContext(long id, Object ruleName) {
+    SubRuleContext(int id, int ruleId, Object ruleName) {
         this.id = id;
+        this.ruleId = ruleId;
         this.ruleName = ruleName;
     }
 
+    int getId() {
+        return id;
+    }
+
+    int getRuleId() {
+        return ruleId;
+    }
+
     public Object getRuleName() {
         return ruleName;
     }
@@ -38,7 +57,7 @@ public final class SubRuleContext {
 
     @Override
     public int hashCode() {
-        return Long.hashCode(id);
+        return Integer.hashCode(id);
     }
 
     /**
@@ -47,10 +66,23 @@ public final class SubRuleContext {
     static final class Generator {
 
         private final Map<Object, Set<SubRuleContext>> nameToContext = new ConcurrentHashMap<>();
-        private long nextId;
+        private final Map<Object, Integer> nameToRuleId = new ConcurrentHashMap<>();
+        // the number of terminal NameState patterns each sub-rule is held by; one held by none can never match
+        private final Map<SubRuleContext, Integer> terminalCounts = new HashMap<>();
+        private final Deque<Integer> freeRuleIds = new ArrayDeque<>();
+        private int nextId;
+        private int nextRuleId;
 
         public SubRuleContext generate(Object ruleName) {
-            SubRuleContext subRuleContext = new SubRuleContext(nextId++, ruleName);
+            if (nextId == Integer.MAX_VALUE) {
+                throw new IllegalStateException("Sub-rule IDs exhausted");
+            }
+            Integer ruleId = nameToRuleId.get(ruleName);
+            if (ruleId == null) {
+                ruleId = freeRuleIds.isEmpty() ? Integer.valueOf(nextRuleId++) : freeRuleIds.pop();
+                nameToRuleId.put(ruleName, ruleId);
+            }
+            SubRuleContext subRuleContext = new SubRuleContext(nextId++, ruleId, ruleName);
             nameToContext.computeIfAbsent(ruleName, k -> new HashSet<>()).add(subRuleContext);
             return subRuleContext;
         }
@@ -58,5 +90,40 @@ public final class SubRuleContext {
         public Set<SubRuleContext> getIdsGeneratedForName(Object ruleName) {
             return nameToContext.get(ruleName);
         }
+
+        /**
+         * Records that a sub-rule has been added to a NameState as terminal for a pattern.
+         */
+        void addedTerminal(SubRuleContext subRuleContext) {
+            terminalCounts.merge(subRuleContext, 1, Integer::sum);
+        }
+
+        /**
+         * Records that a sub-rule has been deleted from a NameState where it was terminal for a pattern. Once it is
+         *  terminal nowhere, it is forgotten, and once all of its rule's sub-rules are, so is the rule's id.
+         */
+        void deletedTerminal(SubRuleContext subRuleContext) {
+            final Integer count = terminalCounts.get(subRuleContext);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                terminalCounts.put(subRuleContext, count - 1);
+                return;
+            }
+            terminalCounts.remove(subRuleContext);
+            final Object ruleName = subRuleContext.getRuleName();
+            final Set<SubRuleContext> contexts = nameToContext.get(ruleName);
+            contexts.remove(subRuleContext);
+            if (contexts.isEmpty()) {
+                nameToContext.remove(ruleName);
+                nameToRuleId.remove(ruleName);
+                freeRuleIds.push(subRuleContext.getRuleId());
+            }
+        }
+
+        int getRuleIdCount() {
+            return nextRuleId - freeRuleIds.size();
+        }
     }
 }
@@ -0,0 +1,118 @@
+package software.amazon.event.ruler;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+
+/**
+ * The ids of the sub-rules that used a pattern to reach a NameState, held as a sorted array alongside their rule
+ *  names and rule ids, so that matching can intersect them with a merge rather than by hashing SubRuleContexts.
+ *
+ * Instances are never changed as seen by a reader; with() and without() return new ones. Because sub-rule ids are
+ *  generated in increasing order, with() almost always appends, and it does so into spare room at the end of the
+ *  arrays, which it shares with the instance it returns. That room is beyond the size of this instance, so readers of
+ *  it are not disturbed, but it means only the newest instance may be appended to, which with() keeps track of.
+ */
+@ThreadSafe
+final class SubRuleIds {
+    private static final int INITIAL_CAPACITY = 4;
+
+    // sorted, distinct, and only meaningful up to size
+    final int[] ids;
+    final int[] ruleIds;
+    final Object[] ruleNames;
+    final int size;
+
+    // the hash of the ids, as SeenSteps.hash() works it out, kept so that matching needn't go through them all
+    final int idsHash;
+
+    // true once with() has appended to the arrays beyond size; only used by the thread updating the machine
+    private boolean appendedTo = false;
+
+    private SubRuleIds(final int[] ids, final int[] ruleIds, final Object[] ruleNames, final int size) {
+        this(ids, ruleIds, ruleNames, size, SeenSteps.hash(ids, size));
+    }
+
+    private SubRuleIds(final int[] ids, final int[] ruleIds, final Object[] ruleNames, final int size,
+                       final int idsHash) {
+        this.ids = ids;
+        this.ruleIds = ruleIds;
+        this.ruleNames = ruleNames;
+        this.size = size;
+        this.idsHash = idsHash;
+    }
+
+    static SubRuleIds of(final SubRuleContext subRuleId) {
+        final int[] ids = new int[INITIAL_CAPACITY];
+        final int[] ruleIds = new int[INITIAL_CAPACITY];
+        final Object[] ruleNames = new Object[INITIAL_CAPACITY];
+        ids[0] = subRuleId.getId();
+        ruleIds[0] = subRuleId.getRuleId();
+        ruleNames[0] = subRuleId.getRuleName();
+        return new SubRuleIds(ids, ruleIds, ruleNames, 1);
+    }
+
+    /**
+     * @return the ids with the given sub-rule's added, which may be this if it is already present
+     */
+    SubRuleIds with(final SubRuleContext subRuleId) {
+        final int id = subRuleId.getId();
+        if (ids[size - 1] < id && !appendedTo) {
+            int[] newIds = ids;
+            int[] newRuleIds = ruleIds;
+            Object[] newRuleNames = ruleNames;
+            if (size == ids.length) {
+                newIds = Arrays.copyOf(ids, size * 2);
+                newRuleIds = Arrays.copyOf(ruleIds, size * 2);
+                newRuleNames = Arrays.copyOf(ruleNames, size * 2);
+            } else {
+                appendedTo = true;
+            }
+            newIds[size] = id;
+            newRuleIds[size] = subRuleId.getRuleId();
+            newRuleNames[size] = subRuleId.getRuleName();
+            return new SubRuleIds(newIds, newRuleIds, newRuleNames, size + 1, SeenSteps.hash(idsHash, id));
+        }
+
+        int position = Arrays.binarySearch(ids, 0, size, id);
+        if (position >= 0) {
+            return this;
+        }
+        position = -position - 1;
+        final int[] newIds = new int[size + 1];
+        final int[] newRuleIds = new int[size + 1];
+        final Object[] newRuleNames = new Object[size + 1];
+        System.arraycopy(ids, 0, newIds, 0, position);
+        System.arraycopy(ruleIds, 0, newRuleIds, 0, position);
+        System.arraycopy(ruleNames, 0, newRuleNames, 0, position);
+        newIds[position] = id;
+        newRuleIds[position] = subRuleId.getRuleId();
+        newRuleNames[position] = subRuleId.getRuleName();
+        System.arraycopy(ids, position, newIds, position + 1, size - position);
+        System.arraycopy(ruleIds, position, newRuleIds, position + 1, size - position);
+        System.arraycopy(ruleNames, position, newRuleNames, position + 1, size - position);
+        return new SubRuleIds(newIds, newRuleIds, newRuleNames, size + 1);
+    }
+
+    /**
+     * @return the ids with the given sub-rule's removed, which may be this if it is absent, or null if none are left
+     */
+    SubRuleIds without(final SubRuleContext subRuleId) {
+        final int position = Arrays.binarySearch(ids, 0, size, subRuleId.getId());
+        if (position < 0) {
+            return this;
+        }
+        if (size == 1) {
+            return null;
+        }
+        final int[] newIds = new int[size - 1];
+        final int[] newRuleIds = new int[size - 1];
+        final Object[] newRuleNames = new Object[size - 1];
+        System.arraycopy(ids, 0, newIds, 0, position);
+        System.arraycopy(ruleIds, 0, newRuleIds, 0, position);
+        System.arraycopy(ruleNames, 0, newRuleNames, 0, position);
+        System.arraycopy(ids, position + 1, newIds, position, newIds.length - position);
+        System.arraycopy(ruleIds, position + 1, newRuleIds, position, newRuleIds.length - position);
+        System.arraycopy(ruleNames, position + 1, newRuleNames, position, newRuleNames.length - position);
+        return new SubRuleIds(newIds, newRuleIds, newRuleNames, size - 1);
+    }
+}
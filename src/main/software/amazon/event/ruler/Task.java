@@ -3,7 +3,6 @@ package software.amazon.event.ruler;
 import javax.annotation.concurrent.ThreadSafe;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Queue;
@@ -51,13 +50,9 @@ class Task {
         return machine.getStartState();
     }
 
-    // The field used means all steps in the field must be all used individually.
+    // The field used means the flattened field name is used by some rule.
     boolean isFieldUsed(final String field) {
-        if (field.contains(".")) {
-            String[] steps = field.split("\\.");
-            return Arrays.stream(steps).allMatch(machine::isFieldStepUsed);
-        }
-        return machine.isFieldStepUsed(field);
+        return machine.isFieldUsed(field);
     }
 
     Step nextStep() {
@@ -0,0 +1,85 @@
+package software.amazon.event.ruler;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The transitions a ByteMachine found for the values it was most recently asked about, kept from one event to the
+ *  next, so that values which come up again and again, as many do in fields such as "source" or "detail-type", are
+ *  not matched against the machine's patterns each time.
+ *
+ * The cache is a fixed number of slots, each holding one immutable entry, and a value can only be in the slot its
+ *  hash picks, so a new entry simply replaces whatever was there. That keeps it bounded without any bookkeeping, and
+ *  lets any number of threads read and write it without locking; at worst a thread's entry is lost to another's.
+ *
+ * Each entry records the ByteMachine's version when its transitions were found, which the machine increases whenever
+ *  a pattern is added or deleted, and an entry from an earlier version is never used. Values longer than
+ *  MAX_VALUE_LENGTH are not cached, as they are seldom repeated and are costly to copy and compare.
+ */
+@ThreadSafe
+final class TransitionCache {
+    static final int MAX_VALUE_LENGTH = 256;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+
+    /**
+     * @param size the number of entries to hold, which is rounded up to a power of two
+     */
+    TransitionCache(final int size) {
+        final int capacity = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        entries = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return the transitions cached for a value as of the given version of the machine, or null if there are none
+     */
+    NameStateWithPattern[] get(final byte[] value, final Field.ValueType valueType, final int version) {
+        final int hash = hash(value, valueType);
+        final Entry entry = entries.get(hash & mask);
+        if (entry != null && entry.hash == hash && entry.version == version && entry.valueType == valueType
+                && Arrays.equals(entry.value, value)) {
+            return entry.transitions;
+        }
+        return null;
+    }
+
+    /**
+     * Cache the transitions found for a value by the given version of the machine. The value is copied, as the caller
+     *  may reuse its array.
+     */
+    void put(final byte[] value, final Field.ValueType valueType, final int version,
+             final List<NameStateWithPattern> transitions) {
+        final int hash = hash(value, valueType);
+        entries.lazySet(hash & mask, new Entry(value.clone(), valueType, hash, version,
+                transitions.toArray(new NameStateWithPattern[0])));
+    }
+
+    int capacity() {
+        return entries.length();
+    }
+
+    private static int hash(final byte[] value, final Field.ValueType valueType) {
+        return EntryTable.mix(Arrays.hashCode(value) * 31 + valueType.ordinal());
+    }
+
+    private static final class Entry {
+        final byte[] value;
+        final Field.ValueType valueType;
+        final int hash;
+        final int version;
+        final NameStateWithPattern[] transitions;
+
+        Entry(final byte[] value, final Field.ValueType valueType, final int hash, final int version,
+              final NameStateWithPattern[] transitions) {
+            this.value = value;
+            this.valueType = valueType;
+            this.hash = hash;
+            this.version = version;
+            this.transitions = transitions;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package software.amazon.event.ruler;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The value transitions an ACTask has found for one event, by ByteMachine and field index, so that when matching
+ *  reaches the same ByteMachine with the same field again, by another route through the machine, the transitions are
+ *  not worked out again. That happens when a NameState is reached more than once with different candidate sub-rules or
+ *  array membership, as with additionalNameStateReuse or rules that overlap.
+ *
+ * The transitions for each entry are held next to one another in one array, which only grows while the event is
+ *  matched, so an entry's stay where they are until the next event. As with SeenSteps, the entries are found through
+ *  an EntryTable. The counts of hits and misses are kept for the life of the memo, so that its benefit can be
+ *  measured.
+ */
+@NotThreadSafe
+final class TransitionMemo {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // the entries, indexed by their number in the table
+    private final EntryTable table = new EntryTable(INITIAL_CAPACITY);
+    private ByteMachine[] entryMachines = new ByteMachine[INITIAL_CAPACITY / 2 + 1];
+    private int[] entryFieldIndexes = new int[INITIAL_CAPACITY / 2 + 1];
+    private int[] entryStarts = new int[INITIAL_CAPACITY / 2 + 1];
+    private int[] entryEnds = new int[INITIAL_CAPACITY / 2 + 1];
+
+    private NameStateWithPattern[] transitions = new NameStateWithPattern[INITIAL_CAPACITY];
+    private int transitionCount = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Forget the transitions of the last event.
+     */
+    void clear() {
+        Arrays.fill(entryMachines, 1, table.size() + 1, null);
+        table.clear();
+        Arrays.fill(transitions, 0, transitionCount, null);
+        transitionCount = 0;
+    }
+
+    /**
+     * @return the number of the entry for the transitions from a ByteMachine on a field, or 0 if there is none yet
+     */
+    int find(final ByteMachine machine, final int fieldIndex) {
+        int slot = table.slot(hash(machine, fieldIndex));
+        for (int number = table.numberAt(slot); number != 0; number = table.numberAt(slot)) {
+            if (entryMachines[number] == machine && entryFieldIndexes[number] == fieldIndex) {
+                hits++;
+                return number;
+            }
+            slot = table.next(slot);
+        }
+        misses++;
+        return 0;
+    }
+
+    /**
+     * Record the transitions from a ByteMachine on a field, which find() has just said are not yet known.
+     *
+     * @return the number of the new entry
+     */
+    int add(final ByteMachine machine, final int fieldIndex, final List<NameStateWithPattern> found) {
+        final int hash = hash(machine, fieldIndex);
+        int slot = table.slot(hash);
+        while (table.numberAt(slot) != 0) {
+            slot = table.next(slot);
+        }
+
+        final int count = found.size();
+        if (transitionCount + count > transitions.length) {
+            transitions = Arrays.copyOf(transitions, Math.max(transitions.length * 2, transitionCount + count));
+        }
+        for (int i = 0; i < count; i++) {
+            transitions[transitionCount + i] = found.get(i);
+        }
+
+        final int number = table.add(slot, hash);
+        if (number == entryMachines.length) {
+            grow();
+        }
+        entryMachines[number] = machine;
+        entryFieldIndexes[number] = fieldIndex;
+        entryStarts[number] = transitionCount;
+        entryEnds[number] = transitionCount + count;
+        transitionCount += count;
+        return number;
+    }
+
+    /**
+     * @return the array holding the transitions of all entries; those of an entry are between start() and end()
+     */
+    NameStateWithPattern[] transitions() {
+        return transitions;
+    }
+
+    int start(final int number) {
+        return entryStarts[number];
+    }
+
+    int end(final int number) {
+        return entryEnds[number];
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    private void grow() {
+        final int length = entryMachines.length * 2;
+        entryMachines = Arrays.copyOf(entryMachines, length);
+        entryFieldIndexes = Arrays.copyOf(entryFieldIndexes, length);
+        entryStarts = Arrays.copyOf(entryStarts, length);
+        entryEnds = Arrays.copyOf(entryEnds, length);
+    }
+
+    private static int hash(final ByteMachine machine, final int fieldIndex) {
+        return EntryTable.mix(System.identityHashCode(machine) * 31 + fieldIndex);
+    }
+}
@@ -1,5 +1,6 @@
 package software.amazon.event.ruler;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 /**
@@ -10,15 +11,23 @@ public class ValuePatterns extends Patterns {
 
     private final String pattern;
 
+    // UTF-8 form of the pattern, worked out here so that, being final, it is safely seen by all matching threads
+    private final byte[] patternBytes;
+
     ValuePatterns(final MatchType type, final String pattern) {
         super(type);
         this.pattern = pattern;
+        this.patternBytes = pattern == null ? null : pattern.getBytes(StandardCharsets.UTF_8);
     }
 
     public String pattern() {
         return pattern;
     }
 
+    byte[] patternBytes() {
+        return patternBytes;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -5,36 +5,41 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertSame;
 
 public class ArrayMembershipTest {
     @Test
     public void WHenARoleIsPutThenItIsRetrieved() {
-        ArrayMembership cut = new ArrayMembership();
+        ArrayMembership cut = ArrayMembership.EMPTY;
         int[] indices = { 3, 8, 800000, 77};
         for (int index : indices) {
             assertEquals(-1, cut.getMembership(index));
         }
         for (int index : indices) {
-            cut.putMembership(index, index + 27);
+            ArrayMembership before = cut;
+            cut = cut.with(index, index + 27);
             assertEquals(index + 27, cut.getMembership(index));
             assertEquals(-1, cut.getMembership(index + 1));
+            assertEquals(-1, before.getMembership(index));
             assertFalse(cut.isEmpty());
         }
+        assertEquals("3[30] 8[35] 77[104] 800000[800027] ", cut.toString());
+        assertSame(cut, cut.with(8, 35));
+        assertEquals(36, cut.with(8, 36).getMembership(8));
+        assertEquals(35, cut.getMembership(8));
     }
 
     private void checkWanted(int[][] wanted, ArrayMembership membership) {
         for (int[] pair : wanted) {
             assertEquals(String.format("%d/%d", pair[0], pair[1]), pair[1], membership.getMembership(pair[0]));
-            membership.deleteMembership(pair[0]);
         }
-        assertTrue("Extra memberships", membership.isEmpty());
+        assertEquals("Extra memberships", wanted.length, membership.size());
     }
 
     private ArrayMembership fromPairs(int[][] pairs) {
-        ArrayMembership am = new ArrayMembership();
+        ArrayMembership am = ArrayMembership.EMPTY;
         for (int[] pair : pairs) {
-            am.putMembership(pair[0], pair[1]);
+            am = am.with(pair[0], pair[1]);
         }
         return am;
     }
@@ -42,7 +47,7 @@ public class ArrayMembershipTest {
     @Test
     public void WHEN_MembershipsAreCompared_THEN_TheyAreMergedProperly() {
 
-        ArrayMembership empty = new ArrayMembership();
+        ArrayMembership empty = ArrayMembership.EMPTY;
 
         int[][] sofar = {
                 {0, 0},
@@ -97,4 +102,23 @@ public class ArrayMembershipTest {
         assertNull(result);
     }
 
+    @Test
+    public void WHEN_OneMembershipContainsTheOther_THEN_ItIsReturnedWithoutCopying() {
+        ArrayMembership outer = fromPairs(new int[][] { {0, 1}, {2, 3} });
+        ArrayMembership inner = outer.with(5, 0);
+        ArrayMembership peer = fromPairs(new int[][] { {2, 3} });
+
+        assertSame(inner, ArrayMembership.checkArrayConsistency(outer, inner));
+        assertSame(inner, ArrayMembership.checkArrayConsistency(inner, outer));
+        assertSame(outer, ArrayMembership.checkArrayConsistency(outer, peer));
+        assertSame(outer, ArrayMembership.checkArrayConsistency(peer, outer));
+        assertSame(inner, ArrayMembership.checkArrayConsistency(inner, inner));
+        assertSame(outer, ArrayMembership.checkArrayConsistency(outer, ArrayMembership.EMPTY));
+        assertSame(outer, ArrayMembership.checkArrayConsistency(ArrayMembership.EMPTY, outer));
+
+        ArrayMembership merged = ArrayMembership.checkArrayConsistency(peer.with(1, 7), inner);
+        assertEquals("0[1] 1[7] 2[3] 5[0] ", merged.toString());
+        assertNull(ArrayMembership.checkArrayConsistency(inner, outer.with(5, 1)));
+    }
+
 }
\ No newline at end of file
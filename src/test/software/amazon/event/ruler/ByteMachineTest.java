@@ -375,6 +375,34 @@ public class ByteMachineTest {
         }
     }
 
+    @Test
+    public void WHEN_AFieldIsMatchedByManyMachines_THEN_ItsNumericAndIPFormsAreOnlyWorkedOutOnce() {
+        ByteMachine numeric1 = new ByteMachine();
+        numeric1.addPattern(Patterns.numericEquals("300.0"));
+        ByteMachine numeric2 = new ByteMachine();
+        numeric2.addPattern(Range.lessThan("500"));
+        ByteMachine ip = new ByteMachine();
+        ip.addPattern(CIDR.cidr("10.0.0.0/24"));
+
+        Field number = new Field("a", "3.0e2", ArrayMembership.EMPTY);
+        assertEquals(1, numeric1.transitionOn(number).size());
+        byte[] comparable = number.comparableNumber();
+        assertNotNull(comparable);
+        assertEquals(1, numeric2.transitionOn(number).size());
+        assertSame(comparable, number.comparableNumber());
+        assertEquals(0, ip.transitionOn(number).size());
+        assertNull(number.ip());
+
+        Field address = new Field("a", "\"10.0.0.7\"", ArrayMembership.EMPTY);
+        assertEquals(1, ip.transitionOn(address).size());
+        byte[] ipBytes = address.ip();
+        assertNotNull(ipBytes);
+        assertEquals(1, ip.transitionOn(address).size());
+        assertSame(ipBytes, address.ip());
+        assertEquals(0, numeric1.transitionOn(address).size());
+        assertNull(address.comparableNumber());
+    }
+
     @Test
     public void WHEN_AnExactMatchAndAPrefixMatchCoincide_THEN_TwoNameStateJumpsAreGenerated() {
         ByteMachine cut = new ByteMachine();
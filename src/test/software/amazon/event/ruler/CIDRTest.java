@@ -10,6 +10,7 @@ import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -57,6 +58,22 @@ public class CIDRTest {
 
         for (String bad : bads) {
             assertEquals(bad, CIDR.ipToStringIfPossible(bad));
+            assertNull(CIDR.ipToStringIfValid(bad));
+        }
+    }
+
+    @Test
+    public void testToStringIfValid() {
+        String[] goods = { "10.0.0.1", "0.0.0.0", "255.255.255.255", "::", "::1", "2400:6500:FF00::36FB:1F80",
+                "2400:6500:ff00::36fb:1f80", "1:2:3:4:5:6:7:8" };
+        for (String good : goods) {
+            assertEquals(CIDR.ipToString(good), CIDR.ipToStringIfValid(good));
+        }
+        String[] bads = { "", ".", "...", "1.2.3", "1.2.3.", ".1.2.3", "1..2.3", "1.2.3.4.", "a.b.c.d", "1.2.3.x",
+                "g::1", "2400 6500", "12345", "\"10.0.0.1\"", "10.0.0.1/24" };
+        for (String bad : bads) {
+            assertNull(CIDR.ipToStringIfValid(bad));
+            assertEquals(bad, CIDR.ipToStringIfPossible(bad));
         }
     }
 
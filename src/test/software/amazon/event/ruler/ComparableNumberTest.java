@@ -2,6 +2,8 @@ package software.amazon.event.ruler;
 
 import org.junit.Test;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -11,6 +13,7 @@ import java.util.Random;
 import java.util.TreeMap;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -33,6 +36,54 @@ public class ComparableNumberTest {
         }
     }
 
+    @Test
+    public void WHEN_BinaryNumbersAreProvided_THEN_TheyGenerateTheSameStringsAsTheirText() {
+        Number[] numbers = {
+                0, -1, 42, Integer.MAX_VALUE, Integer.MIN_VALUE, (short) -7, (byte) 3,
+                0L, 1L << 53, -(1L << 53), 123456789012345L,
+                0.0, -0.0, 3.8, -122.413496, 2.5e4, 5E11, Double.MAX_VALUE, Double.MIN_VALUE,
+                1.5f, -0.25f, 0.1f, -122.4135f, 3.3e-7f, Float.MAX_VALUE, -0.0f,
+                new BigDecimal("27.807807921694092"), new BigDecimal("-5000000000.00"), BigInteger.valueOf(123456789L)
+        };
+        for (Number number : numbers) {
+            assertEquals(number + " (" + number.getClass().getSimpleName() + ")",
+                    ComparableNumber.generate(number.toString()), ComparableNumber.generate(number));
+        }
+
+        Number[] incomparable = {
+                Double.NaN, Double.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, (1L << 53) + 1, Long.MAX_VALUE, Long.MIN_VALUE,
+                new BigDecimal("0.1000000000000000000001"), BigInteger.TEN.pow(400)
+        };
+        for (Number number : incomparable) {
+            try {
+                ComparableNumber.generate(number);
+                fail("Expected failure for " + number);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertNull(ComparableNumber.generateIfComparable(number));
+        }
+    }
+
+    @Test
+    public void WHEN_ValuesMightNotBeNumbers_THEN_GenerateIfComparableAgreesWithGenerateWithoutThrowing() {
+        String[] values = {
+                "0", "-0", "+7", "42", "3.8", "-122.413496", "2.5e4", "2.5E+4", "25e-1", "1.", ".5", "-.5", "00012",
+                "5E11", "1e400", "0.1000000000000000000001", "1e99999999999",
+                "", "-", "+", ".", "e5", "1e", "1e+", "1.2.3", "--1", "1-", " 1", "1 ", "0x10", "NaN", "Infinity",
+                "\"5\"", "true", "null", "10.0.0.1", "abc"
+        };
+        for (String value : values) {
+            String expected;
+            try {
+                expected = ComparableNumber.generate(value);
+            } catch (IllegalArgumentException e) {
+                expected = null;
+            }
+            assertEquals(value, expected, ComparableNumber.generateIfComparable(value));
+        }
+    }
+
     @Test
     public void WHEN_EventHasVaryingPrecision_THEN_MatchRuleWithDecimalAsString() throws Exception {
         String badRule = "{\"x\": [ 27.807807921694092 ] }";
@@ -0,0 +1,63 @@
+package software.amazon.event.ruler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EntryTableTest {
+
+    @Test
+    public void testEntriesAreNumberedInOrderAndFoundByHash() {
+        EntryTable table = new EntryTable(4);
+        for (int round = 0; round < 2; round++) {
+            // all with the same low bits, so that they collide, and enough of them that the table grows
+            for (int i = 0; i < 100; i++) {
+                int hash = i << 16;
+                assertEquals(0, find(table, hash));
+                assertEquals(i + 1, add(table, hash));
+            }
+            assertEquals(100, table.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i + 1, find(table, i << 16));
+                assertEquals(i << 16, table.hashOf(i + 1));
+            }
+            table.clear();
+            assertEquals(0, table.size());
+            assertEquals(0, find(table, 0));
+        }
+    }
+
+    @Test
+    public void testMixSpreadsLowBits() {
+        EntryTable table = new EntryTable(64);
+        for (int i = 0; i < 32; i++) {
+            add(table, EntryTable.mix(i));
+        }
+        int spread = 0;
+        for (int i = 0; i < 32; i++) {
+            if (table.numberAt(table.slot(EntryTable.mix(i))) == i + 1) {
+                spread++;
+            }
+        }
+        assertEquals(32, table.size());
+        assertTrue(spread > 16);
+    }
+
+    private static int find(EntryTable table, int hash) {
+        for (int slot = table.slot(hash); table.numberAt(slot) != 0; slot = table.next(slot)) {
+            if (table.hashOf(table.numberAt(slot)) == hash) {
+                return table.numberAt(slot);
+            }
+        }
+        return 0;
+    }
+
+    private static int add(EntryTable table, int hash) {
+        int slot = table.slot(hash);
+        while (table.numberAt(slot) != 0) {
+            slot = table.next(slot);
+        }
+        return table.add(slot, hash);
+    }
+}
@@ -4,12 +4,23 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.TreeMap;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -74,7 +85,7 @@ public class EventTest {
     public void WHEN_EventIsConstructed_THEN_SimpleArraysAreHandledCorrectly() throws Exception {
         Machine m = new Machine();
         m.addRule("r1", catchAllRules[0]);
-        Event e = new Event(jsonFromRFC[0], m);
+        Event e = new Event(jsonFromRFC[0], m, new MatchContext());
         String[] wantKeys = {
           "Image.Animated", "Image.Height", "Image.IDs", "Image.IDs", "Image.IDs", "Image.IDs",
                 "Image.Thumbnail.Height", "Image.Thumbnail.Url", "Image.Thumbnail.Width", "Image.Title", "Image.Width"
@@ -121,13 +132,13 @@ public class EventTest {
                 "lines.points", "lines.points", "lines.points", "lines.points", "lines.points.pp", "lines.points.pp"
         };
         String[] wantedArrayMemberships = {
-                "0[0] 2[0] 1[0] ", "0[0] 2[0] 1[0] ", "0[0] 2[1] 1[0] ", "0[0] 2[1] 1[0] ", "0[0] 2[0] 3[2] 1[0] ",
-                "0[0] 4[0] 2[1] 1[0] "
+                "0[0] 1[0] 2[0] ", "0[0] 1[0] 2[0] ", "0[0] 1[0] 2[1] ", "0[0] 1[0] 2[1] ", "0[0] 1[0] 2[0] 3[2] ",
+                "0[0] 1[0] 2[1] 4[0] "
         };
 
         Machine m = new Machine();
         m.addRule("r", rule);
-        Event e = new Event(hetero, m);
+        Event e = new Event(hetero, m, new MatchContext());
         for (int i = 0; i < e.fields.size(); i++) {
             assertEquals("testcase #" + i, wantedFieldNames[i], e.fields.get(i).name);
             assertEquals("testcase #" + i, wantedArrayMemberships[i], e.fields.get(i).arrayMembership.toString());
@@ -204,18 +215,181 @@ public class EventTest {
 
         Machine m = new Machine();
         m.addRule("r1", songsRule);
-        Event e = new Event(songs, m);
+        Event e = new Event(songs, m, new MatchContext());
         checkFlattening(e, wantedKeys, null);
         for (Field f : e.fields) {
-            assertEquals(f.val, wantedMemberships.get(f.val), f.arrayMembership.toString().trim());
+            assertEquals(f.val(), wantedMemberships.get(f.val()), f.arrayMembership.toString().trim());
         }
     }
 
+    @Test
+    public void WHEN_EventIsConstructedFromBytes_THEN_FieldsMatchTheStringVersion() throws Exception {
+        Machine m = new Machine();
+        m.addRule("r1", catchAllRules[0]);
+        for (String json : jsonFromRFC) {
+            Event fromString = new Event(json, m, new MatchContext());
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            Event fromBytes = new Event(bytes, 0, bytes.length, m, new MatchContext());
+            Event fromBuffer = new Event(ByteBuffer.wrap(bytes), m, new MatchContext());
+            assertEquals(fromString.fields.size(), fromBytes.fields.size());
+            assertEquals(fromString.fields.size(), fromBuffer.fields.size());
+            for (int i = 0; i < fromString.fields.size(); i++) {
+                assertEquals(fromString.fields.get(i).name, fromBytes.fields.get(i).name);
+                assertEquals(fromString.fields.get(i).val(), fromBytes.fields.get(i).val());
+                assertEquals(fromString.fields.get(i).name, fromBuffer.fields.get(i).name);
+                assertEquals(fromString.fields.get(i).val(), fromBuffer.fields.get(i).val());
+            }
+        }
+    }
+
+    @Test
+    public void WHEN_ValuesAreEncoded_THEN_TheBytesMatchTheQuotedStringEncoding() throws Exception {
+        String[] vals = { "", "abc", "caf\u00e9", "\u20ac100", "\ud83d\ude00 smile", "lone \ud83d here", "end \ude00",
+                "tab\tquote\"" };
+        Machine m = new Machine();
+        m.addRule("r1", "{ \"a\": [ { \"exists\": true } ], \"n\": [ { \"exists\": true } ] }");
+        for (String val : vals) {
+            String json = "{ \"a\": " + new ObjectMapper().writeValueAsString(val) + ", \"n\": -1.5e3 }";
+            Event[] events = {
+                    new Event(json, m, new MatchContext()),
+                    new Event(new ObjectMapper().readTree(json), m, new MatchContext())
+            };
+            for (Event e : events) {
+                assertEquals(2, e.fields.size());
+                // unpaired surrogates come out as '?', just as they do from String.getBytes()
+                byte[] wanted = ('"' + val + '"').getBytes(StandardCharsets.UTF_8);
+                assertArrayEquals(wanted, e.fields.get(0).valBytes);
+                assertEquals(new String(wanted, StandardCharsets.UTF_8), e.fields.get(0).val());
+                assertArrayEquals(e.fields.get(1).val().getBytes(StandardCharsets.UTF_8), e.fields.get(1).valBytes);
+            }
+        }
+    }
+
+    @Test
+    public void WHEN_EventIsConstructed_THEN_EachFieldRecordsItsValueType() throws Exception {
+        Machine m = new Machine();
+        m.addRule("r1", "{ \"a\": [ { \"exists\": true } ], \"b\": [ { \"exists\": true } ], " +
+                "\"c\": [ { \"exists\": true } ], \"d\": [ { \"exists\": true } ] }");
+        String json = "{ \"a\": \"10.0.0.1\", \"b\": 12.5, \"c\": [ true, null ], \"d\": \"12.5\" }";
+        Map<String, Object> map = new HashMap<>();
+        map.put("a", "10.0.0.1");
+        map.put("b", 12.5);
+        map.put("c", Arrays.asList(true, null));
+        map.put("d", "12.5");
+
+        Event[] events = {
+                new Event(json, m, new MatchContext()),
+                new Event(new ObjectMapper().readTree(json), m, new MatchContext()),
+                new Event(map, m, new MatchContext())
+        };
+        for (Event e : events) {
+            assertEquals(5, e.fields.size());
+            assertEquals(Field.ValueType.STRING, e.fields.get(0).valueType);
+            assertEquals(Field.ValueType.NUMBER, e.fields.get(1).valueType);
+            assertEquals(Field.ValueType.LITERAL, e.fields.get(2).valueType);
+            assertEquals(Field.ValueType.LITERAL, e.fields.get(3).valueType);
+            assertEquals(Field.ValueType.STRING, e.fields.get(4).valueType);
+
+            // only a number can have a numeric form, and only a string an IP address form
+            assertNull(e.fields.get(0).comparableNumber());
+            assertNotNull(e.fields.get(0).ip());
+            assertNotNull(e.fields.get(1).comparableNumber());
+            assertNull(e.fields.get(1).ip());
+            assertNull(e.fields.get(2).comparableNumber());
+            assertNull(e.fields.get(4).comparableNumber());
+        }
+    }
+
+    @Test
+    public void WHEN_EventIsFedIncrementally_THEN_FieldsMatchTheStringVersion() throws Exception {
+        Machine m = new Machine();
+        m.addRule("r1", catchAllRules[0]);
+        m.addRule("r2", "{ \"lines\": { \"points\": [ 4 ], \"points.pp\": [ \"index0\" ] } }");
+        List<String> events = new ArrayList<>(Arrays.asList(jsonFromRFC));
+        events.add("{ \"lines\": [ { \"points\": [ [ 1, 2 ], [ 3, { \"pp\": [ \"index0\", [ \"x\" ] ] } ] ] }, " +
+                "{ \"points\": [ [ 4 ], [], {} ], \"other\": [ [ { \"a\": 1 } ] ] } ], " +
+                "\"caf\u00e9\": \"\u20ac\ud83d\ude00\" }");
+        for (String json : events) {
+            Event whole = new Event(json, m, new MatchContext());
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            for (int chunkSize : new int[] { 1, 2, 5, 64, bytes.length }) {
+                Event.Incremental incremental = new Event.Incremental(m, new MatchContext());
+                for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+                    incremental.feed(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+                }
+                Event fed = incremental.finish();
+                assertEquals(whole.fields.size(), fed.fields.size());
+                for (int i = 0; i < whole.fields.size(); i++) {
+                    Field expected = whole.fields.get(i);
+                    Field actual = fed.fields.get(i);
+                    assertEquals(expected.name, actual.name);
+                    assertEquals(expected.nameId, actual.nameId);
+                    assertEquals(expected.valueType, actual.valueType);
+                    assertEquals(expected.val(), actual.val());
+                    assertEquals(expected.arrayMembership, actual.arrayMembership);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void WHEN_FieldsAreBuffered_THEN_TheyAreSortedByNameKeepingInsertionOrderForEqualNames() {
+        String[] names = { "b", "a.c", "b", "a", "c", "a.c", "B", "b", "a", "ab", "a.b", "c", "a" };
+        Event.FieldBuffer buffer = new Event.FieldBuffer();
+        FieldPathTrie ids = new FieldPathTrie();
+        for (int i = 0; i < names.length; i++) {
+            buffer.add(new String(names[i]), ids.fieldId(names[i]), Integer.toString(i).getBytes(StandardCharsets.UTF_8),
+                    Field.ValueType.NUMBER, ArrayMembership.EMPTY);
+        }
+        assertEquals(names.length, buffer.size());
+
+        Map<String, List<String>> wanted = new TreeMap<>();
+        for (int i = 0; i < names.length; i++) {
+            wanted.computeIfAbsent(names[i], k -> new ArrayList<>()).add(Integer.toString(i));
+        }
+        List<Field> fields = new ArrayList<>();
+        buffer.sortInto(fields);
+        int i = 0;
+        for (Map.Entry<String, List<String>> entry : wanted.entrySet()) {
+            for (String val : entry.getValue()) {
+                assertEquals(entry.getKey(), fields.get(i).name);
+                assertEquals(ids.fieldId(entry.getKey()), fields.get(i).nameId);
+                assertEquals(val, fields.get(i).val());
+                i++;
+            }
+        }
+        assertEquals(names.length, i);
+
+        buffer.clear();
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void WHEN_EventIsConstructed_THEN_OnlyPathsLeadingToRuleFieldsAreKept() throws Exception {
+        Machine m = new Machine();
+        m.addRule("r1", "{ \"detail\": { \"foo\": [ 1 ] }, \"bar\": [ 2 ] }");
+        String event = "{ \"detail\": { \"bar\": 2, \"foo\": 1, \"foo.x\": 3 }, \"detail.foo\": 4, " +
+                "\"bar\": { \"foo\": 5 }, \"foo\": { \"bar\": 6 }, \"x\": { \"detail\": { \"foo\": 7 } } }";
+        String[] wantedKeys = { "detail.foo", "detail.foo" };
+        String[] wantedVals = { "1", "4" };
+
+        Event e = new Event(event, m, new MatchContext());
+        assertEquals(wantedKeys.length, e.fields.size());
+        checkFlattening(e, wantedKeys, wantedVals);
+
+        e = new Event(new ObjectMapper().readTree(event), m, new MatchContext());
+        assertEquals(wantedKeys.length, e.fields.size());
+        checkFlattening(e, wantedKeys, wantedVals);
+
+        assertTrue(m.rulesForJSONEvent(event).isEmpty());
+        assertEquals(1, m.rulesForJSONEvent(event.replace("\"bar\": { \"foo\": 5 }", "\"bar\": 2")).size());
+    }
+
     private void checkFlattening(Event e, String[] wantedKeys, String[] wantedVals) {
         for (int i = 0; i < e.fields.size(); i++) {
             assertEquals(wantedKeys[i], e.fields.get(i).name);
             if (wantedVals != null && wantedVals[i] != null) {
-                assertEquals(wantedVals[i], e.fields.get(i).val);
+                assertEquals(wantedVals[i], e.fields.get(i).val());
             }
         }
     }
@@ -323,4 +497,58 @@ public class EventTest {
         assertTrue(a.contains("1"));
         assertTrue(a.contains("2"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void WHEN_TwoNamesShareAnIdInOneEvent_THEN_FieldsAreStillSortedByName() throws Exception {
+        Machine m = new Machine();
+        m.addRule("z", "{ \"z\": [ \"x\" ] }");
+        m.addRule("m", "{ \"m\": [ \"x\" ] }");
+
+        // once "z" has been read, the rule using it goes and one using "a" comes, and "a" is given the id "z" had
+        List<Map.Entry<String, Object>> entries = Arrays.asList(new AbstractMap.SimpleEntry<>("z", "x"),
+                new AbstractMap.SimpleEntry<>("m", "x"), new AbstractMap.SimpleEntry<>("a", "x"));
+        Map<String, Object> event = new AbstractMap<String, Object>() {
+            @Override
+            public Set<Entry<String, Object>> entrySet() {
+                return new AbstractSet<Entry<String, Object>>() {
+                    @Override
+                    public Iterator<Entry<String, Object>> iterator() {
+                        return new Iterator<Entry<String, Object>>() {
+                            private int next = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return next < entries.size();
+                            }
+
+                            @Override
+                            public Entry<String, Object> next() {
+                                if (next == 1) {
+                                    try {
+                                        m.deleteRule("z", "{ \"z\": [ \"x\" ] }");
+                                        m.addRule("a", "{ \"a\": [ \"x\" ] }");
+                                    } catch (Exception e) {
+                                        throw new IllegalStateException(e);
+                                    }
+                                }
+                                return entries.get(next++);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return entries.size();
+                    }
+                };
+            }
+        };
+
+        Event e = new Event(event, m, new MatchContext());
+        assertEquals(3, e.fields.size());
+        assertEquals("a", e.fields.get(0).name);
+        assertEquals("m", e.fields.get(1).name);
+        assertEquals("z", e.fields.get(2).name);
+        assertEquals(e.fields.get(0).nameId, e.fields.get(2).nameId);
+    }
+}
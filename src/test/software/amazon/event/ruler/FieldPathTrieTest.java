@@ -0,0 +1,125 @@
+package software.amazon.event.ruler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FieldPathTrieTest {
+
+    @Test
+    public void WHEN_FieldNamesAreAdded_THEN_OnlyTheirPathsCanBeStepped() {
+        FieldPathTrie cut = new FieldPathTrie();
+        cut.add("detail.foo");
+        cut.add("bar");
+
+        FieldPathTrie.Node root = cut.getRoot();
+        FieldPathTrie.Node detail = root.step("detail");
+        assertNotNull(detail);
+        assertFalse(detail.isFieldName());
+        assertTrue(detail.step("foo").isFieldName());
+        assertNull(detail.step("bar"));
+        assertTrue(root.step("bar").isFieldName());
+        assertNull(root.step("foo"));
+
+        assertTrue(cut.contains("detail.foo"));
+        assertTrue(cut.contains("bar"));
+        assertFalse(cut.contains("detail"));
+        assertFalse(cut.contains("detail.bar"));
+        assertFalse(cut.contains("foo"));
+    }
+
+    @Test
+    public void WHEN_EventKeysContainDots_THEN_TheyAreSteppedThroughOneSegmentAtATime() {
+        FieldPathTrie cut = new FieldPathTrie();
+        cut.add("a.b.c");
+        cut.add("x..y");
+
+        FieldPathTrie.Node root = cut.getRoot();
+        FieldPathTrie.Node c = root.step("a").step("b").step("c");
+        assertSame(c, root.step("a.b.c"));
+        assertSame(c, root.step("a.b").step("c"));
+        assertSame(c, root.step("a").step("b.c"));
+        assertNull(root.step("a.c"));
+        assertNull(root.step("a.b.c.d"));
+        assertTrue(root.step("x..y").isFieldName());
+        assertTrue(root.step("x").step("").step("y").isFieldName());
+    }
+
+    @Test
+    public void WHEN_FieldNamesAreRemoved_THEN_TheyAreForgottenOnlyAfterTheLastUse() {
+        FieldPathTrie cut = new FieldPathTrie();
+        assertTrue(cut.isEmpty());
+        cut.add("a.b");
+        cut.add("a.b");
+        cut.add("a.c");
+        cut.add("a");
+
+        cut.remove("a.b");
+        assertTrue(cut.contains("a.b"));
+        cut.remove("a.b");
+        assertFalse(cut.contains("a.b"));
+        assertNull(cut.getRoot().step("a.b"));
+        assertTrue(cut.getRoot().step("a.c").isFieldName());
+
+        cut.remove("a");
+        assertFalse(cut.contains("a"));
+        FieldPathTrie.Node a = cut.getRoot().step("a");
+        assertNotNull(a);
+        assertFalse(a.isFieldName());
+
+        cut.remove("a.c");
+        assertNull(cut.getRoot().step("a"));
+        assertTrue(cut.isEmpty());
+
+        // removing something never added is harmless
+        cut.remove("z");
+        assertTrue(cut.isEmpty());
+        assertEquals("[]", cut.toString());
+    }
+
+    @Test
+    public void WHEN_FieldNamesAreAdded_THEN_TheirNodesCarryAnId() {
+        FieldPathTrie cut = new FieldPathTrie();
+        cut.add("a.b");
+        cut.add("c");
+
+        FieldPathTrie.Node ab = cut.getRoot().step("a.b");
+        assertEquals("a.b", ab.getFieldName());
+        assertEquals(0, ab.getFieldId());
+        assertEquals(1, cut.getRoot().step("c").getFieldId());
+        assertEquals(1, cut.fieldId("c"));
+
+        // ids are handed out densely, and a name keeps its id for as long as it's in use
+        assertEquals(2, cut.fieldId("d"));
+        cut.add("d");
+        cut.add("a.b");
+        cut.remove("a.b");
+        assertEquals(0, cut.getRoot().step("a.b").getFieldId());
+
+        // once it's forgotten, its id goes to the next new name
+        cut.remove("a.b");
+        cut.add("e");
+        assertEquals(0, cut.getRoot().step("e").getFieldId());
+        cut.add("a.b");
+        assertEquals(3, cut.getRoot().step("a.b").getFieldId());
+        assertEquals("a.b", cut.getRoot().step("a.b").getFieldName());
+        assertEquals(4, cut.fieldIdLimit());
+
+        // a node that stays as a prefix of another name takes the new id when its name is recorded again
+        cut.add("a");
+        cut.remove("a");
+        cut.remove("e");
+        cut.add("a");
+        assertEquals(0, cut.getRoot().step("a").getFieldId());
+        for (int i = 0; i < 100; i++) {
+            cut.add("f" + i);
+            cut.remove("f" + i);
+        }
+        assertEquals(5, cut.fieldIdLimit());
+    }
+}
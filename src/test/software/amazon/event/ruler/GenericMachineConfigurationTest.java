@@ -1,19 +1,68 @@
 package software.amazon.event.ruler;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import org.junit.Test;
 
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class GenericMachineConfigurationTest {
 
     @Test
     public void testAdditionalNameStateReuseTrue() {
-        assertTrue(new GenericMachineConfiguration(true).isAdditionalNameStateReuse());
+        GenericMachineConfiguration configuration =
+                new GenericMachineConfiguration(true, null, null, Integer.MAX_VALUE, null, 0);
+        assertTrue(configuration.isAdditionalNameStateReuse());
     }
 
     @Test
     public void testAdditionalNameStateReuseFalse() {
-        assertFalse(new GenericMachineConfiguration(false).isAdditionalNameStateReuse());
+        GenericMachineConfiguration configuration =
+                new GenericMachineConfiguration(false, null, null, Integer.MAX_VALUE, null, 0);
+        assertFalse(configuration.isAdditionalNameStateReuse());
+    }
+
+    @Test
+    public void testTokenStreamFactoryDefaultsToJson() {
+        GenericMachineConfiguration configuration =
+                new GenericMachineConfiguration(false, null, null, Integer.MAX_VALUE, null, 0);
+        assertSame(Event.JSON_FACTORY, configuration.getTokenStreamFactory());
+        JsonFactory factory = new JsonFactory();
+        configuration = new GenericMachineConfiguration(false, factory, null, Integer.MAX_VALUE, null, 0);
+        assertSame(factory, configuration.getTokenStreamFactory());
+    }
+
+    @Test
+    public void testParallelMatching() {
+        GenericMachineConfiguration configuration =
+                new GenericMachineConfiguration(false, null, null, Integer.MAX_VALUE, null, 0);
+        assertNull(configuration.getParallelMatchPool());
+        assertEquals(Integer.MAX_VALUE, configuration.getParallelMatchMinFields());
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        configuration = new GenericMachineConfiguration(false, null, pool, 100, null, 0);
+        assertSame(pool, configuration.getParallelMatchPool());
+        assertEquals(100, configuration.getParallelMatchMinFields());
+    }
+
+    @Test
+    public void testMatchLimitsDefaultToNone() {
+        GenericMachineConfiguration configuration =
+                new GenericMachineConfiguration(false, null, null, Integer.MAX_VALUE, null, 0);
+        assertSame(MatchLimits.NONE, configuration.getMatchLimits());
+        MatchLimits limits = MatchLimits.builder().withMaxSteps(10).build();
+        configuration = new GenericMachineConfiguration(false, null, null, Integer.MAX_VALUE, limits, 0);
+        assertSame(limits, configuration.getMatchLimits());
+    }
+
+    @Test
+    public void testTransitionCacheSize() {
+        GenericMachineConfiguration configuration =
+                new GenericMachineConfiguration(false, null, null, Integer.MAX_VALUE, null, 256);
+        assertEquals(256, configuration.getTransitionCacheSize());
     }
 }
@@ -1,20 +1,35 @@
 package software.amazon.event.ruler;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonFactoryBuilder;
+import com.fasterxml.jackson.core.json.JsonReadFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Unit testing a state GenericMachine is hard.  Tried hand-computing a few GenericMachines
@@ -200,6 +215,815 @@ public class GenericMachineTest {
         assertEquals(r4, r4AC);
     }
 
+    @Test
+    public void rawBytesAndByteBufferTest() throws Exception {
+        String event = readData("arrayEvent4.json");
+        Machine m = new Machine();
+        m.addRule("rule1", readData("arrayRule1.json"));
+        m.addRule("rule2", readData("arrayRule2.json"));
+        m.addRule("rule3", readData("arrayRule3.json"));
+        List<String> expected = m.rulesForJSONEvent(event);
+        assertEquals(1, expected.size());
+
+        // event embedded in the middle of a larger array
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+        byte[] padded = new byte[bytes.length + 20];
+        Arrays.fill(padded, (byte) '}');
+        System.arraycopy(bytes, 0, padded, 7, bytes.length);
+        assertEquals(expected, m.rulesForJSONEvent(padded, 7, bytes.length));
+
+        ByteBuffer heap = ByteBuffer.wrap(padded, 7, bytes.length);
+        assertEquals(expected, m.rulesForJSONEvent(heap));
+        assertEquals(7, heap.position());
+        assertEquals(expected, m.rulesForJSONEvent(heap.slice()));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+        direct.put(padded);
+        direct.position(7);
+        direct.limit(7 + bytes.length);
+        assertEquals(expected, m.rulesForJSONEvent(direct));
+        assertEquals(7, direct.position());
+        assertEquals(expected, m.rulesForJSONEvent(heap.asReadOnlyBuffer()));
+    }
+
+    @Test
+    public void matchContextReuseTest() throws Exception {
+        Machine m1 = new Machine();
+        m1.addRule("rule1", readData("arrayRule1.json"));
+        m1.addRule("rule2", readData("arrayRule2.json"));
+        m1.addRule("rule3", readData("arrayRule3.json"));
+        Machine m2 = new Machine();
+        m2.addRule("exact", "{ \"a\": [ \"x\" ] }");
+
+        String[] events = {
+                readData("arrayEvent1.json"), readData("arrayEvent2.json"), readData("arrayEvent3.json"),
+                readData("arrayEvent4.json"), "{ \"a\": \"x\" }", "{ \"a\": [ \"y\", \"x\" ] }"
+        };
+        MatchContext context = new MatchContext();
+        for (int round = 0; round < 2; round++) {
+            for (String event : events) {
+                for (Machine m : new Machine[] { m1, m2 }) {
+                    assertEquals(m.rulesForJSONEvent(event), m.rulesForJSONEvent(event, context));
+                    byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+                    assertEquals(m.rulesForJSONEvent(event), m.rulesForJSONEvent(bytes, 0, bytes.length, context));
+                    assertEquals(m.rulesForJSONEvent(event), m.rulesForJSONEvent(ByteBuffer.wrap(bytes), context));
+                    assertEquals(m.rulesForJSONEvent(event),
+                            m.rulesForJSONEvent(new ObjectMapper().readTree(event), context));
+                }
+            }
+
+            // a context abandoned part-way through an event is still usable
+            try {
+                m2.rulesForJSONEvent("{ \"a\": [ { \"b\": [ \"x\" ", context);
+                fail("Expected a parse failure");
+            } catch (Exception e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void consumerReceivesEachMatchingRuleOnceTest() throws Exception {
+        Machine m = new Machine();
+        m.addRule("rule1", readData("arrayRule1.json"));
+        m.addRule("rule2", readData("arrayRule2.json"));
+        m.addRule("rule3", readData("arrayRule3.json"));
+        // matched by several sub-rules at once
+        m.addRule("or", "{ \"$or\": [ { \"a\": [ \"x\" ] }, { \"b\": [ \"y\" ] } ] }");
+        m.addRule("twice", "{ \"a\": [ \"x\" ] }");
+        m.addRule("twice", "{ \"b\": [ \"y\" ] }");
+
+        String[] events = {
+                readData("arrayEvent1.json"), readData("arrayEvent2.json"), readData("arrayEvent3.json"),
+                readData("arrayEvent4.json"), "{ \"a\": \"x\", \"b\": \"y\" }", "{ \"b\": [ \"y\", \"y\" ] }"
+        };
+        MatchContext context = new MatchContext();
+        for (int round = 0; round < 2; round++) {
+            for (String event : events) {
+                List<String> expected = new ArrayList<>(m.rulesForJSONEvent(event));
+                Collections.sort(expected);
+
+                List<String> consumed = new ArrayList<>();
+                m.rulesForJSONEvent(event, consumed::add);
+                Collections.sort(consumed);
+                assertEquals(expected, consumed);
+
+                consumed.clear();
+                m.rulesForJSONEvent(event, context, consumed::add);
+                Collections.sort(consumed);
+                assertEquals(expected, consumed);
+            }
+        }
+        assertEquals(Arrays.asList("or", "twice"), sorted(m.rulesForJSONEvent(events[4])));
+    }
+
+    @Test
+    public void matchesAnyAgreesWithRulesForJSONEventTest() throws Exception {
+        Machine m = new Machine();
+        assertFalse(m.matchesAnyJSONEvent("{ \"a\": \"x\" }"));
+        // an empty machine has no need to look at the event
+        assertFalse(m.matchesAnyJSONEvent("not JSON"));
+
+        m.addRule("rule1", readData("arrayRule1.json"));
+        m.addRule("rule2", readData("arrayRule2.json"));
+        m.addRule("rule3", readData("arrayRule3.json"));
+        m.addRule("absent", "{ \"a\": [ { \"exists\": false } ], \"b\": [ \"y\" ] }");
+
+        String[] events = {
+                readData("arrayEvent1.json"), readData("arrayEvent2.json"), readData("arrayEvent3.json"),
+                readData("arrayEvent4.json"), "{ \"a\": \"x\", \"b\": \"y\" }", "{ \"b\": \"y\" }", "{ }"
+        };
+        MatchContext context = new MatchContext();
+        for (String event : events) {
+            boolean expected = !m.rulesForJSONEvent(event).isEmpty();
+            assertEquals(expected, m.matchesAnyJSONEvent(event));
+            assertEquals(expected, m.matchesAnyJSONEvent(event, context));
+        }
+        assertTrue(m.matchesAnyJSONEvent("{ \"b\": \"y\" }", context));
+        assertFalse(m.matchesAnyJSONEvent("{ }", context));
+    }
+
+    @Test
+    public void maxResultsTruncatesMatchesTest() throws Exception {
+        Machine m = new Machine();
+        for (int i = 0; i < 50; i++) {
+            m.addRule("exact" + i, "{ \"a\": [ \"x\" ], \"n\": [ " + i + ", " + (i + 1000) + " ] }");
+            m.addRule("prefix" + i, "{ \"a\": [ { \"prefix\": \"x\" } ], \"b\": [ \"y" + (i % 5) + "\" ] }");
+        }
+        String event = "{ \"a\": \"x\", \"b\": \"y3\", \"n\": 7 }";
+        List<String> all = sorted(m.rulesForJSONEvent(event));
+        assertEquals(11, all.size());
+
+        MatchContext context = new MatchContext();
+        for (int maxResults = 1; maxResults <= 12; maxResults++) {
+            MatchResult<String> result = m.rulesForJSONEvent(event, maxResults, context);
+            assertEquals(maxResults < all.size(), result.isTruncated());
+            assertEquals(Math.min(maxResults, all.size()), result.getRules().size());
+            assertTrue(all.containsAll(result.getRules()));
+            assertEquals(result.getRules().size(), new HashSet<>(result.getRules()).size());
+        }
+        assertEquals(all, sorted(m.rulesForJSONEvent(event, Integer.MAX_VALUE).getRules()));
+        assertFalse(m.rulesForJSONEvent("{ \"a\": \"z\" }", 1).isTruncated());
+        assertTrue(m.rulesForJSONEvent("{ \"a\": \"z\" }", 1).getRules().isEmpty());
+
+        try {
+            m.rulesForJSONEvent(event, 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void matchLimitsStopMatchingTest() throws Exception {
+        Machine m = new Machine();
+        for (int i = 0; i < 20; i++) {
+            m.addRule("rule" + i, "{ \"a\": [ \"x\" ], \"b\": [ { \"prefix\": \"y\" } ], \"c\": [ " + i + " ] }");
+            m.addRule("any" + i, "{ \"c\": [ { \"numeric\": [ \">=\", " + i + " ] } ] }");
+        }
+        String event = "{ \"a\": \"x\", \"b\": \"yes\", \"c\": [ 3, 4, 5, 30 ] }";
+        List<String> all = sorted(m.rulesForJSONEvent(event));
+
+        MatchResult<String> complete = m.rulesForJSONEvent(event, MatchLimits.NONE);
+        assertEquals(MatchResult.StopReason.COMPLETED, complete.getStopReason());
+        assertFalse(complete.isTruncated());
+        assertEquals(all, sorted(complete.getRules()));
+
+        // however far matching gets before a limit stops it, the rules it has found are right, and given enough room
+        //  it finds them all
+        MatchContext context = new MatchContext();
+        for (long limit = 1; limit <= 50; limit++) {
+            MatchResult<String> bySteps = m.rulesForJSONEvent(event,
+                    MatchLimits.builder().withMaxSteps(limit).build(), context);
+            assertTrue(all.containsAll(bySteps.getRules()));
+            assertTrue(bySteps.getStopReason() == MatchResult.StopReason.MAX_STEPS
+                    || bySteps.getStopReason() == MatchResult.StopReason.COMPLETED);
+            assertEquals(bySteps.getStopReason() == MatchResult.StopReason.COMPLETED,
+                    bySteps.getRules().size() == all.size());
+
+            MatchResult<String> byTransitions = m.rulesForJSONEvent(event,
+                    MatchLimits.builder().withMaxTransitions(limit).build(), context);
+            assertTrue(all.containsAll(byTransitions.getRules()));
+            assertTrue(byTransitions.getStopReason() == MatchResult.StopReason.MAX_TRANSITIONS
+                    || byTransitions.getStopReason() == MatchResult.StopReason.COMPLETED);
+        }
+        assertEquals(MatchResult.StopReason.MAX_STEPS,
+                m.rulesForJSONEvent(event, MatchLimits.builder().withMaxSteps(1).build()).getStopReason());
+        assertEquals(MatchResult.StopReason.MAX_TRANSITIONS,
+                m.rulesForJSONEvent(event, MatchLimits.builder().withMaxTransitions(1).build()).getStopReason());
+        assertEquals(all, sorted(m.rulesForJSONEvent(event,
+                MatchLimits.builder().withMaxSteps(1000).withMaxTransitions(1000).build()).getRules()));
+
+        // the time taken to parse the event counts, so a nanosecond is always too little
+        MatchResult<String> late = m.rulesForJSONEvent(event,
+                MatchLimits.builder().withTimeout(Duration.ofNanos(1)).build());
+        assertEquals(MatchResult.StopReason.DEADLINE, late.getStopReason());
+        assertTrue(late.getRules().isEmpty());
+        assertEquals(MatchResult.StopReason.COMPLETED, m.rulesForJSONEvent(event,
+                MatchLimits.builder().withTimeout(Duration.ofDays(1)).build()).getStopReason());
+
+        MatchResult<String> fewest = m.rulesForJSONEvent(event, MatchLimits.builder().withMaxResults(2).build());
+        assertEquals(MatchResult.StopReason.MAX_RESULTS, fewest.getStopReason());
+        assertEquals(2, fewest.getRules().size());
+
+        try {
+            MatchLimits.builder().withMaxSteps(0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            MatchLimits.builder().withTimeout(Duration.ZERO);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void builderMatchLimitsApplyAlongWithEventLimitsTest() throws Exception {
+        MatchLimits limits = MatchLimits.builder().withMaxSteps(1).build();
+        Machine m = Machine.builder().withMatchLimits(limits).build();
+        assertEquals(limits, m.getMatchLimits());
+        for (int i = 0; i < 10; i++) {
+            m.addRule("rule" + i, "{ \"a\": [ \"x\" ], \"b\": [ " + i + " ] }");
+        }
+        String event = "{ \"a\": \"x\", \"b\": 3 }";
+
+        MatchResult<String> result = m.rulesForJSONEvent(event, 100);
+        assertEquals(MatchResult.StopReason.MAX_STEPS, result.getStopReason());
+        assertTrue(result.getRules().isEmpty());
+
+        // the machine's limits apply along with those given for the event, whichever is lower
+        assertEquals(MatchResult.StopReason.MAX_STEPS, m.rulesForJSONEvent(event, MatchLimits.NONE).getStopReason());
+        assertEquals(MatchResult.StopReason.MAX_STEPS, m.rulesForJSONEvent(event,
+                MatchLimits.builder().withMaxSteps(1000).withMaxResults(5).build()).getStopReason());
+        Machine loose = Machine.builder().withMatchLimits(MatchLimits.builder().withMaxSteps(1000).build()).build();
+        loose.addRule("rule", "{ \"a\": [ \"x\" ], \"b\": [ 3 ] }");
+        assertEquals(MatchResult.StopReason.COMPLETED, loose.rulesForJSONEvent(event, 100).getStopReason());
+        assertEquals(MatchResult.StopReason.MAX_STEPS, loose.rulesForJSONEvent(event,
+                MatchLimits.builder().withMaxSteps(1).build()).getStopReason());
+
+        MatchLimits lower = MatchLimits.builder().withMaxSteps(5).withTimeout(Duration.ofSeconds(1)).build()
+                .within(MatchLimits.builder().withMaxSteps(10).withMaxResults(3).build());
+        assertEquals(MatchLimits.builder().withMaxSteps(5).withMaxResults(3).withTimeout(Duration.ofSeconds(1))
+                .build(), lower);
+        assertSame(lower, MatchLimits.NONE.within(lower));
+        assertSame(lower, lower.within(MatchLimits.NONE));
+
+        // the plain list is never cut short
+        assertEquals(Collections.singletonList("rule3"), m.rulesForJSONEvent(event));
+        assertEquals(MatchLimits.NONE, new Machine().getMatchLimits());
+    }
+
+    @Test
+    public void transitionsAreReusedWithinAnEventTest() throws Exception {
+        String[] firstPatterns = { "\"xyz\"", "{ \"prefix\": \"x\" }", "{ \"suffix\": \"z\" }",
+                "{ \"anything-but\": \"q\" }" };
+        for (boolean reuse : new boolean[] { false, true }) {
+            Machine m = Machine.builder().withAdditionalNameStateReuse(reuse).build();
+            for (int i = 0; i < 12; i++) {
+                m.addRule("rule" + i, "{ \"a\": [ " + firstPatterns[i % firstPatterns.length] + " ], " +
+                        "\"b\": [ { \"prefix\": \"val\" }, { \"anything-but\": \"no" + i + "\" } ], " +
+                        "\"c\": [ { \"numeric\": [ \">\", " + i + " ] } ] }");
+            }
+            String event = "{ \"a\": \"xyz\", \"b\": [ \"value1\", \"value2\" ], \"c\": [ 5, 10 ] }";
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                expected.add("rule" + i);
+            }
+
+            // the same NameStates are reached with different candidate sub-rules, so their transitions on b and c
+            //  are wanted more than once
+            MatchContext context = new MatchContext();
+            assertEquals(expected, sorted(m.rulesForJSONEvent(event, context)));
+            long hits = context.getTransitionMemoHits();
+            long misses = context.getTransitionMemoMisses();
+            assertTrue(hits > 0);
+            assertTrue(misses > 0);
+            assertEquals(sorted(m.rulesForEvent(event)), sorted(m.rulesForJSONEvent(event, context)));
+            assertEquals(2 * hits, context.getTransitionMemoHits());
+            assertEquals(2 * misses, context.getTransitionMemoMisses());
+        }
+    }
+
+    @Test
+    public void batchMatchesLikeSingleEventsTest() throws Exception {
+        Machine m = new Machine();
+        m.addRule("rule1", readData("arrayRule1.json"));
+        m.addRule("rule2", readData("arrayRule2.json"));
+        m.addRule("rule3", readData("arrayRule3.json"));
+        m.addRule("absent", "{ \"a\": [ { \"exists\": false } ], \"b\": [ \"y\" ] }");
+
+        List<String> events = Arrays.asList(
+                readData("arrayEvent1.json"), readData("arrayEvent2.json"), "{ \"b\": \"y\" }",
+                readData("arrayEvent3.json"), "{ }", readData("arrayEvent4.json"), "{ \"b\": \"y\" }");
+        List<byte[]> eventBytes = new ArrayList<>();
+        for (String event : events) {
+            eventBytes.add(event.getBytes(StandardCharsets.UTF_8));
+        }
+
+        List<List<String>> fromStrings = m.rulesForJSONEvents(events);
+        List<List<String>> fromBytes = m.rulesForJSONEvents(eventBytes.iterator(), new MatchContext());
+        assertEquals(events.size(), fromStrings.size());
+        assertEquals(events.size(), fromBytes.size());
+        for (int i = 0; i < events.size(); i++) {
+            List<String> expected = sorted(m.rulesForJSONEvent(events.get(i)));
+            assertEquals(expected, sorted(fromStrings.get(i)));
+            assertEquals(expected, sorted(fromBytes.get(i)));
+        }
+        assertEquals(Collections.singletonList("absent"), fromStrings.get(6));
+        assertTrue(m.rulesForJSONEvents(Collections.<String>emptyList()).isEmpty());
+        assertTrue(m.rulesForJSONEvents(Collections.<byte[]>emptyIterator()).isEmpty());
+    }
+
+    @Test
+    public void parallelBatchMatchesInOrderTest() throws Exception {
+        Machine m = new Machine();
+        m.addRule("rule1", readData("arrayRule1.json"));
+        m.addRule("rule2", readData("arrayRule2.json"));
+        m.addRule("rule3", readData("arrayRule3.json"));
+        m.addRule("absent", "{ \"a\": [ { \"exists\": false } ], \"b\": [ \"y\" ] }");
+
+        String[] eventKinds = {
+                readData("arrayEvent1.json"), readData("arrayEvent2.json"), readData("arrayEvent3.json"),
+                readData("arrayEvent4.json"), "{ \"b\": \"y\" }", "{ }"
+        };
+        List<String> events = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            events.add(eventKinds[(i * 7) % eventKinds.length]);
+        }
+        List<List<String>> expected = m.rulesForJSONEvents(events);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (int parallelism : new int[] { 1, 2, 4, 1000 }) {
+                List<List<String>> results = m.rulesForJSONEvents(events, pool, parallelism);
+                assertEquals(events.size(), results.size());
+                for (int i = 0; i < events.size(); i++) {
+                    assertEquals(sorted(expected.get(i)), sorted(results.get(i)));
+                }
+            }
+            assertTrue(m.rulesForJSONEvents(Collections.<String>emptyList(), pool, 4).isEmpty());
+
+            List<String> withBadEvent = new ArrayList<>(events);
+            withBadEvent.set(300, "[ \"not an object\" ]");
+            try {
+                m.rulesForJSONEvents(withBadEvent, pool, 4);
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                m.rulesForJSONEvents(events, pool, 0);
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void cachedTransitionsFollowRuleChangesTest() throws Exception {
+        Machine cached = Machine.builder().withTransitionCacheSize(64).build();
+        Machine uncached = new Machine();
+        String[] rules = {
+                "{ \"source\": [ \"aws.s3\" ], \"state\": [ \"on\" ] }",
+                "{ \"source\": [ { \"prefix\": \"aws.\" } ], \"state\": [ { \"anything-but\": \"off\" } ] }",
+                "{ \"source\": [ { \"anything-but\": [ \"aws.ec2\" ] } ] }",
+                "{ \"source\": [ { \"wildcard\": \"*s3\" } ], \"size\": [ { \"numeric\": [ \">\", 10 ] } ] }",
+                "{ \"source\": [ { \"exists\": true } ], \"ip\": [ { \"cidr\": \"10.0.0.0/8\" } ] }"
+        };
+        List<String> events = new ArrayList<>();
+        for (String source : new String[] { "aws.s3", "aws.ec2", "custom" }) {
+            for (String state : new String[] { "on", "off" }) {
+                events.add("{ \"source\": \"" + source + "\", \"state\": \"" + state + "\", \"size\": 20, " +
+                        "\"ip\": \"10.1.2.3\" }");
+                events.add("{ \"source\": \"" + source + "\", \"state\": \"" + state + "\", \"size\": \"20\" }");
+            }
+        }
+
+        // add the rules one at a time, and then take them away again, matching the events, each twice, after each
+        //  change; what the cache kept from before a change must never be used after it
+        for (int i = 0; i < rules.length * 2; i++) {
+            int ruleIndex = i < rules.length ? i : i - rules.length;
+            if (i < rules.length) {
+                cached.addRule("rule" + ruleIndex, rules[ruleIndex]);
+                uncached.addRule("rule" + ruleIndex, rules[ruleIndex]);
+            } else {
+                cached.deleteRule("rule" + ruleIndex, rules[ruleIndex]);
+                uncached.deleteRule("rule" + ruleIndex, rules[ruleIndex]);
+            }
+            for (int round = 0; round < 2; round++) {
+                for (String event : events) {
+                    assertEquals(event, sorted(uncached.rulesForJSONEvent(event)),
+                            sorted(cached.rulesForJSONEvent(event)));
+                }
+            }
+        }
+        assertTrue(cached.isEmpty());
+
+        try {
+            Machine.builder().withTransitionCacheSize(-1);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void parallelMatchingOfLargeEventsAgreesTest() throws Exception {
+        String[] rules = {
+                readData("arrayRule1.json"), readData("arrayRule2.json"), readData("arrayRule3.json"),
+                "{ \"a\": [ { \"exists\": false } ], \"b\": [ \"y\" ] }",
+                "{ \"$or\": [ { \"a\": [ \"x\" ] }, { \"b\": [ \"y\" ] } ] }",
+                "{ \"a\": [ { \"prefix\": \"x\" } ], \"c\": [ { \"numeric\": [ \">\", 3 ] } ] }"
+        };
+        Machine serial = new Machine();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            Machine parallel = Machine.builder().withParallelMatching(pool, 2).build();
+            for (int i = 0; i < rules.length; i++) {
+                serial.addRule("rule" + i, rules[i]);
+                parallel.addRule("rule" + i, rules[i]);
+            }
+
+            String[] events = {
+                    readData("arrayEvent1.json"), readData("arrayEvent2.json"), readData("arrayEvent3.json"),
+                    readData("arrayEvent4.json"), "{ \"b\": \"y\" }", "{ \"b\": \"y\", \"c\": 5 }",
+                    "{ \"a\": [ \"xa\", \"q\" ], \"b\": \"z\", \"c\": [ 1, 2, 7 ] }", "{ }"
+            };
+            MatchContext context = new MatchContext();
+            for (String event : events) {
+                List<String> expected = sorted(serial.rulesForJSONEvent(event));
+                assertEquals(expected, sorted(parallel.rulesForJSONEvent(event)));
+                assertEquals(expected, sorted(parallel.rulesForJSONEvent(event, context)));
+                assertEquals(!expected.isEmpty(), parallel.matchesAnyJSONEvent(event, context));
+                MatchResult<String> limited = parallel.rulesForJSONEvent(event, 1, context);
+                assertEquals(Math.min(1, expected.size()), limited.getRules().size());
+                assertEquals(expected.size() > 1, limited.isTruncated());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        try {
+            Machine.builder().withParallelMatching(pool, 0);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void parallelMatchingSharesStepAndTransitionLimitsTest() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            Machine m = Machine.builder().withParallelMatching(pool, 2).build();
+            for (int i = 0; i < 20; i++) {
+                m.addRule("rule" + i, "{ \"f" + i + "\": [ { \"prefix\": \"x\" } ], \"g\": [ \"y\" ] }");
+            }
+            StringBuilder event = new StringBuilder("{ \"g\": \"y\"");
+            for (int i = 0; i < 20; i++) {
+                event.append(", \"f").append(i).append("\": [ \"x1\", \"x2\", \"x3\" ]");
+            }
+            event.append(" }");
+
+            MatchContext context = new MatchContext();
+            MatchResult<String> all = m.rulesForJSONEvent(event.toString(), MatchLimits.NONE, context);
+            assertEquals(20, all.getRules().size());
+            long allSteps = 0;
+            long allTransitions = 0;
+            for (ACTask task : context.parallelTasks(4)) {
+                allSteps += task.stepsTaken();
+                allTransitions += task.transitionsTaken();
+            }
+
+            // however the tasks share out the fields, between them they take no more than the limits allow
+            for (long limit = 1; limit < allSteps; limit += 7) {
+                MatchResult<String> bySteps = m.rulesForJSONEvent(event.toString(),
+                        MatchLimits.builder().withMaxSteps(limit).build(), context);
+                assertEquals(MatchResult.StopReason.MAX_STEPS, bySteps.getStopReason());
+                long steps = 0;
+                for (ACTask task : context.parallelTasks(4)) {
+                    steps += task.stepsTaken();
+                }
+                assertTrue(steps <= limit);
+            }
+            for (long limit = 1; limit < allTransitions; limit += 7) {
+                MatchResult<String> byTransitions = m.rulesForJSONEvent(event.toString(),
+                        MatchLimits.builder().withMaxTransitions(limit).build(), context);
+                assertEquals(MatchResult.StopReason.MAX_TRANSITIONS, byTransitions.getStopReason());
+                long transitions = 0;
+                for (ACTask task : context.parallelTasks(4)) {
+                    transitions += task.transitionsTaken();
+                }
+                assertTrue(transitions <= limit);
+            }
+
+            // a task hands back what it claimed but didn't use, so limits with room for all the work are not reached
+            MatchLimits enoughLimits = MatchLimits.builder().withMaxSteps(allSteps + 1)
+                    .withMaxTransitions(allTransitions + 1).build();
+            MatchResult<String> enough = m.rulesForJSONEvent(event.toString(), enoughLimits, context);
+            assertEquals(MatchResult.StopReason.COMPLETED, enough.getStopReason());
+            assertEquals(20, enough.getRules().size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void ruleIdsOfDeletedRulesAreReusedTest() throws Exception {
+        Machine m = new Machine();
+        m.addRule("keep", "{ \"a\": [ \"x\" ] }");
+        m.addRule("partial", "{ \"a\": [ \"x\", \"z\" ] }");
+        String event = "{ \"a\": \"x\", \"b\": \"y\" }";
+        MatchContext context = new MatchContext();
+        for (int i = 0; i < 100; i++) {
+            String rule = "{ \"a\": [ \"x\" ], \"b\": [ \"y\" ] }";
+            m.addRule("rule" + i, rule);
+            assertEquals(Arrays.asList("keep", "partial", "rule" + i), sorted(m.rulesForJSONEvent(event, context)));
+            m.deleteRule("rule" + i, rule);
+            assertEquals(Arrays.asList("keep", "partial"), sorted(m.rulesForJSONEvent(event, context)));
+        }
+
+        // a rule that is only partly deleted keeps its id, and goes on matching what is left of it
+        m.deleteRule("partial", "{ \"a\": [ \"x\" ] }");
+        m.addRule("new", "{ \"a\": [ \"z\" ] }");
+        assertEquals(Arrays.asList("new", "partial"), sorted(m.rulesForJSONEvent("{ \"a\": \"z\" }", context)));
+        assertEquals(Collections.singletonList("keep"), m.rulesForJSONEvent(event, context));
+    }
+
+    @Test
+    public void fieldIdsOfForgottenNamesAreReusedTest() throws Exception {
+        Machine m = new Machine();
+        String oldRule = "{ \"old\": [ \"x\" ] }";
+        m.addRule("old", oldRule);
+
+        // an event built while "old" was in use is matched after its id has passed to "new"
+        MatchContext context = new MatchContext();
+        Event event = new Event("{ \"old\": \"x\", \"other\": \"x\" }", m, context);
+        m.deleteRule("old", oldRule);
+        m.addRule("new", "{ \"new\": [ \"x\" ] }");
+        assertTrue(m.matchEvent(event, context).isEmpty());
+        assertEquals(Collections.singletonList("new"), m.rulesForJSONEvent("{ \"new\": \"x\" }", context));
+
+        for (int i = 0; i < 100; i++) {
+            String rule = "{ \"f" + i + "\": [ \"x\" ], \"new\": [ \"x\" ] }";
+            m.addRule("rule" + i, rule);
+            assertEquals(Arrays.asList("new", "rule" + i),
+                    sorted(m.rulesForJSONEvent("{ \"new\": \"x\", \"f" + i + "\": \"x\" }", context)));
+            m.deleteRule("rule" + i, rule);
+        }
+    }
+
+    @Test
+    public void parallelMatchingSharesNumericAndIpFormsTest() throws Exception {
+        // every start field leads to the same numeric and IP fields, so the threads all want their forms at once
+        Machine serial = new Machine();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Machine parallel = Machine.builder().withParallelMatching(pool, 1).build();
+            StringBuilder event = new StringBuilder("{ \"n\": 5, \"ip\": \"10.0.0.7\"");
+            for (int i = 0; i < 40; i++) {
+                String numeric = "{ \"k" + i + "\": [ \"v\" ], \"n\": [ { \"numeric\": [ \">\", 1 ] } ] }";
+                String cidr = "{ \"k" + i + "\": [ \"v\" ], \"ip\": [ { \"cidr\": \"10.0.0.0/24\" } ] }";
+                serial.addRule("numeric" + i, numeric);
+                parallel.addRule("numeric" + i, numeric);
+                serial.addRule("cidr" + i, cidr);
+                parallel.addRule("cidr" + i, cidr);
+                event.append(", \"k").append(i).append("\": \"v\"");
+            }
+            event.append(" }");
+
+            List<String> expected = sorted(serial.rulesForJSONEvent(event.toString()));
+            assertEquals(80, expected.size());
+            MatchContext context = new MatchContext();
+            for (int i = 0; i < 200; i++) {
+                assertEquals(expected, sorted(parallel.rulesForJSONEvent(event.toString(), context)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> copy = new ArrayList<>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    @Test
+    public void mapEventMatchesLikeJsonTest() throws Exception {
+        Machine m = new Machine();
+        m.addRule("rule1", readData("arrayRule1.json"));
+        m.addRule("rule2", readData("arrayRule2.json"));
+        m.addRule("rule3", readData("arrayRule3.json"));
+        for (int i = 1; i <= 4; i++) {
+            String json = readData("arrayEvent" + i + ".json");
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = new ObjectMapper().readValue(json, Map.class);
+            List<String> expected = new ArrayList<>(m.rulesForJSONEvent(json));
+            List<String> actual = new ArrayList<>(m.rulesForEvent(map));
+            expected.sort(null);
+            actual.sort(null);
+            assertEquals("arrayEvent" + i, expected, actual);
+        }
+    }
+
+    public enum Color { RED, GREEN }
+
+    public static final class Point {
+        public final int x;
+        public final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    @Test
+    public void mapEventValueTypesTest() throws Exception {
+        Machine m = new Machine();
+        m.addRule("string", "{ \"s\": [ \"abc\" ] }");
+        m.addRule("char", "{ \"c\": [ \"x\" ] }");
+        m.addRule("enum", "{ \"e\": [ \"GREEN\" ] }");
+        m.addRule("number", "{ \"n\": [ { \"numeric\": [ \"=\", 3.5 ] } ] }");
+        m.addRule("float", "{ \"f\": [ { \"numeric\": [ \"=\", 0.1 ] } ] }");
+        m.addRule("boolean", "{ \"b\": [ true ] }");
+        m.addRule("null", "{ \"z\": [ null ] }");
+        m.addRule("primitiveArray", "{ \"ints\": [ 7 ] }");
+        m.addRule("pojo", "{ \"points\": { \"x\": [ 1 ], \"y\": [ 2 ] } }");
+        m.addRule("pojoInconsistent", "{ \"points\": { \"x\": [ 1 ], \"y\": [ 4 ] } }");
+
+        Map<String, Object> event = new HashMap<>();
+        event.put("s", new StringBuilder("abc"));
+        event.put("c", 'x');
+        event.put("e", Color.GREEN);
+        event.put("n", 3.5);
+        event.put("f", 0.1f);
+        event.put("b", Boolean.TRUE);
+        event.put("z", null);
+        event.put("ints", new int[] { 5, 6, 7 });
+        event.put("points", Arrays.asList(new Point(1, 2), new Point(3, 4)));
+        event.put("unused", new Object());
+
+        List<String> actual = new ArrayList<>(m.rulesForEvent(event));
+        actual.sort(null);
+        assertEquals(Arrays.asList("boolean", "char", "enum", "float", "null", "number", "pojo", "primitiveArray",
+                "string"), actual);
+
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("points", new Object[] { Collections.singletonMap("x", 1), Collections.singletonMap("y", 4) });
+        assertTrue(m.rulesForEvent(nested).isEmpty());
+        nested.put("points", new Object[] { Collections.singletonMap("x", 1), new Point(3, 4) });
+        assertTrue(m.rulesForEvent(nested).isEmpty());
+        nested.put("points", new Object[] { new Point(1, 0), Collections.singletonMap("y", 2) });
+        assertTrue(m.rulesForEvent(nested).isEmpty());
+        nested.put("points", Collections.singletonMap("x", Arrays.asList(0, 1)));
+        nested.put("points.y", 4);
+        assertEquals(Collections.singletonList("pojoInconsistent"), m.rulesForEvent(nested));
+    }
+
+    @Test
+    public void tokenStreamFactoryTest() throws Exception {
+        String rule = "{ \"a\": [ \"x\" ], \"n\": [ { \"numeric\": [ \">\", 0, \"<=\", 2.5 ] } ] }";
+        String event = "{ 'a': 'x', 'n': 25E-1 }";
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+
+        Machine json = new Machine();
+        json.addRule("r1", rule);
+        try {
+            json.rulesForJSONEvent(bytes, 0, bytes.length);
+            fail("Expected a parse failure");
+        } catch (Exception e) {
+            // expected, single quotes aren't JSON
+        }
+
+        // the factory is used for events provided as bytes
+        JsonFactory lenient = JsonFactory.builder().enable(JsonReadFeature.ALLOW_SINGLE_QUOTES).build();
+        Machine m = Machine.builder().withTokenStreamFactory(lenient).build();
+        m.addRule("r1", rule);
+        assertEquals(Collections.singletonList("r1"), m.rulesForJSONEvent(bytes, 0, bytes.length));
+        assertEquals(Collections.singletonList("r1"), m.rulesForJSONEvent(ByteBuffer.wrap(bytes)));
+
+        // a factory for a format other than JSON has its numbers compared by value, not as text
+        JsonFactory binaryNumbers = new JsonFactory(new JsonFactoryBuilder().enable(JsonReadFeature.ALLOW_SINGLE_QUOTES)) {
+            @Override
+            public String getFormatName() {
+                return "binary-numbers";
+            }
+        };
+        Machine b = Machine.builder().withTokenStreamFactory(binaryNumbers).build();
+        b.addRule("r1", rule);
+        b.addRule("exact", "{ \"n\": [ 2.5 ] }");
+        for (String n : new String[] { "25E-1", "2.5", "2.50", "25e-1", "0.25e1" }) {
+            byte[] nBytes = event.replace("25E-1", n).getBytes(StandardCharsets.UTF_8);
+            List<String> actual = new ArrayList<>(b.rulesForJSONEvent(nBytes, 0, nBytes.length));
+            actual.sort(null);
+            assertEquals(n, Arrays.asList("exact", "r1"), actual);
+        }
+        String big = "{ 'n': 12345678901234567890 }";
+        assertTrue(b.rulesForJSONEvent(big.getBytes(StandardCharsets.UTF_8), 0, big.length()).isEmpty());
+    }
+
+    @Test
+    public void incrementalMatcherTest() throws Exception {
+        Machine m = new Machine();
+        m.addRule("rule1", readData("arrayRule1.json"));
+        m.addRule("rule2", readData("arrayRule2.json"));
+        m.addRule("rule3", readData("arrayRule3.json"));
+        MatchContext context = new MatchContext();
+        for (int i = 1; i <= 4; i++) {
+            String json = readData("arrayEvent" + i + ".json");
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            List<String> expected = m.rulesForJSONEvent(json);
+            for (int chunkSize : new int[] { 1, 3, 100 }) {
+                IncrementalMatcher<String> matcher = m.incrementalMatcher(context);
+                byte[] chunk = new byte[chunkSize];
+                for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+                    // the chunk's storage is reused for each chunk
+                    int length = Math.min(chunkSize, bytes.length - offset);
+                    System.arraycopy(bytes, offset, chunk, 0, length);
+                    matcher.feed(chunk, 0, length);
+                }
+                assertEquals("arrayEvent" + i + "/" + chunkSize, expected, matcher.finish());
+            }
+        }
+
+        IncrementalMatcher<String> matcher = m.incrementalMatcher();
+        try {
+            matcher.feed("[ 1, 2 ]".getBytes(StandardCharsets.UTF_8));
+            fail("Expected a non-object event to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        matcher = m.incrementalMatcher();
+        matcher.feed("{ \"a\": [ 1, ".getBytes(StandardCharsets.UTF_8));
+        try {
+            matcher.finish();
+            fail("Expected an incomplete event to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            matcher.feed("2 ] }".getBytes(StandardCharsets.UTF_8));
+            fail("Expected feeding after finish to be rejected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        matcher = m.incrementalMatcher();
+        matcher.feed("{ }".getBytes(StandardCharsets.UTF_8));
+        assertTrue(matcher.finish().isEmpty());
+
+        // as when the event is parsed all at once, anything after the event's object is ignored
+        Machine trailing = new Machine();
+        trailing.addRule("r1", "{ \"a\": [ \"x\" ] }");
+        for (String after : new String[] { " ", " { \"a\": \"y\" }", " [ 1 ]", " not json", "} }" }) {
+            String json = "{ \"a\": \"x\" }" + after;
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            assertEquals(after, Collections.singletonList("r1"), trailing.rulesForJSONEvent(json));
+            assertEquals(after, Collections.singletonList("r1"), trailing.rulesForJSONEvent(bytes, 0, bytes.length));
+            for (int chunkSize : new int[] { 1, 3, bytes.length }) {
+                matcher = trailing.incrementalMatcher();
+                for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+                    matcher.feed(Arrays.copyOfRange(bytes, offset, Math.min(offset + chunkSize, bytes.length)));
+                }
+                assertEquals(after + "/" + chunkSize, Collections.singletonList("r1"), matcher.finish());
+            }
+        }
+    }
+
+    @Test
+    public void nonAsciiValuesMatchFromTheirBytesTest() throws Exception {
+        Machine m = new Machine();
+        m.addRule("exact", "{ \"a\": [ \"caf\u00e9 \ud83d\ude00\" ] }");
+        m.addRule("prefix", "{ \"a\": [ { \"prefix\": \"caf\u00e9\" } ] }");
+        m.addRule("suffix", "{ \"a\": [ { \"suffix\": \"\ud83d\ude00\" } ] }");
+        m.addRule("anythingBut", "{ \"a\": [ { \"anything-but\": \"caf\u00e9\" } ] }");
+        m.addRule("numeric", "{ \"n\": [ { \"numeric\": [ \">\", 10 ] } ] }");
+
+        String event = "{ \"a\": \"caf\u00e9 \ud83d\ude00\", \"n\": 1.1e2 }";
+        List<String> expected = Arrays.asList("anythingBut", "exact", "numeric", "prefix", "suffix");
+        List<String> fromString = new ArrayList<>(m.rulesForJSONEvent(event));
+        fromString.sort(null);
+        assertEquals(expected, fromString);
+
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+        List<String> fromBytes = new ArrayList<>(m.rulesForJSONEvent(bytes, 0, bytes.length));
+        fromBytes.sort(null);
+        assertEquals(expected, fromBytes);
+
+        List<String> fromTree = new ArrayList<>(m.rulesForJSONEvent(new ObjectMapper().readTree(event)));
+        fromTree.sort(null);
+        assertEquals(expected, fromTree);
+    }
+
     @Test
     public void testBuilderNonString() throws Exception {
       GenericMachine<Integer> machine = GenericMachine.<Integer>builder().build();
@@ -2,23 +2,26 @@ package software.amazon.event.ruler;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class NameStateTest {
 
-    final SubRuleContext c1 = new SubRuleContext(1, "c1");
-    final SubRuleContext c2 = new SubRuleContext(2, "c2");
-    final SubRuleContext c3 = new SubRuleContext(3, "c3");
-    final SubRuleContext c4 = new SubRuleContext(4, "c4");
+    final SubRuleContext c1 = new SubRuleContext(1, 1, "c1");
+    final SubRuleContext c2 = new SubRuleContext(2, 2, "c2");
+    final SubRuleContext c3 = new SubRuleContext(3, 3, "c3");
+    final SubRuleContext c4 = new SubRuleContext(4, 4, "c4");
 
     @Test
     public void testAddSubRule() {
@@ -108,6 +111,35 @@ public class NameStateTest {
                 nameState.getNonTerminalSubRuleIdsForPattern(Patterns.exactMatch("a")));
     }
 
+    @Test
+    public void testGetSortedSubRuleIdsForPattern() {
+        NameState nameState = new NameState();
+        nameState.addSubRule("rule3", c3, Patterns.exactMatch("a"), true);
+        nameState.addSubRule("rule1", c1, Patterns.exactMatch("a"), true);
+        nameState.addSubRule("rule4", c4, Patterns.exactMatch("a"), true);
+        nameState.addSubRule("rule2", c2, Patterns.exactMatch("a"), false);
+        nameState.addSubRule("rule1", c1, Patterns.exactMatch("a"), true);
+
+        SubRuleIds terminal = nameState.getSortedTerminalSubRuleIdsForPattern(Patterns.exactMatch("a"));
+        assertEquals(3, terminal.size);
+        assertEquals(asList(1, 3, 4), asList(terminal.ids[0], terminal.ids[1], terminal.ids[2]));
+        assertEquals(asList("c1", "c3", "c4"), asList(terminal.ruleNames).subList(0, 3));
+        SubRuleIds nonTerminal = nameState.getSortedNonTerminalSubRuleIdsForPattern(Patterns.exactMatch("a"));
+        assertEquals(1, nonTerminal.size);
+        assertEquals(2, nonTerminal.ids[0]);
+
+        nameState.deleteSubRule("rule3", c3, Patterns.exactMatch("a"), true);
+        SubRuleIds afterDelete = nameState.getSortedTerminalSubRuleIdsForPattern(Patterns.exactMatch("a"));
+        assertEquals(2, afterDelete.size);
+        assertEquals(asList(1, 4), asList(afterDelete.ids[0], afterDelete.ids[1]));
+        // the earlier view is unchanged
+        assertEquals(3, terminal.size);
+        assertEquals(3, terminal.ids[1]);
+
+        nameState.deleteSubRule("rule2", c2, Patterns.exactMatch("a"), false);
+        assertNull(nameState.getSortedNonTerminalSubRuleIdsForPattern(Patterns.exactMatch("a")));
+    }
+
     @Test
     public void testContainsRule() {
         NameState nameState = new NameState();
@@ -131,4 +163,78 @@ public class NameStateTest {
         nameState.removeNextNameState("key");
         assertNull(nameState.getNextNameState("key"));
     }
+
+    @Test
+    public void testTransitionsByFieldId() {
+        NameState nameState = new NameState();
+        ByteMachine b1 = new ByteMachine();
+        ByteMachine b2 = new ByteMachine();
+        ByteMachine b3 = new ByteMachine();
+        nameState.addTransition("b", 7, b2);
+        nameState.addTransition("a", 3, b1);
+        nameState.addTransition("c", 12, b3);
+
+        assertSame(b1, nameState.getTransitionOn(3, "a"));
+        assertSame(b2, nameState.getTransitionOn(7, "b"));
+        assertSame(b3, nameState.getTransitionOn(12, "c"));
+        assertSame(b2, nameState.getTransitionOn("b"));
+        assertNull(nameState.getTransitionOn(0, "a"));
+        assertNull(nameState.getTransitionOn(-1, "a"));
+
+        // an id that has passed to another field name doesn't find the transition on the old one
+        assertNull(nameState.getTransitionOn(7, "d"));
+
+        nameState.removeTransition("b", 7);
+        assertNull(nameState.getTransitionOn(7, "b"));
+        assertNull(nameState.getTransitionOn("b"));
+        assertSame(b1, nameState.getTransitionOn(3, "a"));
+        assertSame(b3, nameState.getTransitionOn(12, "c"));
+
+        nameState.removeTransition("a", 3);
+        nameState.removeTransition("c", 12);
+        assertNull(nameState.getTransitionOn(3, "a"));
+        assertTrue(nameState.isEmpty());
+    }
+
+    @Test
+    public void testManyTransitionsByFieldId() {
+        NameState nameState = new NameState();
+        List<ByteMachine> machines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            machines.add(new ByteMachine());
+            nameState.addTransition("k" + i, i, machines.get(i));
+        }
+        NameState.FieldIdMap<ByteMachine> snapshot = nameState.getTransitionsById();
+        assertEquals(1000, snapshot.size());
+
+        // an id out of order, which can't be appended; the earlier map doesn't change
+        nameState.addTransition("x", -5, new ByteMachine());
+        assertEquals(1000, snapshot.size());
+        assertEquals(1001, nameState.getTransitionsById().size());
+        assertEquals(-5, nameState.getTransitionsById().idAt(0));
+
+        // removals leave gaps, until they are half the entries
+        for (int i = 0; i < 500; i++) {
+            nameState.removeTransition("k" + i, i);
+        }
+        NameState.FieldIdMap<ByteMachine> gapped = nameState.getTransitionsById();
+        assertEquals(1001, gapped.size());
+        assertNull(gapped.get(7, "k7"));
+        assertNull(gapped.nameAt(8));
+        assertNull(gapped.valueAt(8));
+        assertSame(machines.get(700), gapped.get(700, "k700"));
+
+        // an id that comes back fills its gap
+        nameState.addTransition("k7", 7, machines.get(7));
+        assertSame(gapped, nameState.getTransitionsById());
+        assertSame(machines.get(7), nameState.getTransitionOn(7, "k7"));
+
+        nameState.removeTransition("k7", 7);
+        nameState.removeTransition("x", -5);
+        assertEquals(500, nameState.getTransitionsById().size());
+        for (int i = 0; i < 1000; i++) {
+            assertSame(i < 500 ? null : machines.get(i), nameState.getTransitionOn(i, "k" + i));
+        }
+        assertEquals(500, nameState.getTransitionsById().idAt(0));
+    }
 }
@@ -0,0 +1,84 @@
+package software.amazon.event.ruler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SeenStepsTest {
+
+    @Test
+    public void testCandidateSetsWithTheSameIdsShareANumber() {
+        SeenSteps seenSteps = new SeenSteps();
+        SubRuleIds held = SubRuleIds.of(new SubRuleContext(3, 0, "r0"))
+                .with(new SubRuleContext(5, 1, "r1"))
+                .with(new SubRuleContext(9, 2, "r2"));
+
+        int[] buffer = { 3, 5, 9, 11 };
+        int number = seenSteps.candidateSet(held);
+        assertTrue(number > 0);
+        assertEquals(number, seenSteps.candidateSet(held));
+        assertEquals(number, seenSteps.candidateSet(buffer, 3));
+
+        // the buffer is reused, so its contents must have been copied rather than referred to
+        int other = seenSteps.candidateSet(buffer, 4);
+        assertNotEquals(number, other);
+        buffer[0] = 4;
+        assertNotEquals(number, seenSteps.candidateSet(buffer, 3));
+        assertEquals(other, seenSteps.candidateSet(new int[] { 3, 5, 9, 11 }, 4));
+
+        assertEquals(SeenSteps.hash(held.ids, held.size), held.idsHash);
+        assertEquals(held.idsHash, held.without(new SubRuleContext(11, 3, "r3")).idsHash);
+        assertEquals(SeenSteps.hash(new int[] { 3, 9 }, 2), held.without(new SubRuleContext(5, 1, "r1")).idsHash);
+    }
+
+    @Test
+    public void testStepsAreOnlyAddedOnce() {
+        SeenSteps seenSteps = new SeenSteps();
+        NameState state1 = new NameState();
+        NameState state2 = new NameState();
+        ArrayMembership membership = ArrayMembership.EMPTY.with(1, 0);
+        int candidates = seenSteps.candidateSet(new int[] { 1, 2 }, 2);
+        int none = Integer.MAX_VALUE;
+
+        assertEquals(none, seenSteps.addFrom(5, state1, ArrayMembership.EMPTY, 0));
+        assertEquals(5, seenSteps.addFrom(5, state1, ArrayMembership.EMPTY, 0));
+        assertEquals(5, seenSteps.addFrom(7, state1, ArrayMembership.EMPTY, 0));
+        // steps from 2 to 4 are still to be added, after which steps are known to have been added from 2
+        assertEquals(5, seenSteps.addFrom(2, state1, ArrayMembership.EMPTY, 0));
+        assertEquals(2, seenSteps.addFrom(3, state1, ArrayMembership.EMPTY, 0));
+
+        assertEquals(none, seenSteps.addFrom(5, state2, ArrayMembership.EMPTY, 0));
+        assertEquals(none, seenSteps.addFrom(5, state1, membership, 0));
+        assertEquals(5, seenSteps.addFrom(5, state1, ArrayMembership.EMPTY.with(1, 0), 0));
+        assertEquals(none, seenSteps.addFrom(5, state1, ArrayMembership.EMPTY.with(1, 1), 0));
+        assertEquals(none, seenSteps.addFrom(5, state1, membership, candidates));
+        assertEquals(5, seenSteps.addFrom(5, state1, membership, seenSteps.candidateSet(new int[] { 1, 2, 7 }, 2)));
+
+        seenSteps.clear();
+        assertEquals(none, seenSteps.addFrom(5, state1, ArrayMembership.EMPTY, 0));
+    }
+
+    @Test
+    public void testTablesGrow() {
+        SeenSteps seenSteps = new SeenSteps();
+        NameState[] states = { new NameState(), new NameState(), new NameState() };
+        for (int round = 0; round < 2; round++) {
+            int[] numbers = new int[1000];
+            for (int i = 0; i < 1000; i++) {
+                numbers[i] = seenSteps.candidateSet(new int[] { i, i + 1 }, 2);
+                for (NameState state : states) {
+                    assertEquals(Integer.MAX_VALUE, seenSteps.addFrom(i, state, ArrayMembership.EMPTY, numbers[i]));
+                }
+            }
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(numbers[i], seenSteps.candidateSet(new int[] { i, i + 1 }, 2));
+                for (NameState state : states) {
+                    assertEquals(i, seenSteps.addFrom(i + 1, state, ArrayMembership.EMPTY, numbers[i]));
+                }
+            }
+            seenSteps.clear();
+        }
+    }
+}
@@ -4,9 +4,12 @@ import org.junit.Test;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static software.amazon.event.ruler.SetOperations.intersection;
 
 public class SetOperationsTest {
@@ -33,4 +36,54 @@ public class SetOperationsTest {
 
         assertEquals(new HashSet<>(Arrays.asList(1, 2)), result);
     }
+
+    @Test
+    public void testSortedIntArrayIntersection() {
+        int[] array1 = { 1, 3, 5, 7, 9, 0 };
+        int[] array2 = { 2, 3, 4, 5, 9, 10, 11 };
+        int[] indexes = new int[5];
+
+        assertEquals(3, intersection(array1, 5, array2, 7, indexes));
+        assertArrayEquals(new int[] { 1, 3, 4 }, Arrays.copyOf(indexes, 3));
+        assertEquals(3, intersection(array2, 7, array1, 5, indexes));
+        assertArrayEquals(new int[] { 1, 2, 4 }, Arrays.copyOf(indexes, 3));
+        assertEquals(0, intersection(array1, 0, array2, 7, indexes));
+    }
+
+    @Test
+    public void testSortedIntArrayIntersectionAgreesWithSets() {
+        Random random = new Random(3);
+        for (int round = 0; round < 1000; round++) {
+            // arrays of very different lengths as well as similar ones, so that both galloping and stepping are used
+            int[] array1 = randomSortedArray(random, 1 + random.nextInt(round % 2 == 0 ? 10 : 1000));
+            int[] array2 = randomSortedArray(random, 1 + random.nextInt(1000));
+
+            Set<Integer> expected = new HashSet<>();
+            for (int i : array1) {
+                expected.add(i);
+            }
+            Set<Integer> set2 = new HashSet<>();
+            for (int i : array2) {
+                set2.add(i);
+            }
+            expected.retainAll(set2);
+
+            int[] indexes = new int[Math.min(array1.length, array2.length)];
+            int count = intersection(array1, array1.length, array2, array2.length, indexes);
+            Set<Integer> actual = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                actual.add(array2[indexes[i]]);
+                if (i > 0) {
+                    assertTrue(indexes[i] > indexes[i - 1]);
+                }
+            }
+            assertEquals(expected.size(), count);
+            assertEquals(expected, actual);
+        }
+    }
+
+    private static int[] randomSortedArray(Random random, int maxLength) {
+        int bound = 2 * maxLength + 10;
+        return random.ints(maxLength, 0, bound).distinct().sorted().toArray();
+    }
 }
@@ -2,11 +2,13 @@ package software.amazon.event.ruler;
 
 import org.junit.Test;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 
 public class SubRuleContextTest {
 
@@ -60,4 +62,34 @@ public class SubRuleContextTest {
         assertEquals(contextA1.hashCode(), contextB1.hashCode());
         assertNotEquals(contextA2.hashCode(), contextB1.hashCode());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRuleIdsAreReusedOnceARuleIsGone() {
+        SubRuleContext.Generator generator = new SubRuleContext.Generator();
+        SubRuleContext a1 = generator.generate("a");
+        SubRuleContext a2 = generator.generate("a");
+        SubRuleContext b = generator.generate("b");
+        assertEquals(a1.getRuleId(), a2.getRuleId());
+        assertNotEquals(a1.getRuleId(), b.getRuleId());
+        generator.addedTerminal(a1);
+        generator.addedTerminal(a1);
+        generator.addedTerminal(a2);
+        generator.addedTerminal(b);
+        assertEquals(2, generator.getRuleIdCount());
+
+        // a1 is still terminal somewhere, and a2 keeps the name's id
+        generator.deletedTerminal(a1);
+        generator.deletedTerminal(a2);
+        assertEquals(Collections.singleton(a1), generator.getIdsGeneratedForName("a"));
+        generator.deletedTerminal(a1);
+        assertNull(generator.getIdsGeneratedForName("a"));
+        assertEquals(1, generator.getRuleIdCount());
+
+        SubRuleContext c = generator.generate("c");
+        assertEquals(a1.getRuleId(), c.getRuleId());
+        assertEquals(2, generator.getRuleIdCount());
+        SubRuleContext a3 = generator.generate("a");
+        assertEquals(3, generator.getRuleIdCount());
+        assertNotEquals(a1, a3);
+    }
+}
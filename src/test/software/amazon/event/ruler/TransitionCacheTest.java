@@ -0,0 +1,63 @@
+package software.amazon.event.ruler;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransitionCacheTest {
+
+    @Test
+    public void testTransitionsAreFoundByValueAndVersion() {
+        TransitionCache cache = new TransitionCache(16);
+        NameStateWithPattern to1 = new NameStateWithPattern(new NameState(), Patterns.exactMatch("\"a\""));
+        NameStateWithPattern to2 = new NameStateWithPattern(new NameState(), Patterns.prefixMatch("\"a"));
+        byte[] value = "\"a\"".getBytes(StandardCharsets.UTF_8);
+
+        assertNull(cache.get(value, Field.ValueType.STRING, 0));
+        cache.put(value, Field.ValueType.STRING, 0, Arrays.asList(to1, to2));
+        assertArrayEquals(new NameStateWithPattern[] { to1, to2 },
+                cache.get("\"a\"".getBytes(StandardCharsets.UTF_8), Field.ValueType.STRING, 0));
+
+        // the value was copied, so changing the caller's array doesn't change what is cached
+        value[1] = 'b';
+        assertNull(cache.get(value, Field.ValueType.STRING, 0));
+        value[1] = 'a';
+        assertEquals(2, cache.get(value, Field.ValueType.STRING, 0).length);
+
+        // the same bytes as another type of value, or for another version of the machine, are a different entry
+        assertNull(cache.get(value, Field.ValueType.UNKNOWN, 0));
+        assertNull(cache.get(value, Field.ValueType.STRING, 1));
+        cache.put(value, Field.ValueType.STRING, 1, Collections.emptyList());
+        assertEquals(0, cache.get(value, Field.ValueType.STRING, 1).length);
+        assertNull(cache.get(value, Field.ValueType.STRING, 0));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        assertEquals(1, new TransitionCache(0).capacity());
+        assertEquals(1, new TransitionCache(1).capacity());
+        assertEquals(64, new TransitionCache(64).capacity());
+        assertEquals(128, new TransitionCache(65).capacity());
+
+        TransitionCache cache = new TransitionCache(8);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(("\"" + i + "\"").getBytes(StandardCharsets.UTF_8), Field.ValueType.STRING, 0,
+                    Collections.emptyList());
+        }
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (cache.get(("\"" + i + "\"").getBytes(StandardCharsets.UTF_8), Field.ValueType.STRING, 0) != null) {
+                found++;
+            }
+        }
+        assertEquals(8, cache.capacity());
+        assertTrue(found > 0 && found <= 8);
+    }
+}
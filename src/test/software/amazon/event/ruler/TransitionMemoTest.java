@@ -0,0 +1,74 @@
+package software.amazon.event.ruler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class TransitionMemoTest {
+
+    @Test
+    public void testTransitionsAreFoundByMachineAndField() {
+        TransitionMemo memo = new TransitionMemo();
+        ByteMachine machine1 = new ByteMachine();
+        ByteMachine machine2 = new ByteMachine();
+        NameStateWithPattern to1 = new NameStateWithPattern(new NameState(), Patterns.exactMatch("a"));
+        NameStateWithPattern to2 = new NameStateWithPattern(new NameState(), Patterns.exactMatch("b"));
+
+        assertEquals(0, memo.find(machine1, 0));
+        int entry1 = memo.add(machine1, 0, Arrays.asList(to1, to2));
+        assertEquals(0, memo.find(machine1, 1));
+        int entry2 = memo.add(machine1, 1, Collections.emptyList());
+        assertEquals(0, memo.find(machine2, 0));
+        int entry3 = memo.add(machine2, 0, Collections.singletonList(to2));
+
+        assertEquals(entry1, memo.find(machine1, 0));
+        assertEquals(entry2, memo.find(machine1, 1));
+        assertEquals(entry3, memo.find(machine2, 0));
+        assertEquals(2, memo.end(entry1) - memo.start(entry1));
+        assertSame(to1, memo.transitions()[memo.start(entry1)]);
+        assertSame(to2, memo.transitions()[memo.start(entry1) + 1]);
+        assertEquals(memo.start(entry2), memo.end(entry2));
+        assertSame(to2, memo.transitions()[memo.start(entry3)]);
+        assertEquals(3, memo.hits());
+        assertEquals(3, memo.misses());
+
+        // the counts survive clearing, the transitions don't
+        memo.clear();
+        assertEquals(0, memo.find(machine1, 0));
+        assertEquals(3, memo.hits());
+        assertEquals(4, memo.misses());
+    }
+
+    @Test
+    public void testTablesGrow() {
+        TransitionMemo memo = new TransitionMemo();
+        List<ByteMachine> machines = new ArrayList<>();
+        NameStateWithPattern to = new NameStateWithPattern(new NameState(), Patterns.existencePatterns());
+        for (int i = 0; i < 100; i++) {
+            machines.add(new ByteMachine());
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < machines.size(); i++) {
+                for (int field = 0; field < 5; field++) {
+                    assertEquals(0, memo.find(machines.get(i), field));
+                    memo.add(machines.get(i), field, Collections.nCopies(field, to));
+                }
+            }
+            for (int i = 0; i < machines.size(); i++) {
+                for (int field = 0; field < 5; field++) {
+                    int entry = memo.find(machines.get(i), field);
+                    assertNotEquals(0, entry);
+                    assertEquals(field, memo.end(entry) - memo.start(entry));
+                }
+            }
+            memo.clear();
+        }
+    }
+}
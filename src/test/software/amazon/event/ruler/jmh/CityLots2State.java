@@ -22,7 +22,7 @@ public class CityLots2State {
         }
     }
 
-    public Iterable<String> getCityLots2() {
+    public List<String> getCityLots2() {
         return citylots2;
     }
 }
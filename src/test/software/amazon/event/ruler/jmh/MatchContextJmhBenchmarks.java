@@ -0,0 +1,66 @@
+package software.amazon.event.ruler.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Timeout;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import software.amazon.event.ruler.Machine;
+import software.amazon.event.ruler.MatchContext;
+
+import java.util.Objects;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Compares matching the CityLots2 events with a MatchContext reused by each thread against matching them with a new
+ *  one for every event. These are meant to be run with the GC profiler, -prof gc, whose gc.alloc.rate.norm shows the
+ *  bytes allocated per event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 2, jvmArgsAppend = {
+        "-Xmx2g", "-Xms2g", "-XX:+AlwaysPreTouch", "-XX:+UseTransparentHugePages", "-XX:+UseSerialGC",
+        "-XX:-BackgroundCompilation", "-XX:CompileCommand=dontinline,com/fasterxml/*.*",
+})
+@Timeout(time = 90, timeUnit = SECONDS)
+@Threads(2)
+@OperationsPerInvocation(CityLots2State.DATASET_SIZE)
+public class MatchContextJmhBenchmarks {
+
+    @State(Scope.Thread)
+    public static class MatchContextState {
+        final MatchContext context = new MatchContext();
+    }
+
+    @Benchmark
+    @Warmup(iterations = 4, batchSize = 1, time = 10, timeUnit = SECONDS)
+    @Measurement(iterations = 5, batchSize = 1, time = 10, timeUnit = SECONDS)
+    public void reusedContext(MachineStateSimple machineState, CityLots2State cityLots2State,
+                              MatchContextState contextState, Blackhole blackhole) throws Exception {
+        Machine machine = Objects.requireNonNull(machineState.machine);
+        MatchContext context = contextState.context;
+
+        for (String event : cityLots2State.getCityLots2()) {
+            blackhole.consume(machine.rulesForJSONEvent(event, context));
+        }
+    }
+
+    @Benchmark
+    @Warmup(iterations = 4, batchSize = 1, time = 10, timeUnit = SECONDS)
+    @Measurement(iterations = 5, batchSize = 1, time = 10, timeUnit = SECONDS)
+    public void newContext(MachineStateSimple machineState, CityLots2State cityLots2State,
+                           Blackhole blackhole) throws Exception {
+        Machine machine = Objects.requireNonNull(machineState.machine);
+
+        for (String event : cityLots2State.getCityLots2()) {
+            blackhole.consume(machine.rulesForJSONEvent(event));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package software.amazon.event.ruler.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Timeout;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import software.amazon.event.ruler.Machine;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Measures how matching the CityLots2 events in batches with GenericMachine.rulesForJSONEvents(List, Executor, int)
+ *  scales with the number of threads. A single benchmark thread hands the batches to a ForkJoinPool of the given
+ *  parallelism, so the scaling curve comes from comparing the scores for each value of the parallelism parameter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 2, jvmArgsAppend = {
+        "-Xmx2g", "-Xms2g", "-XX:+AlwaysPreTouch", "-XX:+UseTransparentHugePages", "-XX:+UseParallelGC",
+        "-XX:-BackgroundCompilation", "-XX:CompileCommand=dontinline,com/fasterxml/*.*",
+})
+@Timeout(time = 90, timeUnit = SECONDS)
+@Threads(1)
+@OperationsPerInvocation(CityLots2State.DATASET_SIZE)
+public class ParallelBatchJmhBenchmarks {
+
+    private static final int BATCH_SIZE = 500;
+
+    @State(Scope.Benchmark)
+    public static class PoolState {
+        @Param({ "1", "2", "4", "8" })
+        public int parallelism;
+
+        ForkJoinPool pool;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            pool = new ForkJoinPool(parallelism);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    @Warmup(iterations = 4, batchSize = 1, time = 10, timeUnit = SECONDS)
+    @Measurement(iterations = 5, batchSize = 1, time = 10, timeUnit = SECONDS)
+    public void parallelBatches(MachineStateSimple machineState, CityLots2State cityLots2State, PoolState poolState,
+                                Blackhole blackhole) throws Exception {
+        Machine machine = Objects.requireNonNull(machineState.machine);
+        List<String> events = cityLots2State.getCityLots2();
+
+        for (int from = 0; from < events.size(); from += BATCH_SIZE) {
+            List<String> batch = events.subList(from, Math.min(from + BATCH_SIZE, events.size()));
+            blackhole.consume(machine.rulesForJSONEvents(batch, poolState.pool, poolState.parallelism));
+        }
+    }
+}